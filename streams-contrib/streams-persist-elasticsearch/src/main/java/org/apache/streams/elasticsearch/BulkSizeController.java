@@ -0,0 +1,113 @@
+package org.apache.streams.elasticsearch;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Random;
+
+/**
+ * Adapts the size of bulk requests and the number sent concurrently to what the cluster can absorb, using additive
+ * increase / multiplicative decrease.
+ *
+ * A bulk that comes back with rejected items, or that took longer than the target, halves the concurrency and shrinks
+ * the bulk size.  A bulk that came back clean and well within the target grows the bulk size by a fixed step, and
+ * after a run of such bulks the concurrency grows by one.  Both stay within the configured bounds.
+ */
+public class BulkSizeController {
+
+    private static final double SLOW_DECREASE = 0.75;
+    private static final double REJECTED_DECREASE = 0.5;
+    private static final int STEPS_TO_MAX = 10;
+
+    private final long minBatchBytes;
+    private final long maxBatchBytes;
+    private final long batchBytesStep;
+    private final int maxConcurrency;
+    private final long targetMillis;
+
+    private final Random random = new Random();
+
+    private volatile long batchBytes;
+    private volatile int concurrency;
+    private int cleanResponses;
+
+    /**
+     * @param initialBatchBytes starting bulk size in bytes
+     * @param minBatchBytes smallest bulk size
+     * @param maxBatchBytes largest bulk size
+     * @param maxConcurrency largest number of concurrent bulks, also the starting number
+     * @param targetMillis bulks that take longer than this are treated as a sign of overload
+     */
+    public BulkSizeController(long initialBatchBytes, long minBatchBytes, long maxBatchBytes, int maxConcurrency, long targetMillis) {
+        Preconditions.checkArgument(minBatchBytes > 0 && minBatchBytes <= maxBatchBytes);
+        Preconditions.checkArgument(maxConcurrency > 0);
+        Preconditions.checkArgument(targetMillis > 0);
+        this.minBatchBytes = minBatchBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        this.batchBytesStep = Math.max(1, (maxBatchBytes - minBatchBytes) / STEPS_TO_MAX);
+        this.maxConcurrency = maxConcurrency;
+        this.targetMillis = targetMillis;
+        this.batchBytes = clamp(initialBatchBytes, minBatchBytes, maxBatchBytes);
+        this.concurrency = maxConcurrency;
+    }
+
+    public long getBatchBytes() {
+        return batchBytes;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Records the outcome of a bulk request.
+     * @param tookMillis time the cluster took to process the bulk
+     * @param rejected number of items rejected because the cluster was overloaded
+     * @return the change in concurrency, negative when fewer bulks should be in flight
+     */
+    public synchronized int onResponse(long tookMillis, int rejected) {
+        int previous = concurrency;
+        if(rejected > 0) {
+            cleanResponses = 0;
+            batchBytes = Math.max(minBatchBytes, (long) (batchBytes * REJECTED_DECREASE));
+            concurrency = Math.max(1, concurrency / 2);
+        } else if(tookMillis > targetMillis) {
+            cleanResponses = 0;
+            batchBytes = Math.max(minBatchBytes, (long) (batchBytes * SLOW_DECREASE));
+        } else {
+            batchBytes = Math.min(maxBatchBytes, batchBytes + batchBytesStep);
+            if(++cleanResponses >= concurrency) {
+                cleanResponses = 0;
+                concurrency = Math.min(maxConcurrency, concurrency + 1);
+            }
+        }
+        return concurrency - previous;
+    }
+
+    /**
+     * Records a bulk request that failed as a whole, ie. a node was unreachable.
+     * @return the change in concurrency
+     */
+    public synchronized int onFailure() {
+        return onResponse(0, 1);
+    }
+
+    /**
+     * Backoff before resending rejected items, exponential in the attempt with full jitter so that retries from
+     * different writers spread out.
+     * @param attempt retry attempt, starting at 1
+     * @param baseMillis backoff of the first attempt
+     * @param maxMillis largest backoff
+     * @return milliseconds to wait
+     */
+    public long backoffMillis(int attempt, long baseMillis, long maxMillis) {
+        long ceiling = baseMillis << Math.min(Math.max(attempt - 1, 0), 20);
+        ceiling = Math.min(Math.max(ceiling, 1), maxMillis);
+        synchronized (random) {
+            return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.min(Math.max(value, min), max);
+    }
+}
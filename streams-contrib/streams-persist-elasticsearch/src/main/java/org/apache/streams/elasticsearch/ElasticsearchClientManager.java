@@ -11,6 +11,7 @@ import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
 import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
@@ -19,6 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
@@ -29,6 +31,7 @@ public class ElasticsearchClientManager
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchClientManager.class);
     private static Map<String, ElasticsearchClient> ALL_CLIENTS = new HashMap<String, ElasticsearchClient>();
+    private static Map<String, Client> NODE_CLIENTS = new HashMap<String, Client>();
 
     private ElasticsearchConfiguration elasticsearchConfiguration;
 
@@ -63,6 +66,34 @@ public class ElasticsearchClientManager
         return ALL_CLIENTS.get(this.elasticsearchConfiguration.getClusterName()).getClient();
     }
 
+    /**
+     * Get a Client connected to a single node of the cluster, that does not sniff other nodes, for requests that
+     * should be handled by that node.  Clients are shared per cluster and node.
+     * @param node
+     * @return
+     * Client for the node
+     */
+    public synchronized Client getNodeClient(DiscoveryNode node)
+    {
+        String key = this.elasticsearchConfiguration.getClusterName() + "/" + node.getId();
+        Client client = NODE_CLIENTS.get(key);
+        if(client == null)
+        {
+            LOGGER.info("Creating a new TransportClient for node: {}", node);
+
+            Settings settings = ImmutableSettings.settingsBuilder()
+                    .put("cluster.name", this.elasticsearchConfiguration.getClusterName())
+                    .put("client.transport.sniff", false)
+                    .put("client.transport.ping_timeout", "90s")
+                    .put("client.transport.nodes_sampler_interval", "60s")
+                    .build();
+
+            client = new TransportClient(settings).addTransportAddress(node.address());
+            NODE_CLIENTS.put(key, client);
+        }
+        return client;
+    }
+
     private synchronized void checkAndLoadClient(String clusterName) {
 
         if( clusterName == null )
@@ -160,6 +191,18 @@ public class ElasticsearchClientManager
             // Remove it so that it isn't in memory any more.
             ALL_CLIENTS.remove(this.elasticsearchConfiguration.toString());
         }
+
+        // Close the clients for single nodes of this cluster
+        Iterator<Map.Entry<String, Client>> nodeClients = NODE_CLIENTS.entrySet().iterator();
+        while(nodeClients.hasNext())
+        {
+            Map.Entry<String, Client> nodeClient = nodeClients.next();
+            if(nodeClient.getKey().startsWith(this.elasticsearchConfiguration.getClusterName() + "/"))
+            {
+                nodeClient.getValue().close();
+                nodeClients.remove();
+            }
+        }
     }
 
     public ClusterHealthResponse getStatus() throws ExecutionException, InterruptedException
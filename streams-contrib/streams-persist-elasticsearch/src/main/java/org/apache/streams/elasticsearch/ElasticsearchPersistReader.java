@@ -1,8 +1,9 @@
 package org.apache.streams.elasticsearch;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
@@ -14,14 +15,20 @@ import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.FilterBuilders;
 import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeFilterBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +37,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**************************************************************************************************************
  * Authors:
@@ -37,23 +45,50 @@ import java.util.concurrent.*;
  * steveblackmon
  **************************************************************************************************************/
 
+/**
+ * Reads documents from elasticsearch with scan and scroll.
+ *
+ * The read is split into slices, each an independent scroll run by its own thread.  By default slices divide the
+ * shards between them with a _shards search preference, which costs nothing extra on the server.  Slicing by uid
+ * divides the documents with a script on their _uid instead, which loads the _uid field data of every document in the
+ * index onto the heap of the data nodes; use it only when there are fewer shards than slices wanted and that field data
+ * fits in memory.  Hits from all slices are handed off through a bounded queue, so scrolling pauses while readers fall
+ * behind.
+ *
+ * includes and excludes limit the _source fields that are returned.  With rawSource on, the source json is emitted as
+ * a String document without being parsed.
+ *
+ * readRange filters the scrolls on timestampField.  readNew reads the documents whose sequenceField is above the last
+ * value read, and up to the highest value present when the read starts; once the read has finished the highest value
+ * is remembered, in stateIndex if one is configured so that it survives between runs.
+ */
 public class ElasticsearchPersistReader implements StreamsPersistReader, Iterable<SearchHit>, Iterator<SearchHit>
 {
     public final static String STREAMS_ID = "ElasticsearchPersistReader";
 
     private final static Logger LOGGER = LoggerFactory.getLogger(ElasticsearchPersistReader.class);
 
-    protected volatile Queue<StreamsDatum> persistQueue;
+    public final static String SLICE_BY_SHARD = "shard";
+    public final static String SLICE_BY_UID = "uid";
+
+    protected volatile BlockingQueue<StreamsDatum> persistQueue;
 
-    private static final int SCROLL_POSITION_NOT_INITIALIZED = -3;
     private static final Integer DEFAULT_BATCH_SIZE = 500;
     private static final String DEFAULT_SCROLL_TIMEOUT = "5m";
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final String DEFAULT_TIMESTAMP_FIELD = "published";
+    private static final String SEQUENCE_STATE_TYPE = "sequence";
+    private static final String LAST_SEQUENCE = "lastSequence";
+    private static final String UID_SLICE_SCRIPT = "(doc['_uid'].value.hashCode() & 0x7fffffff) % slices == slice";
 
     private ElasticsearchClientManager elasticsearchClientManager;
     private List<String> indexes = Lists.newArrayList();
     private List<String> types = Lists.newArrayList();
     private String[] withfields;
     private String[] withoutfields;
+    private String[] includes;
+    private String[] excludes;
+    private boolean rawSource = false;
     private DateTime startDate;
     private DateTime endDate;
     private int limit = 1000*1000*1000; // we are going to set the default limit very high to 1bil
@@ -61,8 +96,12 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
     private int threadPoolSize = 10;
     private int batchSize = 100;
     private String scrollTimeout = null;
-
-    private ObjectMapper mapper = new ObjectMapper();
+    private Integer slices = null;
+    private String sliceMode = SLICE_BY_SHARD;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private String timestampField = DEFAULT_TIMESTAMP_FIELD;
+    private String sequenceField;
+    private String stateIndex;
 
     private ElasticsearchConfiguration config;
 
@@ -70,23 +109,42 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
 
     private QueryBuilder queryBuilder;
     private FilterBuilder filterBuilder;
+    private FilterBuilder readFilter;
+
+    // readNew state
+    Long lastSequence;
+    Long pendingSequence;
+
+    // These are private to help us manage the scrolls
+    List<ElasticsearchScrollSlice> scrollSlices;
+    private Iterator<SearchHit> allHits;
+    private final AtomicLong totalRead = new AtomicLong();
+
+    public long getHitCount() {
+        long hits = 0;
+        for(ElasticsearchScrollSlice slice : getSlices())
+            hits += slice.getHitCount();
+        return hits;
+    }
 
-    // These are private to help us manage the scroll
-    private SearchRequestBuilder search;
-    private SearchResponse scrollResp;
-    private int scrollPositionInScroll = SCROLL_POSITION_NOT_INITIALIZED;
-    private SearchHit next = null;
-    private long totalHits = 0;
-    private long totalRead = 0;
-
-    public long getHitCount()                       { return this.search == null ? 0 : this.totalHits; }
-    public long getReadCount()                      { return this.totalRead; }
+    public long getReadCount()                      { return this.totalRead.get(); }
     public double getReadPercent()                  { return (double)this.getReadCount() / (double)this.getHitCount(); }
-    public long getRemainingCount()                 { return this.totalRead - this.totalHits; }
+    public long getRemainingCount()                 { return this.getHitCount() - this.getReadCount(); }
     public Iterator<SearchHit> iterator()           { return this; }
-    private boolean isCompleted()                   { return totalRead >= this.limit && hasRecords(); }
-    private boolean hasRecords()                    { return scrollPositionInScroll != -1 && (!(this.totalRead > this.limit)); }
-    public SearchHit next()                         { return this.next; }
+    public List<ElasticsearchScrollSlice> getSlices() { return scrollSlices == null ? Collections.<ElasticsearchScrollSlice>emptyList() : scrollSlices; }
+
+    /**
+     * Progress of each slice, in slice order.
+     * @return fraction of each slice's hits read so far
+     */
+    public List<Double> getSliceReadPercents() {
+        List<Double> percents = Lists.newArrayList();
+        for(ElasticsearchScrollSlice slice : getSlices())
+            percents.add(slice.getReadPercent());
+        return percents;
+    }
+
+    public boolean isLimitReached()                 { return totalRead.get() >= this.limit; }
 
     public void setBatchSize(int batchSize) {
         this.batchSize = batchSize;
@@ -96,74 +154,267 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
         this.scrollTimeout = scrollTimeout;
     }
 
+    /**
+     * Sets the number of concurrent scrolls.  By default there is one per shard, up to the thread pool size.
+     * @param slices
+     */
+    public void setSlices(int slices) {
+        Preconditions.checkArgument(slices > 0);
+        this.slices = slices;
+    }
+
+    /**
+     * Sets how the read is split between slices, {@link #SLICE_BY_SHARD} (the default) or {@link #SLICE_BY_UID}.  Uid
+     * slicing loads the _uid field data of the whole index onto the heap of the data nodes.
+     * @param sliceMode
+     */
+    public void setSliceMode(String sliceMode) {
+        Preconditions.checkArgument(SLICE_BY_SHARD.equals(sliceMode) || SLICE_BY_UID.equals(sliceMode));
+        this.sliceMode = sliceMode;
+    }
+
+    /**
+     * Limits the _source fields returned with each hit.
+     * @param includes fields to return, null or empty for all
+     * @param excludes fields not to return, may be null
+     */
+    public void setSourceFields(String[] includes, String[] excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    public void setRawSource(boolean rawSource) {
+        this.rawSource = rawSource;
+    }
+
+    public boolean isRawSource() {
+        return rawSource;
+    }
+
+    /**
+     * How long a scroll is kept alive between requests.
+     */
+    public TimeValue getScrollKeepAlive() {
+        return TimeValue.parseTimeValue(Objects.firstNonNull(scrollTimeout, DEFAULT_SCROLL_TIMEOUT), null);
+    }
+
+    public void setQueueSize(int queueSize) {
+        Preconditions.checkArgument(queueSize > 0);
+        this.queueSize = queueSize;
+    }
+
+    public void setTimestampField(String timestampField) {
+        this.timestampField = timestampField;
+    }
+
+    /**
+     * Sets the field that readNew pages by.  Its value must increase with every document added.
+     * @param sequenceField
+     */
+    public void setSequenceField(String sequenceField) {
+        this.sequenceField = sequenceField;
+    }
+
+    /**
+     * Sets the index readNew keeps the last sequence read in.  Without one it is only remembered by this reader.
+     * @param stateIndex
+     */
+    public void setStateIndex(String stateIndex) {
+        this.stateIndex = stateIndex;
+    }
+
     public void setQueryBuilder(QueryBuilder queryBuilder)      { this.queryBuilder = queryBuilder; }
     public void setFilterBuilder(FilterBuilder filterBuilder)   { this.filterBuilder = filterBuilder; }
 
     public ElasticsearchPersistReader() {
         Config config = StreamsConfigurator.config.getConfig("elasticsearch");
         this.config = ElasticsearchConfigurator.detectConfiguration(config);
+        this.elasticsearchClientManager = new ElasticsearchClientManager(this.config);
     }
     public ElasticsearchPersistReader(ElasticsearchReaderConfiguration elasticsearchConfiguration) {
+        this.config = elasticsearchConfiguration;
         this.elasticsearchClientManager = new ElasticsearchClientManager(elasticsearchConfiguration);
         indexes.add(elasticsearchConfiguration.getIndex());
         types.add(elasticsearchConfiguration.getType());
+        if(elasticsearchConfiguration.getSlices() != null)
+            setSlices(elasticsearchConfiguration.getSlices().intValue());
+        if(elasticsearchConfiguration.getSliceMode() != null)
+            setSliceMode(elasticsearchConfiguration.getSliceMode());
+        if(elasticsearchConfiguration.getBatchSize() != null)
+            setBatchSize(elasticsearchConfiguration.getBatchSize().intValue());
+        if(elasticsearchConfiguration.getScrollTimeout() != null)
+            setScrollTimeout(elasticsearchConfiguration.getScrollTimeout());
+        if(elasticsearchConfiguration.getWithfields() != null && elasticsearchConfiguration.getWithfields().size() > 0)
+            setWithfields(elasticsearchConfiguration.getWithfields().toArray(new String[0]));
+        if(elasticsearchConfiguration.getWithoutfields() != null && elasticsearchConfiguration.getWithoutfields().size() > 0)
+            setWithoutfields(elasticsearchConfiguration.getWithoutfields().toArray(new String[0]));
+        setSourceFields(toArray(elasticsearchConfiguration.getIncludes()), toArray(elasticsearchConfiguration.getExcludes()));
+        if(elasticsearchConfiguration.getRawSource() != null)
+            setRawSource(elasticsearchConfiguration.getRawSource());
+        if(elasticsearchConfiguration.getQueueSize() != null)
+            setQueueSize(elasticsearchConfiguration.getQueueSize().intValue());
+        if(elasticsearchConfiguration.getTimestampField() != null)
+            setTimestampField(elasticsearchConfiguration.getTimestampField());
+        setSequenceField(elasticsearchConfiguration.getSequenceField());
+        setStateIndex(elasticsearchConfiguration.getStateIndex());
+    }
+
+    private static String[] toArray(List<String> list) {
+        return list == null || list.isEmpty() ? null : list.toArray(new String[list.size()]);
     }
 
     @Override
     public void startStream() {
         LOGGER.debug("startStream");
-        executor = Executors.newSingleThreadExecutor();
-        executor.submit(new ElasticsearchPersistReaderTask(this));
+        List<ElasticsearchScrollSlice> slices = getSlices();
+        executor = Executors.newFixedThreadPool(Math.max(1, slices.size()));
+        for(ElasticsearchScrollSlice slice : slices)
+            executor.submit(new ElasticsearchPersistReaderTask(this, slice));
+        executor.shutdown();
     }
 
     @Override
     public void prepare(Object o) {
 
-        persistQueue = new ConcurrentLinkedQueue<StreamsDatum>();
+        persistQueue = new LinkedBlockingQueue<StreamsDatum>(queueSize);
 
-        // If we haven't already set up the search, then set up the search.
-        if(search == null)
+        // If we haven't already set up the scrolls, then set them up.
+        if(scrollSlices == null)
         {
-            search = elasticsearchClientManager.getClient()
-                    .prepareSearch(indexes.toArray(new String[0]))
-                    .setSearchType(SearchType.SCAN)
-                    .setSize(Objects.firstNonNull(batchSize, DEFAULT_BATCH_SIZE).intValue())
-                    .setScroll(Objects.firstNonNull(scrollTimeout, DEFAULT_SCROLL_TIMEOUT));
-
-            if(this.queryBuilder != null)
-                search.setQuery(this.queryBuilder);
-
-            // If the types are null, then don't specify a type
-            if(this.types != null && this.types.size() > 0)
-                search = search.setTypes(types.toArray(new String[0]));
-
-            Integer clauses = 0;
-            if(this.withfields != null || this.withoutfields != null) {
-                if( this.withfields != null )
-                    clauses += this.withfields.length;
-                if( this.withoutfields != null )
-                    clauses += this.withoutfields.length;
+            int sliceCount = slices != null ? slices : Math.min(getShardCount(), threadPoolSize);
+            List<ElasticsearchScrollSlice> sliceList = Lists.newArrayList();
+
+            if(SLICE_BY_SHARD.equals(sliceMode))
+            {
+                List<List<Integer>> sliceShards = dealShards(getShardCount(), sliceCount);
+                sliceCount = sliceShards.size();
+
+                for(int i = 0; i < sliceCount; i++)
+                {
+                    SearchRequestBuilder search = buildSearch(null);
+                    if(sliceCount > 1)
+                        search.setPreference("_shards:" + Joiner.on(',').join(sliceShards.get(i)));
+                    sliceList.add(newSlice(i, search));
+                }
+            }
+            else
+            {
+                LOGGER.warn("Slicing {} by uid loads the _uid field data of the index onto the heap", indexes);
+                for(int i = 0; i < sliceCount; i++)
+                {
+                    FilterBuilder sliceFilter = sliceCount > 1
+                            ? FilterBuilders.scriptFilter(UID_SLICE_SCRIPT).addParam("slices", sliceCount).addParam("slice", i)
+                            : null;
+                    sliceList.add(newSlice(i, buildSearch(sliceFilter)));
+                }
             }
 
-            List<FilterBuilder> filterList = buildFilterList();
+            LOGGER.info("Reading {} with {} {} slices", indexes, sliceList.size(), sliceMode);
+            scrollSlices = sliceList;
+        }
+    }
 
-            FilterBuilder allFilters = andFilters(filterList);
+    /**
+     * Deals the shard ids out between the slices, so each shard is read by exactly one of at most shards slices.
+     * @param shards number of shards
+     * @param sliceCount number of slices wanted
+     * @return the shard ids of each slice
+     */
+    static List<List<Integer>> dealShards(int shards, int sliceCount)
+    {
+        sliceCount = Math.max(1, Math.min(sliceCount, shards));
+        List<List<Integer>> sliceShards = Lists.newArrayList();
+        for(int i = 0; i < sliceCount; i++)
+            sliceShards.add(new ArrayList<Integer>());
+        for(int shard = 0; shard < shards; shard++)
+            sliceShards.get(shard % sliceCount).add(shard);
+        return sliceShards;
+    }
 
-            if( clauses > 0 ) {
-                //    search.setPostFilter(allFilters);
-                search.setPostFilter(allFilters);
-            }
+    private ElasticsearchScrollSlice newSlice(int id, SearchRequestBuilder search)
+    {
+        return new ElasticsearchScrollSlice(id, elasticsearchClientManager.getClient(), search,
+                Objects.firstNonNull(scrollTimeout, DEFAULT_SCROLL_TIMEOUT));
+    }
+
+    private SearchRequestBuilder buildSearch(FilterBuilder sliceFilter)
+    {
+        SearchRequestBuilder search = elasticsearchClientManager.getClient()
+                .prepareSearch(indexes.toArray(new String[0]))
+                .setSearchType(SearchType.SCAN)
+                .setSize(Objects.firstNonNull(batchSize, DEFAULT_BATCH_SIZE).intValue())
+                .setScroll(Objects.firstNonNull(scrollTimeout, DEFAULT_SCROLL_TIMEOUT));
+
+        if(this.queryBuilder != null)
+            search.setQuery(this.queryBuilder);
+
+        // only bring back the fields that are needed
+        if(this.includes != null || this.excludes != null)
+            search.setFetchSource(this.includes, this.excludes);
+
+        // If the types are null, then don't specify a type
+        if(this.types != null && this.types.size() > 0)
+            search = search.setTypes(types.toArray(new String[0]));
+
+        List<FilterBuilder> filterList = buildFilterList();
+
+        if(this.filterBuilder != null)
+            filterList.add(this.filterBuilder);
+
+        if(this.readFilter != null)
+            filterList.add(this.readFilter);
 
-            // TODO: Replace when all clusters are upgraded past 0.90.4 so we can implement a RANDOM scroll.
-            if(this.random)
-                search = search.addSort(SortBuilders.scriptSort("random()", "number"));
+        if(sliceFilter != null)
+            filterList.add(sliceFilter);
+
+        FilterBuilder allFilters = andFilters(filterList);
+
+        if(allFilters != null)
+            search.setPostFilter(allFilters);
+
+        // TODO: Replace when all clusters are upgraded past 0.90.4 so we can implement a RANDOM scroll.
+        if(this.random)
+            search = search.addSort(SortBuilders.scriptSort("random()", "number"));
+
+        return search;
+    }
+
+    /**
+     * The highest number of shards of the indexes being read, which is the range of shard ids to split.
+     */
+    private int getShardCount()
+    {
+        int shards = 0;
+        try
+        {
+            MetaData metaData = elasticsearchClientManager.getClient()
+                    .admin()
+                    .cluster()
+                    .prepareState()
+                    .execute()
+                    .actionGet()
+                    .getState()
+                    .getMetaData();
+
+            for(String index : indexes)
+            {
+                IndexMetaData indexMetaData = metaData.index(index);
+                if(indexMetaData != null)
+                    shards = Math.max(shards, indexMetaData.getNumberOfShards());
+            }
+        }
+        catch(Exception e)
+        {
+            LOGGER.warn("Unable to read the shard count of {}: {}", indexes, e.getMessage());
         }
 
-        // We don't have a scroll, we need to create a scroll
-        if(scrollResp == null) {
-            scrollResp = search.execute().actionGet();
-            LOGGER.trace(search.toString());
+        if(shards == 0)
+        {
+            // aliases and wildcards are not in the index metadata, fall back to a single slice
+            LOGGER.info("Shard count of {} unknown, reading with a single scroll", indexes);
+            shards = 1;
         }
+        return shards;
     }
 
     public void setWithfields(String[] withfields) {
@@ -174,53 +425,22 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
         this.withoutfields = withoutfields;
     }
 
+    /**
+     * Iterates over the slices one after another on the calling thread.
+     */
     public boolean hasNext()
     {
-        calcNext();
-        return hasRecords();
+        if(allHits == null)
+            allHits = Iterators.concat(getSlices().iterator());
+        return !isLimitReached() && allHits.hasNext();
     }
 
-    public void calcNext()
+    public SearchHit next()
     {
-        try
-        {
-            // We have exhausted our scroll create another scroll.
-            if(scrollPositionInScroll == SCROLL_POSITION_NOT_INITIALIZED || scrollPositionInScroll >= scrollResp.getHits().getHits().length)
-            {
-                // reset the scroll position
-                scrollPositionInScroll = 0;
-
-                // get the next hits of the scroll
-                scrollResp = elasticsearchClientManager.getClient()
-                        .prepareSearchScroll(scrollResp.getScrollId())
-                        .setScroll(Objects.firstNonNull(scrollTimeout, DEFAULT_SCROLL_TIMEOUT))
-                        .execute()
-                        .actionGet();
-
-                this.totalHits = scrollResp.getHits().getTotalHits();
-            }
-
-            // If this scroll has 0 items then we set the scroll position to -1
-            // letting the iterator know that we are done.
-            if(scrollResp.getHits().getTotalHits() == 0 || scrollResp.getHits().getHits().length == 0)
-                scrollPositionInScroll = -1;
-            else
-            {
-                // get the next record
-                next = scrollResp.getHits().getAt(scrollPositionInScroll);
-
-                // Increment our counters
-                scrollPositionInScroll += 1;
-                totalRead += 1;
-            }
-        }
-        catch(Exception e)
-        {
-            e.printStackTrace();
-            LOGGER.error("Unexpected scrolling error: {}", e.getMessage());
-            scrollPositionInScroll = -1;
-            next = null;
-        }
+        if(!hasNext())
+            throw new NoSuchElementException();
+        totalRead.incrementAndGet();
+        return allHits.next();
     }
 
     public void remove() { }
@@ -290,14 +510,11 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
 
         LOGGER.debug("readCurrent: {}", persistQueue.size());
 
-        Collection<StreamsDatum> currentIterator = Lists.newArrayList();
-        Iterators.addAll(currentIterator, persistQueue.iterator());
-
-        StreamsResultSet current = new StreamsResultSet(Queues.newConcurrentLinkedQueue(currentIterator));
+        // drain rather than copy and clear, so hits added by the slices meanwhile stay queued for the next read
+        Queue<StreamsDatum> current = Queues.newConcurrentLinkedQueue();
+        persistQueue.drainTo(current, queueSize);
 
-        persistQueue.clear();
-
-        return current;
+        return new StreamsResultSet(current);
 
     }
 
@@ -305,14 +522,168 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
         return readCurrent();
     }
 
+    /**
+     * Reads the documents whose sequenceField is above both the given sequence and the last sequence read.
+     * @param sequence lowest sequence to exclude, may be null
+     * @return the documents, streamed as they are read
+     */
     @Override
     public StreamsResultSet readNew(BigInteger sequence) {
-        return readCurrent();
+        Preconditions.checkState(sequenceField != null, "sequenceField must be set to read new documents");
+
+        Long from = loadLastSequence();
+        if(sequence != null)
+            from = from == null ? sequence.longValue() : Math.max(from, sequence.longValue());
+
+        // fix the upper bound now, documents added during the read are left for the next one
+        Long upTo = findHighestSequence();
+        if(upTo == null || (from != null && upTo <= from))
+        {
+            LOGGER.info("No new documents in {} after {}", indexes, from);
+            return new StreamsResultSet(new ConcurrentLinkedQueue<StreamsDatum>());
+        }
+
+        RangeFilterBuilder range = FilterBuilders.rangeFilter(sequenceField).lte(upTo);
+        if(from != null)
+            range.gt(from);
+
+        LOGGER.info("Reading {} with {} in ({}, {}]", indexes, sequenceField, from, upTo);
+        pendingSequence = upTo;
+        return read(range);
     }
 
+    /**
+     * Reads the documents whose timestampField is in the range.
+     * @param start inclusive start, null for no lower bound
+     * @param end exclusive end, null for no upper bound
+     * @return the documents, streamed as they are read
+     */
     @Override
     public StreamsResultSet readRange(DateTime start, DateTime end) {
-        return readCurrent();
+        this.startDate = start;
+        this.endDate = end;
+
+        RangeFilterBuilder range = FilterBuilders.rangeFilter(timestampField);
+        if(start != null)
+            range.gte(start.getMillis());
+        if(end != null)
+            range.lt(end.getMillis());
+
+        pendingSequence = null;
+        return read(range);
+    }
+
+    /**
+     * Starts a new read of the documents matching the filter, replacing any slices that were prepared.
+     */
+    private StreamsResultSet read(FilterBuilder filter) {
+        for(ElasticsearchScrollSlice slice : getSlices())
+            slice.stop();
+        if(executor != null)
+            executor.shutdownNow();
+        this.readFilter = filter;
+        this.scrollSlices = null;
+        this.allHits = null;
+        this.totalRead.set(0);
+        prepare(null);
+        startStream();
+        return new ElasticsearchResultSet(this, persistQueue);
+    }
+
+    /**
+     * Whether every slice task of the current read has finished.
+     */
+    boolean isReadFinished() {
+        return executor != null && executor.isTerminated();
+    }
+
+    /**
+     * Called when the result of a read has been consumed.  Remembers the sequence read by readNew, unless part of the
+     * read failed or was cut off by the limit.
+     */
+    void onReadFinished() {
+        if(pendingSequence == null)
+            return;
+
+        for(ElasticsearchScrollSlice slice : getSlices())
+        {
+            if(slice.isFailed())
+            {
+                LOGGER.warn("Not recording {} as read, slice {} failed", pendingSequence, slice.getId());
+                pendingSequence = null;
+                return;
+            }
+        }
+        if(isLimitReached())
+        {
+            LOGGER.info("Not recording {} as read, the limit was reached", pendingSequence);
+            pendingSequence = null;
+            return;
+        }
+
+        saveLastSequence(pendingSequence);
+        pendingSequence = null;
+    }
+
+    private Long findHighestSequence()
+    {
+        SearchRequestBuilder search = elasticsearchClientManager.getClient()
+                .prepareSearch(indexes.toArray(new String[0]))
+                .setSize(1)
+                .addField(sequenceField)
+                .addSort(sequenceField, SortOrder.DESC);
+
+        if(this.types != null && this.types.size() > 0)
+            search.setTypes(types.toArray(new String[0]));
+
+        SearchHit[] hits = search.execute().actionGet().getHits().getHits();
+        if(hits.length == 0 || hits[0].field(sequenceField) == null)
+            return null;
+        Object value = hits[0].field(sequenceField).getValue();
+        return value instanceof Number ? ((Number) value).longValue() : Long.valueOf(value.toString());
+    }
+
+    private String getSequenceStateId()
+    {
+        return Joiner.on('_').join(Joiner.on(',').join(indexes), Joiner.on(',').join(types), sequenceField);
+    }
+
+    private Long loadLastSequence()
+    {
+        if(lastSequence == null && stateIndex != null)
+        {
+            GetResponse state = elasticsearchClientManager.getClient()
+                    .prepareGet(stateIndex, SEQUENCE_STATE_TYPE, getSequenceStateId())
+                    .execute()
+                    .actionGet();
+            if(state.isExists() && state.getSource().get(LAST_SEQUENCE) != null)
+                lastSequence = ((Number) state.getSource().get(LAST_SEQUENCE)).longValue();
+        }
+        return lastSequence;
+    }
+
+    private void saveLastSequence(long sequence)
+    {
+        lastSequence = sequence;
+        if(stateIndex != null)
+        {
+            Map<String, Object> state = new HashMap<String, Object>();
+            state.put(LAST_SEQUENCE, sequence);
+            elasticsearchClientManager.getClient()
+                    .prepareIndex(stateIndex, SEQUENCE_STATE_TYPE, getSequenceStateId())
+                    .setSource(state)
+                    .execute()
+                    .actionGet();
+        }
+        LOGGER.info("Read {} up to {} {}", indexes, sequenceField, sequence);
+    }
+
+    /**
+     * Records that a hit was read by a slice task.
+     * @return false if the limit has been reached and the hit should not be emitted
+     */
+    boolean countRead() {
+        return totalRead.incrementAndGet() <= this.limit;
     }
 
     void shutdownAndAwaitTermination(ExecutorService pool) {
@@ -335,6 +706,10 @@ public class ElasticsearchPersistReader implements StreamsPersistReader, Iterabl
 
     @Override
     public void cleanUp() {
+        for(ElasticsearchScrollSlice slice : getSlices())
+            slice.stop();
+        if(executor != null)
+            shutdownAndAwaitTermination(executor);
         LOGGER.info("PersistReader done");
     }
 
@@ -1,50 +1,74 @@
 package org.apache.streams.elasticsearch;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.elasticsearch.search.SearchHit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads one slice of an {@link ElasticsearchPersistReader} into the reader's queue.
+ */
 public class ElasticsearchPersistReaderTask implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchPersistReaderTask.class);
 
-    private ElasticsearchPersistReader reader;
+    private ElasticsearchPersistReader persistReader;
+    private ElasticsearchScrollSlice slice;
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private ObjectReader reader = JsonMapperRegistry.reader(ObjectNode.class);
 
-    public ElasticsearchPersistReaderTask(ElasticsearchPersistReader reader) {
-        this.reader = reader;
+    public ElasticsearchPersistReaderTask(ElasticsearchPersistReader reader, ElasticsearchScrollSlice slice) {
+        this.persistReader = reader;
+        this.slice = slice;
     }
 
     @Override
     public void run() {
 
+        // wake up well before the scroll would expire while the queue is full, so a stall gets noticed
+        long waitMillis = Math.max(1, persistReader.getScrollKeepAlive().millis() / 2);
+        boolean rawSource = persistReader.isRawSource();
+
         StreamsDatum item;
-        while( reader.hasNext()) {
-            SearchHit hit = reader.next();
-            ObjectNode jsonObject = null;
-            try {
-                jsonObject = mapper.readValue(hit.getSourceAsString(), ObjectNode.class);
-            } catch (IOException e) {
-                e.printStackTrace();
+        while( slice.hasNext() ) {
+            SearchHit hit = slice.next();
+            if( !persistReader.countRead() ) {
+                slice.stop();
                 break;
             }
-            item = new StreamsDatum(jsonObject);
+            Object document;
+            if( rawSource ) {
+                document = hit.getSourceAsString();
+            } else {
+                try {
+                    // parse straight from the source bytes, without building a String or Map first
+                    document = reader.readValue(hit.source());
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to parse hit {}: {}", hit.getId(), e.getMessage());
+                    continue;
+                }
+            }
+            item = new StreamsDatum(document, hit.getId());
             item.getMetadata().put("id", hit.getId());
             item.getMetadata().put("index", hit.getIndex());
             item.getMetadata().put("type", hit.getType());
-            reader.persistQueue.offer(item);
+            try {
+                // blocks while the queue is full, which holds this slice's scroll back
+                while( !persistReader.persistQueue.offer(item, waitMillis, TimeUnit.MILLISECONDS) ) {
+                    LOGGER.warn("Slice {} has waited {}ms for the queue, its scroll will expire if reading does not resume", slice.getId(), waitMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
-        try {
-            Thread.sleep(new Random().nextInt(100));
-        } catch (InterruptedException e) {}
-
+        LOGGER.debug("Slice {} done: read {} of {}", slice.getId(), slice.getReadCount(), slice.getHitCount());
     }
 
 }
@@ -1,77 +1,61 @@
 package org.apache.streams.elasticsearch;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Objects;
-import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.typesafe.config.Config;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
-import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
-import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
-import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.elasticsearch.action.update.UpdateRequest;
-import org.elasticsearch.client.Client;
-import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.index.query.IdsQueryBuilder;
 import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHits;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.util.*;
-
-//import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies partial updates to existing documents.
+ *
+ * Updates are held for a short window, and all the updates to the same document within the window are merged into a
+ * single partial document, so a hot document costs one bulk item per window rather than one per update.  By default
+ * the merged document is sent as an upsert, which creates the document if it is missing without a lookup.  With upsert
+ * off, updates are only applied to documents that exist: the documents not known to exist are looked up with one ids
+ * query per index and type, and ids found are remembered in an LRU so hot documents are not looked up again.
+ */
 public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter implements StreamsPersistWriter, Flushable, Closeable
 {
     private final static Logger LOGGER = LoggerFactory.getLogger(ElasticsearchPersistUpdater.class);
-    private final static NumberFormat MEGABYTE_FORMAT = new DecimalFormat("#.##");
-    private final static NumberFormat NUMBER_FORMAT = new DecimalFormat("###,###,###,###");
 
-    protected ElasticsearchClientManager manager;
-    protected Client client;
-    private String parentID = null;
-    protected BulkRequestBuilder bulkRequest;
-    private OutputStreamWriter currentWriter = null;
+    private final static long DEFAULT_COALESCE_WINDOW_MILLIS = 1000;
+    private final static int DEFAULT_MAX_PENDING = 10000;
+    private final static int DEFAULT_KNOWN_IDS_SIZE = 100000;
 
     protected String index = null;
     protected String type = null;
-    private int batchSize = 50;
-    private int totalRecordsWritten = 0;
-    private boolean veryLargeBulk = false;  // by default this setting is set to false
-
-    private final static Long DEFAULT_BULK_FLUSH_THRESHOLD = 5l * 1024l * 1024l;
-    private static final long WAITING_DOCS_LIMIT = 10000;
 
-    public volatile long flushThresholdSizeInBytes = DEFAULT_BULK_FLUSH_THRESHOLD;
+    private boolean upsert = true;
+    private long coalesceWindowMillis = DEFAULT_COALESCE_WINDOW_MILLIS;
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private int knownIdsSize = DEFAULT_KNOWN_IDS_SIZE;
 
-    private volatile int totalSent = 0;
-    private volatile int totalSeconds = 0;
-    private volatile int totalOk = 0;
-    private volatile int totalFailed = 0;
-    private volatile int totalBatchCount = 0;
-    private volatile long totalSizeInBytes = 0;
-
-    private volatile long batchSizeInBytes = 0;
-    private volatile int batchItemsSent = 0;
+    // coalescing state, created by start()
+    private transient Object pendingLock;
+    private transient Map<DocumentKey, ObjectNode> pending;
+    private transient long windowStart;
+    private transient Cache<DocumentKey, Boolean> knownIds;
+    private transient ScheduledExecutorService windowFlusher;
 
     public void setIndex(String index) {
         this.index = index;
@@ -81,53 +65,58 @@ public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter impl
         this.type = type;
     }
 
-    public void setBatchSize(int batchSize) {
-        this.batchSize = batchSize;
+    /**
+     * Whether updates create missing documents (the default), or only apply to documents that exist.
+     * @param upsert
+     */
+    public void setUpsert(boolean upsert) {
+        this.upsert = upsert;
     }
 
-    public void setVeryLargeBulk(boolean veryLargeBulk) {
-        this.veryLargeBulk = veryLargeBulk;
+    /**
+     * Sets how long updates are held to be merged with later updates to the same document.
+     * @param coalesceWindowMillis
+     */
+    public void setCoalesceWindowMillis(long coalesceWindowMillis) {
+        Preconditions.checkArgument(coalesceWindowMillis > 0);
+        this.coalesceWindowMillis = coalesceWindowMillis;
     }
 
-    private final List<String> affectedIndexes = new ArrayList<String>();
-
-    public int getTotalOutstanding()                           { return this.totalSent - (this.totalFailed + this.totalOk); }
-    public long getFlushThresholdSizeInBytes()                 { return flushThresholdSizeInBytes; }
-    public int getTotalSent()                                  { return totalSent; }
-    public int getTotalSeconds()                               { return totalSeconds; }
-    public int getTotalOk()                                    { return totalOk; }
-    public int getTotalFailed()                                { return totalFailed; }
-    public int getTotalBatchCount()                            { return totalBatchCount; }
-    public long getTotalSizeInBytes()                          { return totalSizeInBytes; }
-    public long getBatchSizeInBytes()                          { return batchSizeInBytes; }
-    public int getBatchItemsSent()                             { return batchItemsSent; }
-    public List<String> getAffectedIndexes()                   { return this.affectedIndexes; }
-
-    public void setFlushThresholdSizeInBytes(long sizeInBytes)  { this.flushThresholdSizeInBytes = sizeInBytes; }
-
-    Thread task;
-
-    protected volatile Queue<StreamsDatum> persistQueue;
-
-    private ObjectMapper mapper = new ObjectMapper();
+    /**
+     * Sets the number of distinct documents held before the window is closed early.
+     * @param maxPending
+     */
+    public void setMaxPending(int maxPending) {
+        Preconditions.checkArgument(maxPending > 0);
+        this.maxPending = maxPending;
+    }
 
-    private ElasticsearchConfiguration config;
+    /**
+     * Sets the number of ids known to exist that are remembered, 0 to always look them up.  Takes effect on start.
+     * @param knownIdsSize
+     */
+    public void setKnownIdsSize(int knownIdsSize) {
+        Preconditions.checkArgument(knownIdsSize >= 0);
+        this.knownIdsSize = knownIdsSize;
+    }
 
     public ElasticsearchPersistUpdater() {
-        Config config = StreamsConfigurator.config.getConfig("elasticsearch");
-        this.config = ElasticsearchConfigurator.detectConfiguration(config);
+        this(ElasticsearchConfigurator.detectConfiguration(StreamsConfigurator.config.getConfig("elasticsearch")));
     }
 
     public ElasticsearchPersistUpdater(ElasticsearchConfiguration config) {
-        this.config = config;
+        super(toWriterConfiguration(config));
     }
 
-    private static final int  BYTES_IN_MB = 1024*1024;
-    private static final int  BYTES_BEFORE_FLUSH = 5 * BYTES_IN_MB;
-    private volatile int  totalByteCount = 0;
-    private volatile int  byteCount = 0;
-
-    public boolean isConnected() 		                { return (client != null); }
+    private static ElasticsearchWriterConfiguration toWriterConfiguration(ElasticsearchConfiguration config) {
+        if(config instanceof ElasticsearchWriterConfiguration)
+            return (ElasticsearchWriterConfiguration) config;
+        ElasticsearchWriterConfiguration writerConfiguration = new ElasticsearchWriterConfiguration();
+        writerConfiguration.setHosts(config.getHosts());
+        writerConfiguration.setPort(config.getPort());
+        writerConfiguration.setClusterName(config.getClusterName());
+        return writerConfiguration;
+    }
 
     @Override
     public void write(StreamsDatum streamsDatum) {
@@ -137,349 +126,183 @@ public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter impl
         Preconditions.checkNotNull(streamsDatum.getMetadata());
         Preconditions.checkNotNull(streamsDatum.getMetadata().get("id"));
 
-        String id;
-        String json;
-        try {
-
-            json = mapper.writeValueAsString(streamsDatum.getDocument());
-
-            id = (String) streamsDatum.getMetadata().get("id");
-
-            add(index, type, id, json);
-
-        } catch (JsonProcessingException e) {
-            LOGGER.warn("{} {}", e.getLocation(), e.getMessage());
+        String id = (String) streamsDatum.getMetadata().get("id");
 
-        }
-    }
-
-    public void start() {
-
-        manager = new ElasticsearchClientManager(config);
-        client = manager.getClient();
-
-        LOGGER.info(client.toString());
-    }
+        try {
+            ObjectNode document;
+            if( streamsDatum.getDocument() instanceof String )
+                document = JsonMapperRegistry.reader(ObjectNode.class).readValue((String) streamsDatum.getDocument());
+            else
+                document = JsonMapperRegistry.getMapper().valueToTree(streamsDatum.getDocument());
 
-    public void cleanUp() {
+            add(index, type, id, document);
 
-        try {
-            flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOGGER.warn("Unable to update {}: {}", id, e.getMessage());
         }
-        close();
     }
 
     @Override
-    public void close()
-    {
-        try
-        {
-            // before they close, check to ensure that
-            this.flush();
-
-            int count = 0;
-            // We are going to give it 5 minutes.
-            while(this.getTotalOutstanding() > 0 && count++ < 20 * 60 * 5)
-                Thread.sleep(50);
-
-            if(this.getTotalOutstanding() > 0)
-            {
-                LOGGER.error("We never cleared our buffer");
-            }
-
-
-            for(String indexName : this.getAffectedIndexes())
-            {
-                createIndexIfMissing(indexName);
-
-                if(this.veryLargeBulk)
-                {
-                    LOGGER.debug("Resetting our Refresh Interval: {}", indexName);
-                    // They are in 'very large bulk' mode and the process is finished. We now want to turn the
-                    // refreshing back on.
-                    UpdateSettingsRequest updateSettingsRequest = new UpdateSettingsRequest(indexName);
-                    updateSettingsRequest.settings(ImmutableSettings.settingsBuilder().put("refresh_interval", "5s"));
-
-                    // submit to ElasticSearch
-                    this.manager.getClient()
-                            .admin()
-                            .indices()
-                            .updateSettings(updateSettingsRequest)
-                            .actionGet();
+    void init() {
+        super.init();
+
+        pendingLock = new Object();
+        pending = new LinkedHashMap<DocumentKey, ObjectNode>();
+        windowStart = System.currentTimeMillis();
+        knownIds = CacheBuilder.newBuilder().maximumSize(knownIdsSize).build();
+
+        // close the window on time even when no more updates arrive
+        windowFlusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ElasticsearchPersistUpdater-window-%d").build());
+        windowFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(System.currentTimeMillis() - windowStart >= coalesceWindowMillis)
+                        flushInternal();
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to flush pending updates: {}", e.getMessage());
                 }
-
-                checkIndexImplications(indexName);
-
-                LOGGER.debug("Refreshing ElasticSearch index: {}", indexName);
-                this.manager.getClient()
-                        .admin()
-                        .indices()
-                        .prepareRefresh(indexName)
-                        .execute()
-                        .actionGet();
             }
-
-            LOGGER.info("Closed: Wrote[{} of {}] Failed[{}]", this.getTotalOk(), this.getTotalSent(), this.getTotalFailed());
-
-        }
-        catch(Exception e)
-        {
-            // this line of code should be logically unreachable.
-            LOGGER.warn("This is unexpected: {}", e.getMessage());
-            e.printStackTrace();
-        }
+        }, coalesceWindowMillis, coalesceWindowMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public void flush() throws IOException
+    public void close()
     {
-        flushInternal();
+        // the writer flushes this updater's pending updates before it waits for the outstanding ones
+        super.close();
+        if(windowFlusher != null)
+            windowFlusher.shutdownNow();
     }
 
+    /**
+     * Sends the pending updates, then everything buffered by the writer.
+     */
+    @Override
     public void flushInternal()
     {
-        synchronized (this)
-        {
-            // we do not have a working bulk request, we can just exit here.
-            if(this.bulkRequest == null || batchItemsSent == 0)
-                return;
-
-            // call the flush command.
-            flush(this.bulkRequest, batchItemsSent, batchSizeInBytes);
-
-            // null the flush request, this will be created in the 'add' function below
-            this.bulkRequest = null;
-
-            // record the proper statistics, and add it to our totals.
-            this.totalSizeInBytes += this.batchSizeInBytes;
-            this.totalSent += batchItemsSent;
-
-            // reset the current batch statistics
-            this.batchSizeInBytes = 0;
-            this.batchItemsSent = 0;
-
-            try
-            {
-                int count = 0;
-                if(this.getTotalOutstanding() > WAITING_DOCS_LIMIT)
-                {
-                    /****************************************************************************
-                     * Author:
-                     * Smashew
-                     *
-                     * Date:
-                     * 2013-10-20
-                     *
-                     * Note:
-                     * With the information that we have on hand. We need to develop a heuristic
-                     * that will determine when the cluster is having a problem indexing records
-                     * by telling it to pause and wait for it to catch back up. A
-                     *
-                     * There is an impact to us, the caller, whenever this happens as well. Items
-                     * that are not yet fully indexed by the server sit in a queue, on the client
-                     * that can cause the heap to overflow. This has been seen when re-indexing
-                     * large amounts of data to a small cluster. The "deletes" + "indexes" can
-                     * cause the server to have many 'outstandingItems" in queue. Running this
-                     * software with large amounts of data, on a small cluster, can re-create
-                     * this problem.
-                     *
-                     * DO NOT DELETE THESE LINES
-                     ****************************************************************************/
-
-                    // wait for the flush to catch up. We are going to cap this at
-                    while(this.getTotalOutstanding() > WAITING_DOCS_LIMIT && count++ < 500)
-                        Thread.sleep(10);
-
-                    if(this.getTotalOutstanding() > WAITING_DOCS_LIMIT)
-                        LOGGER.warn("Even after back-off there are {} items still in queue.", this.getTotalOutstanding());
-                }
-            }
-            catch(Exception e)
-            {
-                LOGGER.info("We were broken from our loop: {}", e.getMessage());
-            }
-        }
-    }
-
-    private void flush(final BulkRequestBuilder bulkRequest, final Integer thisSent, final Long thisSizeInBytes)
-    {
-        bulkRequest.execute().addListener(new ActionListener<BulkResponse>()
-        {
-            @Override
-            public void onResponse(BulkResponse bulkItemResponses)
-            {
-                if (bulkItemResponses.hasFailures())
-                    LOGGER.warn("Bulk Uploading had totalFailed: " + bulkItemResponses.buildFailureMessage());
-
-                long thisFailed = 0;
-                long thisOk = 0;
-                long thisMillis = bulkItemResponses.getTookInMillis();
-
-                // keep track of the number of totalFailed and items that we have totalOk.
-                for(BulkItemResponse resp : bulkItemResponses.getItems())
-                {
-                    if(resp.isFailed())
-                        thisFailed++;
-                    else
-                        thisOk++;
-                }
-
-                totalOk += thisOk;
-                totalFailed += thisFailed;
-                totalSeconds += (thisMillis / 1000);
-
-                if(thisSent != (thisOk + thisFailed))
-                    LOGGER.error("We sent more items than this");
-
-                LOGGER.debug("Batch[{}mb {} items with {} failures in {}ms] - Total[{}mb {} items with {} failures in {}seconds] {} outstanding]",
-                        MEGABYTE_FORMAT.format((double) thisSizeInBytes / (double)(1024*1024)), NUMBER_FORMAT.format(thisOk), NUMBER_FORMAT.format(thisFailed), NUMBER_FORMAT.format(thisMillis),
-                        MEGABYTE_FORMAT.format((double) totalSizeInBytes / (double)(1024*1024)), NUMBER_FORMAT.format(totalOk), NUMBER_FORMAT.format(totalFailed), NUMBER_FORMAT.format(totalSeconds), NUMBER_FORMAT.format(getTotalOutstanding()));
-            }
-
-            @Override
-            public void onFailure(Throwable e)
-            {
-                LOGGER.error("Error bulk loading: {}", e.getMessage());
-                e.printStackTrace();
-            }
-        });
-
-        this.notify();
+        sendPending(drainPending());
+        super.flushInternal();
     }
 
+    @Override
     public void add(String indexName, String type, String id, String json)
     {
-        UpdateRequest updateRequest;
-
         Preconditions.checkNotNull(id);
         Preconditions.checkNotNull(json);
 
-        // They didn't specify an ID, so we will create one for them.
-        updateRequest = new UpdateRequest()
-            .index(indexName)
-            .type(type)
-            .id(id)
-            .doc(json);
-
-        add(updateRequest);
-
-    }
-
-    public void add(UpdateRequest updateRequest)
-    {
-        Preconditions.checkNotNull(updateRequest);
-        synchronized (this)
-        {
-            checkAndCreateBulkRequest();
-            checkIndexImplications(updateRequest.index());
-            bulkRequest.add(updateRequest);
-            try {
-                Optional<Integer> size = Objects.firstNonNull(
-                        Optional.fromNullable(updateRequest.doc().source().length()),
-                        Optional.fromNullable(updateRequest.script().length()));
-                trackItemAndBytesWritten(size.get().longValue());
-            } catch( NullPointerException x) {
-                trackItemAndBytesWritten(1000);
-            }
+        try {
+            add(indexName, type, id, JsonMapperRegistry.reader(ObjectNode.class).<ObjectNode>readValue(json));
+        } catch (IOException e) {
+            LOGGER.warn("Malformed JSON, cannot update: {}@{}[{}]: {}", id, indexName, type, e.getMessage());
         }
     }
 
-    private void trackItemAndBytesWritten(long sizeInBytes)
+    /**
+     * Adds a partial update, merging it with any update to the same document that is pending.
+     */
+    public void add(String indexName, String type, String id, ObjectNode document)
     {
-        batchItemsSent++;
-        batchSizeInBytes += sizeInBytes;
+        Preconditions.checkNotNull(id);
+        Preconditions.checkNotNull(document);
+        Preconditions.checkState(pending != null, "Updater has not been started");
 
-        // If our queue is larger than our flush threashold, then we should flush the queue.
-        if(batchSizeInBytes > flushThresholdSizeInBytes)
-            flushInternal();
+        DocumentKey key = new DocumentKey(indexName, type, id);
+        Map<DocumentKey, ObjectNode> full = null;
+        synchronized (pendingLock)
+        {
+            ObjectNode existing = pending.get(key);
+            if(existing == null)
+                // later updates are merged into it, the caller's document is left as it was
+                pending.put(key, document.deepCopy());
+            else
+                merge(existing, document);
+
+            if(pending.size() >= maxPending)
+                full = drainPending();
+        }
+        sendPending(full);
     }
 
-    private void checkAndCreateBulkRequest()
+    private Map<DocumentKey, ObjectNode> drainPending()
     {
-        // Synchronize to ensure that we don't lose any records
-        synchronized (this)
+        if(pendingLock == null)
+            return null;
+        synchronized (pendingLock)
         {
-            if(bulkRequest == null)
-                bulkRequest = this.manager.getClient().prepareBulk();
+            windowStart = System.currentTimeMillis();
+            if(pending.isEmpty())
+                return null;
+            Map<DocumentKey, ObjectNode> drained = pending;
+            pending = new LinkedHashMap<DocumentKey, ObjectNode>();
+            return drained;
         }
     }
 
-    private void checkIndexImplications(String indexName)
+    private void sendPending(Map<DocumentKey, ObjectNode> updates)
     {
-
-        // check to see if we have seen this index before.
-        if(this.affectedIndexes.contains(indexName))
+        if(updates == null)
             return;
 
-        // we haven't log this index.
-        this.affectedIndexes.add(indexName);
+        Set<DocumentKey> existing = upsert ? null : findExisting(updates.keySet());
 
-        // Check to see if we are in 'veryLargeBulk' mode
-        // if we aren't, exit early
-        if(!this.veryLargeBulk)
-            return;
-
-
-        // They are in 'very large bulk' mode we want to turn off refreshing the index.
-
-        // Create a request then add the setting to tell it to stop refreshing the interval
-        UpdateSettingsRequest updateSettingsRequest = new UpdateSettingsRequest(indexName);
-        updateSettingsRequest.settings(ImmutableSettings.settingsBuilder().put("refresh_interval", -1));
+        for(Map.Entry<DocumentKey, ObjectNode> update : updates.entrySet())
+        {
+            DocumentKey key = update.getKey();
+            if(existing != null && !existing.contains(key))
+            {
+                LOGGER.debug("Skipping update of missing document {}@{}[{}]", key.id, key.index, key.type);
+                continue;
+            }
 
-        // submit to ElasticSearch
-        this.manager.getClient()
-                .admin()
-                .indices()
-                .updateSettings(updateSettingsRequest)
-                .actionGet();
+            UpdateRequest updateRequest = new UpdateRequest(key.index, key.type, key.id)
+                    .doc(update.getValue().toString())
+                    .docAsUpsert(upsert);
+            add(updateRequest);
+        }
     }
 
-    public void createIndexIfMissing(String indexName) {
-        if(!this.manager.getClient()
-                .admin()
-                .indices()
-                .exists(new IndicesExistsRequest(indexName))
-                .actionGet()
-                .isExists())
-        {
-            // It does not exist... So we are going to need to create the index.
-            // we are going to assume that the 'templates' that we have loaded into
-            // elasticsearch are sufficient to ensure the index is being created properly.
-            CreateIndexResponse response = this.manager.getClient().admin().indices().create(new CreateIndexRequest(indexName)).actionGet();
+    /**
+     * Finds which of the documents exist, looking up only the ones not already known to, with one ids query per index
+     * and type.
+     */
+    private Set<DocumentKey> findExisting(Set<DocumentKey> keys)
+    {
+        Set<DocumentKey> existing = new HashSet<DocumentKey>();
+        Map<List<String>, Set<String>> unknown = new HashMap<List<String>, Set<String>>();
 
-            if(response.isAcknowledged())
+        for(DocumentKey key : keys)
+        {
+            if(knownIds.getIfPresent(key) != null)
             {
-                LOGGER.info("Index {} did not exist. The index was automatically created from the stored ElasticSearch Templates.", indexName);
+                existing.add(key);
+                continue;
             }
-            else
+            List<String> indexAndType = Arrays.asList(key.index, key.type);
+            Set<String> ids = unknown.get(indexAndType);
+            if(ids == null)
             {
-                LOGGER.error("Index {} did not exist. While attempting to create the index from stored ElasticSearch Templates we were unable to get an acknowledgement.", indexName);
-                LOGGER.error("Error Message: {}", response.toString());
-                throw new RuntimeException("Unable to create index " + indexName);
+                ids = new HashSet<String>();
+                unknown.put(indexAndType, ids);
             }
+            ids.add(key.id);
         }
-    }
 
-    public void add(String indexName, String type, Map<String, Object> toImport)
-    {
-        for (String id : toImport.keySet())
-            add(indexName, type, id, (String)toImport.get(id));
-    }
-
-    private void checkThenAddBatch(String index, String type, Map<String, String> workingBatch)
-    {
-        Set<String> invalidIDs = checkIds(workingBatch.keySet(), index, type);
-
-        for(String toAddId : workingBatch.keySet())
-            if(!invalidIDs.contains(toAddId))
-                add(index, type, toAddId, workingBatch.get(toAddId));
-
-        LOGGER.info("Adding Batch: {} -> {}", workingBatch.size(), invalidIDs.size());
+        for(Map.Entry<List<String>, Set<String>> lookup : unknown.entrySet())
+        {
+            String lookupIndex = lookup.getKey().get(0);
+            String lookupType = lookup.getKey().get(1);
+            for(String id : checkIds(lookup.getValue(), lookupIndex, lookupType))
+            {
+                DocumentKey key = new DocumentKey(lookupIndex, lookupType, id);
+                existing.add(key);
+                knownIds.put(key, Boolean.TRUE);
+            }
+        }
+        return existing;
     }
 
-
     private Set<String> checkIds(Set<String> input, String index, String type) {
 
         IdsQueryBuilder idsFilterBuilder = new IdsQueryBuilder();
@@ -487,29 +310,68 @@ public class ElasticsearchPersistUpdater extends ElasticsearchPersistWriter impl
         for(String s : input)
             idsFilterBuilder.addIds(s);
 
-        SearchRequestBuilder searchRequestBuilder = this.manager.getClient()
+        Set<String> toReturn = new HashSet<String>();
+
+        for(SearchHit hit : getClient()
                 .prepareSearch(index)
                 .setTypes(type)
                 .setQuery(idsFilterBuilder)
                 .addField("_id")
-                .setSize(input.size());
-
-        SearchHits hits = searchRequestBuilder.execute()
+                .setSize(input.size())
+                .execute()
                 .actionGet()
-                .getHits();
-
-        Set<String> toReturn = new HashSet<String>();
-
-        for(SearchHit hit : hits) {
+                .getHits())
+        {
             toReturn.add(hit.getId());
         }
 
         return toReturn;
     }
 
-    @Override
-    public void prepare(Object configurationObject) {
-        start();
+    /**
+     * Merges a partial document into another the way elasticsearch applies partial updates: objects are merged field
+     * by field, anything else is replaced.
+     */
+    static void merge(ObjectNode target, ObjectNode update)
+    {
+        Iterator<Map.Entry<String, JsonNode>> fields = update.fields();
+        while(fields.hasNext())
+        {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode current = target.get(field.getKey());
+            if(current != null && current.isObject() && field.getValue().isObject())
+                merge((ObjectNode) current, (ObjectNode) field.getValue());
+            else
+                target.set(field.getKey(), field.getValue().deepCopy());
+        }
     }
 
+    private static class DocumentKey
+    {
+        private final String index;
+        private final String type;
+        private final String id;
+
+        private DocumentKey(String index, String type, String id)
+        {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof DocumentKey))
+                return false;
+            DocumentKey other = (DocumentKey) o;
+            return Objects.equal(index, other.index) && Objects.equal(type, other.type) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(index, type, id);
+        }
+    }
 }
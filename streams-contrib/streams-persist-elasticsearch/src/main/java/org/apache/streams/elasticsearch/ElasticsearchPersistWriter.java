@@ -1,34 +1,44 @@
 package org.apache.streams.elasticsearch;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.core.tasks.StreamsPersistWriterTask;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
 import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.index.query.IdsQueryBuilder;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHits;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.node.NodeClosedException;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,8 +46,29 @@ import java.io.*;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes documents into elasticsearch with bulk requests.
+ *
+ * Each thread that adds documents appends to its own buffer, so adding does not contend on the writer.  A buffer is
+ * sent as a bulk request when it reaches batchSize documents or batchBytes bytes, or once its first document has
+ * waited lingerMillis, and at most maxInFlightBulks bulk requests are outstanding at once; threads that fill a buffer
+ * while the limit is reached block until a response arrives.
+ *
+ * With adaptiveBulk on, a {@link BulkSizeController} adjusts the bulk size and the concurrency to the cluster's
+ * response times and rejections.  Items the cluster rejects because it is overloaded, and bulks that could not reach a
+ * node, are resent after a jittered backoff, up to maxRetries times, instead of being dropped.  Any other failure is
+ * final.
+ */
 public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushable, Closeable
 {
     public final static String STREAMS_ID = "ElasticsearchPersistWriter";
@@ -49,58 +80,197 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
     private ElasticsearchClientManager manager;
     private Client client;
     private String parentID = null;
-    private BulkRequestBuilder bulkRequest;
-    private OutputStreamWriter currentWriter = null;
+    private String routingField = null;
 
-    private int batchSize = 50;
-    private int totalRecordsWritten = 0;
     private boolean veryLargeBulk = false;  // by default this setting is set to false
 
     private final static Long DEFAULT_BULK_FLUSH_THRESHOLD = 5l * 1024l * 1024l;
-    private static final long WAITING_DOCS_LIMIT = 10000;
+    private final static int DEFAULT_BATCH_SIZE = 1000;
+    private final static int DEFAULT_MAX_IN_FLIGHT_BULKS = 4;
+    private final static long CLOSE_TIMEOUT_MINUTES = 5;
+    private final static long DEFAULT_MIN_BATCH_BYTES = 512l * 1024l;
+    private final static long DEFAULT_MAX_BATCH_BYTES = 15l * 1024l * 1024l;
+    private final static long DEFAULT_TARGET_BULK_MILLIS = 2000;
+    private final static int DEFAULT_MAX_RETRIES = 8;
+    private final static long DEFAULT_LINGER_MILLIS = 1000;
+    private final static long SHARD_ROUTING_REFRESH_MILLIS = 30000;
+    private final static long RETRY_BACKOFF_MILLIS = 200;
+    private final static long MAX_RETRY_BACKOFF_MILLIS = 30000;
+    private final static String REJECTED_EXCEPTION = "EsRejectedExecutionException";
 
     public volatile long flushThresholdSizeInBytes = DEFAULT_BULK_FLUSH_THRESHOLD;
-
-    private volatile int totalSent = 0;
-    private volatile int totalSeconds = 0;
-    private volatile int totalOk = 0;
-    private volatile int totalFailed = 0;
-    private volatile int totalBatchCount = 0;
-    private volatile long totalSizeInBytes = 0;
-
-    private volatile long batchSizeInBytes = 0;
-    private volatile int batchItemsSent = 0;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxInFlightBulks = DEFAULT_MAX_IN_FLIGHT_BULKS;
+    private boolean adaptiveBulk = false;
+    private long minBatchBytes = DEFAULT_MIN_BATCH_BYTES;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private long targetBulkMillis = DEFAULT_TARGET_BULK_MILLIS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long lingerMillis = DEFAULT_LINGER_MILLIS;
+    private String indexPattern = null;
+    private boolean shardAware = false;
+
+    private transient DateTimeFormatter indexFormatter;
+    private transient ShardRouter shardRouter;
+
+    private final AtomicInteger totalSent = new AtomicInteger();
+    private final AtomicInteger totalSeconds = new AtomicInteger();
+    private final AtomicInteger totalOk = new AtomicInteger();
+    private final AtomicInteger totalFailed = new AtomicInteger();
+    private final AtomicInteger totalBatchCount = new AtomicInteger();
+    private final AtomicLong totalSizeInBytes = new AtomicLong();
+    private final AtomicInteger totalRetried = new AtomicInteger();
+
+    // bulk pipeline, created by start()
+    private transient AdjustableSemaphore inFlightBulks;
+    private transient BulkSizeController controller;
+    private transient ScheduledExecutorService retryExecutor;
+    private transient ScheduledExecutorService lingerFlusher;
+    private transient Object outstandingMonitor;
+    private transient ThreadLocal<Map<String, BulkBuffer>> threadBuffers;
+    private transient Queue<BulkBuffer> allBuffers;
 
     public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0);
         this.batchSize = batchSize;
     }
 
+    /**
+     * Sets the top level field that holds the id of each document's parent.
+     * @param parentID
+     */
+    public void setParentID(String parentID) {
+        this.parentID = parentID;
+    }
+
+    /**
+     * Sets the top level field whose value routes each document to a shard.
+     * @param routingField
+     */
+    public void setRoutingField(String routingField) {
+        this.routingField = routingField;
+    }
+
     public void setVeryLargeBulk(boolean veryLargeBulk) {
         this.veryLargeBulk = veryLargeBulk;
     }
 
-    private final List<String> affectedIndexes = new ArrayList<String>();
+    /**
+     * Sets the maximum number of outstanding bulk requests.  Takes effect on start.
+     * @param maxInFlightBulks
+     */
+    public void setMaxInFlightBulks(int maxInFlightBulks) {
+        Preconditions.checkArgument(maxInFlightBulks > 0);
+        this.maxInFlightBulks = maxInFlightBulks;
+    }
+
+    /**
+     * Turns adapting the bulk size and concurrency on or off, it is off by default.  Takes effect on start.
+     * @param adaptiveBulk
+     */
+    public void setAdaptiveBulk(boolean adaptiveBulk) {
+        this.adaptiveBulk = adaptiveBulk;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        Preconditions.checkArgument(maxRetries >= 0);
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets how long a document may wait in a buffer that is not full before the buffer is sent anyway.  Takes effect
+     * on start.
+     * @param lingerMillis
+     */
+    public void setLingerMillis(long lingerMillis) {
+        Preconditions.checkArgument(lingerMillis > 0);
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Sends each bulk straight to the node holding the primary shards of its documents, grouping documents by that
+     * node, rather than through any node.  Documents whose shard cannot be worked out are sent as usual.  Takes effect
+     * on start.
+     * @param shardAware
+     */
+    public void setShardAware(boolean shardAware) {
+        this.shardAware = shardAware;
+    }
+
+    /**
+     * Routes each datum to an index named from its timestamp, in UTC, instead of the configured index.  The pattern is
+     * a joda DateTimeFormat pattern with literal text quoted, for example 'activity-'yyyy.MM.dd.  Indices are created
+     * from the stored templates when first written to.  Takes effect on start.
+     * @param indexPattern
+     */
+    public void setIndexPattern(String indexPattern) {
+        if(indexPattern != null)
+            DateTimeFormat.forPattern(indexPattern);
+        this.indexPattern = indexPattern;
+    }
+
+    /**
+     * The index a datum is written to: the configured index, or the one its timestamp falls in when routing by time.
+     * Datums without a timestamp go to the index for the current time.
+     */
+    public String getIndex(StreamsDatum streamsDatum) {
+        if(indexFormatter == null)
+            return config.getIndex();
+        DateTime timestamp = streamsDatum.getTimestamp();
+        return indexFormatter.print(timestamp != null ? timestamp : new DateTime(DateTimeZone.UTC));
+    }
+
+    private final Set<String> affectedIndexes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    public int getTotalOutstanding()                           { return this.totalSent - (this.totalFailed + this.totalOk); }
+    public int getTotalOutstanding()                           { return this.totalSent.get() - (this.totalFailed.get() + this.totalOk.get()); }
     public long getFlushThresholdSizeInBytes()                 { return flushThresholdSizeInBytes; }
-    public int getTotalSent()                                  { return totalSent; }
-    public int getTotalSeconds()                               { return totalSeconds; }
-    public int getTotalOk()                                    { return totalOk; }
-    public int getTotalFailed()                                { return totalFailed; }
-    public int getTotalBatchCount()                            { return totalBatchCount; }
-    public long getTotalSizeInBytes()                          { return totalSizeInBytes; }
-    public long getBatchSizeInBytes()                          { return batchSizeInBytes; }
-    public int getBatchItemsSent()                             { return batchItemsSent; }
-    public List<String> getAffectedIndexes()                   { return this.affectedIndexes; }
+    public int getTotalSent()                                  { return totalSent.get(); }
+    public int getTotalSeconds()                               { return totalSeconds.get(); }
+    public int getTotalOk()                                    { return totalOk.get(); }
+    public int getTotalFailed()                                { return totalFailed.get(); }
+    public int getTotalBatchCount()                            { return totalBatchCount.get(); }
+    public int getTotalRetried()                               { return totalRetried.get(); }
+    public long getTotalSizeInBytes()                          { return totalSizeInBytes.get(); }
+    public int getBatchSize()                                  { return batchSize; }
+    public int getMaxInFlightBulks()                           { return maxInFlightBulks; }
+    public List<String> getAffectedIndexes()                   { return new ArrayList<String>(this.affectedIndexes); }
 
     public void setFlushThresholdSizeInBytes(long sizeInBytes)  { this.flushThresholdSizeInBytes = sizeInBytes; }
 
+    /**
+     * Size in bytes at which buffers are currently sent, adapted to the cluster when adaptiveBulk is on.
+     */
+    public long getCurrentBatchBytes() {
+        BulkSizeController controller = this.controller;
+        return controller != null ? controller.getBatchBytes() : flushThresholdSizeInBytes;
+    }
+
+    /**
+     * Bytes buffered by all threads and not yet sent.
+     */
+    public long getBatchSizeInBytes() {
+        long bytes = 0;
+        if(allBuffers != null)
+            for(BulkBuffer buffer : allBuffers)
+                bytes += buffer.sizeInBytes;
+        return bytes;
+    }
+
+    /**
+     * Documents buffered by all threads and not yet sent.
+     */
+    public int getBatchItemsSent() {
+        int items = 0;
+        if(allBuffers != null)
+            for(BulkBuffer buffer : allBuffers)
+                items += buffer.items;
+        return items;
+    }
+
     Thread task;
 
     protected volatile Queue<StreamsDatum> persistQueue;
 
-    private ObjectMapper mapper = new ObjectMapper();
-
     private ElasticsearchWriterConfiguration config;
 
     public ElasticsearchPersistWriter() {
@@ -110,28 +280,48 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
 
     public ElasticsearchPersistWriter(ElasticsearchWriterConfiguration config) {
         this.config = config;
+        if(config.getBatchSize() != null)
+            setBatchSize(config.getBatchSize().intValue());
+        if(config.getBatchBytes() != null)
+            setFlushThresholdSizeInBytes(config.getBatchBytes());
+        if(config.getMaxInFlightBulks() != null)
+            setMaxInFlightBulks(config.getMaxInFlightBulks().intValue());
+        if(config.getAdaptiveBulk() != null)
+            setAdaptiveBulk(config.getAdaptiveBulk());
+        if(config.getMinBatchBytes() != null)
+            this.minBatchBytes = config.getMinBatchBytes();
+        if(config.getMaxBatchBytes() != null)
+            this.maxBatchBytes = config.getMaxBatchBytes();
+        if(config.getTargetBulkMillis() != null)
+            this.targetBulkMillis = config.getTargetBulkMillis();
+        if(config.getMaxRetries() != null)
+            setMaxRetries(config.getMaxRetries().intValue());
+        if(config.getIndexPattern() != null)
+            setIndexPattern(config.getIndexPattern());
+        if(config.getParentField() != null)
+            setParentID(config.getParentField());
+        if(config.getRoutingField() != null)
+            setRoutingField(config.getRoutingField());
+        if(config.getShardAware() != null)
+            setShardAware(config.getShardAware());
+        if(config.getLingerMillis() != null)
+            setLingerMillis(config.getLingerMillis());
     }
 
-    private static final int  BYTES_IN_MB = 1024*1024;
-    private static final int  BYTES_BEFORE_FLUSH = 5 * BYTES_IN_MB;
-    private volatile int  totalByteCount = 0;
-    private volatile int  byteCount = 0;
-
     public boolean isConnected() 		                { return (client != null); }
 
+    protected Client getClient()                        { return client; }
+
     @Override
     public void write(StreamsDatum streamsDatum) {
 
-        String json;
         try {
             String id = streamsDatum.getId();
             if( streamsDatum.getDocument() instanceof String )
-                json = streamsDatum.getDocument().toString();
-            else {
-                json = mapper.writeValueAsString(streamsDatum.getDocument());
-            }
-
-            add(config.getIndex(), config.getType(), id, json);
+                add(getIndex(streamsDatum), config.getType(), id, (String) streamsDatum.getDocument());
+            else
+                // straight to bytes, jackson recycles its buffers per thread
+                add(getIndex(streamsDatum), config.getType(), id, JsonMapperRegistry.writer().writeValueAsBytes(streamsDatum.getDocument()));
 
         } catch (JsonProcessingException e) {
             LOGGER.warn("{} {}", e.getLocation(), e.getMessage());
@@ -144,9 +334,51 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
         manager = new ElasticsearchClientManager(config);
         client = manager.getClient();
 
+        init();
+
         LOGGER.info(client.toString());
     }
 
+    /**
+     * Sets up the bulk pipeline.
+     */
+    void init() {
+        inFlightBulks = new AdjustableSemaphore(maxInFlightBulks);
+        outstandingMonitor = new Object();
+        if(adaptiveBulk)
+            controller = new BulkSizeController(flushThresholdSizeInBytes,
+                    Math.min(minBatchBytes, flushThresholdSizeInBytes),
+                    Math.max(maxBatchBytes, flushThresholdSizeInBytes),
+                    maxInFlightBulks, targetBulkMillis);
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(STREAMS_ID + "-retry-%d").build());
+        if(indexPattern != null)
+            indexFormatter = DateTimeFormat.forPattern(indexPattern).withZoneUTC();
+        if(shardAware)
+            shardRouter = new ShardRouter(manager, SHARD_ROUTING_REFRESH_MILLIS);
+        allBuffers = new ConcurrentLinkedQueue<BulkBuffer>();
+        threadBuffers = new ThreadLocal<Map<String, BulkBuffer>>() {
+            @Override
+            protected Map<String, BulkBuffer> initialValue() {
+                return new HashMap<String, BulkBuffer>();
+            }
+        };
+
+        // send what has waited long enough even when the threads that added it have stopped adding
+        lingerFlusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(STREAMS_ID + "-linger-%d").build());
+        lingerFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushLingering(System.currentTimeMillis());
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to flush lingering documents: {}", e.getMessage());
+                }
+            }
+        }, lingerMillis, Math.max(1, lingerMillis / 2), TimeUnit.MILLISECONDS);
+    }
+
     public void cleanUp() {
 
         try {
@@ -165,16 +397,17 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
             // before they close, check to ensure that
             this.flush();
 
-            int count = 0;
             // We are going to give it 5 minutes.
-            while(this.getTotalOutstanding() > 0 && count++ < 20 * 60 * 5)
-                Thread.sleep(50);
-
-            if(this.getTotalOutstanding() > 0)
+            if(!awaitOutstanding(TimeUnit.MINUTES.toMillis(CLOSE_TIMEOUT_MINUTES)))
             {
                 LOGGER.error("We never cleared our buffer");
             }
 
+            if(retryExecutor != null)
+                retryExecutor.shutdownNow();
+            if(lingerFlusher != null)
+                lingerFlusher.shutdownNow();
+
 
             for(String indexName : this.getAffectedIndexes())
             {
@@ -207,7 +440,7 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
                         .actionGet();
             }
 
-            LOGGER.info("Closed: Wrote[{} of {}] Failed[{}]", this.getTotalOk(), this.getTotalSent(), this.getTotalFailed());
+            LOGGER.info("Closed: Wrote[{} of {}] Failed[{}] Retried[{}]", this.getTotalOk(), this.getTotalSent(), this.getTotalFailed(), this.getTotalRetried());
 
         }
         catch(Exception e)
@@ -224,115 +457,304 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
         flushInternal();
     }
 
+    /**
+     * Sends everything buffered by all threads.  Does not wait for the responses.
+     */
     public void flushInternal()
     {
-        synchronized (this)
+        // we do not have a working pipeline, we can just exit here.
+        if(allBuffers == null)
+            return;
+
+        for(BulkBuffer buffer : allBuffers)
         {
-            // we do not have a working bulk request, we can just exit here.
-            if(this.bulkRequest == null || batchItemsSent == 0)
-                return;
+            PendingBulk pending = buffer.drain();
+            if(pending != null)
+                send(pending);
+        }
+    }
+
+    /**
+     * Sends the buffers whose first document has waited lingerMillis, and retires the buffers nothing has been added
+     * to for lingerMillis, so buffers for indices and nodes that are no longer written to, or for threads that have
+     * gone, are not kept forever.
+     */
+    void flushLingering(long now)
+    {
+        if(allBuffers == null)
+            return;
+
+        for(BulkBuffer buffer : allBuffers)
+        {
+            PendingBulk pending = buffer.drainIfLingering(now);
+            if(pending != null)
+                send(pending);
+            else
+                buffer.retireIfIdle(now);
+        }
+    }
+
+    int getBufferCount()
+    {
+        return allBuffers != null ? allBuffers.size() : 0;
+    }
 
-            // call the flush command.
-            flush(this.bulkRequest, batchItemsSent, batchSizeInBytes);
+    void send(final PendingBulk pending)
+    {
+        /****************************************************************************
+         * Author:
+         * Smashew
+         *
+         * Date:
+         * 2013-10-20
+         *
+         * Note:
+         * With the information that we have on hand. We need to develop a heuristic
+         * that will determine when the cluster is having a problem indexing records
+         * by telling it to pause and wait for it to catch back up. A
+         *
+         * There is an impact to us, the caller, whenever this happens as well. Items
+         * that are not yet fully indexed by the server sit in a queue, on the client
+         * that can cause the heap to overflow. This has been seen when re-indexing
+         * large amounts of data to a small cluster. The "deletes" + "indexes" can
+         * cause the server to have many 'outstandingItems" in queue. Running this
+         * software with large amounts of data, on a small cluster, can re-create
+         * this problem.
+         *
+         * DO NOT DELETE THESE LINES
+         ****************************************************************************/
+
+        // Items that are being resent were counted the first time.
+        if(pending.attempt == 0)
+        {
+            totalSizeInBytes.addAndGet(pending.sizeInBytes);
+            totalSent.addAndGet(pending.items);
+        }
 
-            // null the flush request, this will be created in the 'add' function below
-            this.bulkRequest = null;
+        // Wait for a slot, this is what holds writers back while the cluster catches up.
+        try
+        {
+            inFlightBulks.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted waiting to send a bulk of {} items, they were dropped", pending.items);
+            completed(0, pending.items);
+            return;
+        }
 
-            // record the proper statistics, and add it to our totals.
-            this.totalSizeInBytes += this.batchSizeInBytes;
-            this.totalSent += batchItemsSent;
+        totalBatchCount.incrementAndGet();
 
-            // reset the current batch statistics
-            this.batchSizeInBytes = 0;
-            this.batchItemsSent = 0;
+        Client target = client;
+        if(pending.nodeId != null)
+        {
+            Client nodeClient = shardRouter.getNodeClient(pending.nodeId);
+            if(nodeClient != null)
+                target = nodeClient;
+        }
 
-            try
+        try
+        {
+            target.bulk(pending.request, new ActionListener<BulkResponse>()
             {
-                int count = 0;
-                if(this.getTotalOutstanding() > WAITING_DOCS_LIMIT)
+                @Override
+                public void onResponse(BulkResponse bulkItemResponses)
                 {
-                    /****************************************************************************
-                     * Author:
-                     * Smashew
-                     *
-                     * Date:
-                     * 2013-10-20
-                     *
-                     * Note:
-                     * With the information that we have on hand. We need to develop a heuristic
-                     * that will determine when the cluster is having a problem indexing records
-                     * by telling it to pause and wait for it to catch back up. A
-                     *
-                     * There is an impact to us, the caller, whenever this happens as well. Items
-                     * that are not yet fully indexed by the server sit in a queue, on the client
-                     * that can cause the heap to overflow. This has been seen when re-indexing
-                     * large amounts of data to a small cluster. The "deletes" + "indexes" can
-                     * cause the server to have many 'outstandingItems" in queue. Running this
-                     * software with large amounts of data, on a small cluster, can re-create
-                     * this problem.
-                     *
-                     * DO NOT DELETE THESE LINES
-                     ****************************************************************************/
-
-                    // wait for the flush to catch up. We are going to cap this at
-                    while(this.getTotalOutstanding() > WAITING_DOCS_LIMIT && count++ < 500)
-                        Thread.sleep(10);
-
-                    if(this.getTotalOutstanding() > WAITING_DOCS_LIMIT)
-                        LOGGER.warn("Even after back-off there are {} items still in queue.", this.getTotalOutstanding());
+                    try
+                    {
+                        onBulkResponse(pending, bulkItemResponses);
+                    }
+                    finally
+                    {
+                        inFlightBulks.release();
+                    }
                 }
-            }
-            catch(Exception e)
-            {
-                LOGGER.info("We were broken from our loop: {}", e.getMessage());
-            }
+
+                @Override
+                public void onFailure(Throwable e)
+                {
+                    try
+                    {
+                        LOGGER.error("Error bulk loading: {}", e.getMessage());
+                        if(!isRetryable(e))
+                        {
+                            completed(0, pending.items);
+                            return;
+                        }
+                        // the node may have gone, or its shards moved
+                        if(pending.nodeId != null)
+                            shardRouter.invalidate();
+                        if(controller != null)
+                            adjustConcurrency(controller.onFailure());
+                        retryOrFail(pending, pending.request.requests());
+                    }
+                    finally
+                    {
+                        inFlightBulks.release();
+                    }
+                }
+            });
+        }
+        catch(RuntimeException e)
+        {
+            inFlightBulks.release();
+            LOGGER.error("Unable to send bulk: {}", e.getMessage());
+            completed(0, pending.items);
         }
     }
 
-    private void flush(final BulkRequestBuilder bulkRequest, final Integer thisSent, final Long thisSizeInBytes)
+    private void onBulkResponse(PendingBulk pending, BulkResponse bulkItemResponses)
     {
-        bulkRequest.execute().addListener(new ActionListener<BulkResponse>()
+        if (bulkItemResponses.hasFailures())
+            LOGGER.warn("Bulk Uploading had totalFailed: " + bulkItemResponses.buildFailureMessage());
+
+        int thisFailed = 0;
+        int thisOk = 0;
+        long thisMillis = bulkItemResponses.getTookInMillis();
+        List<ActionRequest> rejected = null;
+
+        // keep track of the number of totalFailed and items that we have totalOk, and collect the items that the
+        // cluster was too busy to handle.
+        for(BulkItemResponse resp : bulkItemResponses.getItems())
         {
-            @Override
-            public void onResponse(BulkResponse bulkItemResponses)
+            if(!resp.isFailed())
+                thisOk++;
+            else if(isRejected(resp))
             {
-                if (bulkItemResponses.hasFailures())
-                    LOGGER.warn("Bulk Uploading had totalFailed: " + bulkItemResponses.buildFailureMessage());
+                if(rejected == null)
+                    rejected = new ArrayList<ActionRequest>();
+                rejected.add(pending.request.requests().get(resp.getItemId()));
+            }
+            else
+                thisFailed++;
+        }
+        int thisRejected = rejected == null ? 0 : rejected.size();
+
+        totalSeconds.addAndGet((int) (thisMillis / 1000));
+
+        if(pending.items != (thisOk + thisFailed + thisRejected))
+            LOGGER.error("We sent more items than this");
+
+        if(controller != null)
+            adjustConcurrency(controller.onResponse(thisMillis, thisRejected));
+
+        if(rejected != null)
+            retryOrFail(pending, rejected);
+
+        completed(thisOk, thisFailed);
+
+        if(LOGGER.isDebugEnabled())
+            LOGGER.debug("Batch[{}mb {} items with {} failures in {}ms] - Total[{}mb {} items with {} failures in {}seconds] {} outstanding]",
+                MEGABYTE_FORMAT.format((double) pending.sizeInBytes / (double)(1024*1024)), NUMBER_FORMAT.format(thisOk), NUMBER_FORMAT.format(thisFailed), NUMBER_FORMAT.format(thisMillis),
+                MEGABYTE_FORMAT.format((double) getTotalSizeInBytes() / (double)(1024*1024)), NUMBER_FORMAT.format(getTotalOk()), NUMBER_FORMAT.format(getTotalFailed()), NUMBER_FORMAT.format(getTotalSeconds()), NUMBER_FORMAT.format(getTotalOutstanding()));
+    }
 
-                long thisFailed = 0;
-                long thisOk = 0;
-                long thisMillis = bulkItemResponses.getTookInMillis();
+    /**
+     * Whether a whole bulk failed in a way that sending it again can fix: the cluster was too busy to take it, or it
+     * could not be delivered to a node.
+     */
+    static boolean isRetryable(Throwable e)
+    {
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+        return cause instanceof EsRejectedExecutionException
+                || cause instanceof NoNodeAvailableException
+                || cause instanceof ConnectTransportException
+                || cause instanceof NodeClosedException;
+    }
+
+    private static boolean isRejected(BulkItemResponse resp)
+    {
+        String message = resp.getFailureMessage();
+        return message != null && message.contains(REJECTED_EXCEPTION);
+    }
+
+    /**
+     * Schedules items to be resent after a backoff, or counts them as failed once they have used up their retries.
+     */
+    private void retryOrFail(PendingBulk pending, List<ActionRequest> requests)
+    {
+        int attempt = pending.attempt + 1;
+        if(attempt > maxRetries || retryExecutor.isShutdown())
+        {
+            LOGGER.warn("Giving up on {} items after {} attempts", requests.size(), attempt);
+            completed(0, requests.size());
+            return;
+        }
 
-                // keep track of the number of totalFailed and items that we have totalOk.
-                for(BulkItemResponse resp : bulkItemResponses.getItems())
+        BulkRequest retry = new BulkRequest();
+        for(ActionRequest request : requests)
+            retry.add(request);
+        // retries go through any node, the shards may have moved
+        final PendingBulk retryBulk = new PendingBulk(retry, null, requests.size(),
+                pending.sizeInBytes * requests.size() / Math.max(pending.items, 1), attempt);
+
+        long backoff = controller != null
+                ? controller.backoffMillis(attempt, RETRY_BACKOFF_MILLIS, MAX_RETRY_BACKOFF_MILLIS)
+                : RETRY_BACKOFF_MILLIS * attempt;
+        totalRetried.addAndGet(requests.size());
+        LOGGER.debug("Resending {} rejected items in {}ms, attempt {}", requests.size(), backoff, attempt);
+        try
+        {
+            retryExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    if(resp.isFailed())
-                        thisFailed++;
-                    else
-                        thisOk++;
+                    send(retryBulk);
                 }
+            }, backoff, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            completed(0, requests.size());
+        }
+    }
 
-                totalOk += thisOk;
-                totalFailed += thisFailed;
-                totalSeconds += (thisMillis / 1000);
-
-                if(thisSent != (thisOk + thisFailed))
-                    LOGGER.error("We sent more items than this");
+    private void adjustConcurrency(int delta)
+    {
+        if(delta > 0)
+            inFlightBulks.release(delta);
+        else if(delta < 0)
+            inFlightBulks.reduce(-delta);
+    }
 
-                LOGGER.debug("Batch[{}mb {} items with {} failures in {}ms] - Total[{}mb {} items with {} failures in {}seconds] {} outstanding]",
-                        MEGABYTE_FORMAT.format((double) thisSizeInBytes / (double)(1024*1024)), NUMBER_FORMAT.format(thisOk), NUMBER_FORMAT.format(thisFailed), NUMBER_FORMAT.format(thisMillis),
-                        MEGABYTE_FORMAT.format((double) totalSizeInBytes / (double)(1024*1024)), NUMBER_FORMAT.format(totalOk), NUMBER_FORMAT.format(totalFailed), NUMBER_FORMAT.format(totalSeconds), NUMBER_FORMAT.format(getTotalOutstanding()));
+    /**
+     * Records items that are done with, and wakes anyone waiting for outstanding items.
+     */
+    private void completed(int ok, int failed)
+    {
+        totalOk.addAndGet(ok);
+        totalFailed.addAndGet(failed);
+        if(getTotalOutstanding() <= 0)
+        {
+            synchronized (outstandingMonitor)
+            {
+                outstandingMonitor.notifyAll();
             }
+        }
+    }
 
-            @Override
-            public void onFailure(Throwable e)
+    /**
+     * Waits until every item sent has been acknowledged or has failed.
+     * @param timeoutMillis
+     * @return false if there are still outstanding items
+     */
+    private boolean awaitOutstanding(long timeoutMillis) throws InterruptedException
+    {
+        if(outstandingMonitor == null)
+            return getTotalOutstanding() <= 0;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (outstandingMonitor)
+        {
+            long remaining = timeoutMillis;
+            while(getTotalOutstanding() > 0 && remaining > 0)
             {
-                LOGGER.error("Error bulk loading: {}", e.getMessage());
-                e.printStackTrace();
+                outstandingMonitor.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
             }
-        });
-
-        this.notify();
+        }
+        return getTotalOutstanding() <= 0;
     }
 
     public void add(String indexName, String type, String json)
@@ -341,6 +763,15 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
     }
 
     public void add(String indexName, String type, String id, String json)
+    {
+        add(indexName, type, id, json.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Adds a document already encoded as UTF-8 json.  The bytes are handed to the bulk request as they are, and must
+     * not be modified afterwards.
+     */
+    public void add(String indexName, String type, String id, byte[] source)
     {
         IndexRequest indexRequest;
 
@@ -350,91 +781,145 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
         else
             indexRequest = new IndexRequest(indexName, type, id);
 
-        indexRequest.source(json);
+        indexRequest.source(source);
 
-        // If there is a parentID that is associated with this bulk, then we are
-        // going to have to parse the raw JSON and attempt to dereference
-        // what the parent document should be
-        if(parentID != null)
+        // If there is a parentID or routing field associated with this bulk, then we read just far enough into the
+        // document to find them.
+        if(parentID != null || routingField != null)
         {
             try
             {
-                // The JSONObject constructor can throw an exception, it is called
-                // out explicitly here so we can catch it.
-                indexRequest = indexRequest.parent(new JSONObject(json).getString(parentID));
+                String[] values = readTopLevelFields(source, parentID, routingField);
+                if(values[0] != null)
+                    indexRequest.parent(values[0]);
+                if(values[1] != null)
+                    indexRequest.routing(values[1]);
             }
-            catch(JSONException e)
+            catch(IOException e)
             {
                 LOGGER.warn("Malformed JSON, cannot grab parentID: {}@{}[{}]: {}", id, indexName, type, e.getMessage());
-                totalFailed++;
             }
         }
         add(indexRequest);
     }
 
-    public void add(UpdateRequest updateRequest)
+    /**
+     * Reads the values of top level fields, stopping as soon as all of them have been seen.  Objects and arrays are
+     * skipped without being parsed into values.
+     * @param source json document
+     * @param fields names of the fields, null entries are not looked for
+     * @return the value of each field as text, null where it is missing or not a scalar
+     */
+    static String[] readTopLevelFields(byte[] source, String... fields) throws IOException
     {
-        Preconditions.checkNotNull(updateRequest);
-        synchronized (this)
+        String[] values = new String[fields.length];
+        int wanted = 0;
+        for(String field : fields)
+            if(field != null)
+                wanted++;
+
+        JsonParser parser = JsonMapperRegistry.getFactory().createParser(source);
+        try
         {
-            checkAndCreateBulkRequest();
-            checkIndexImplications(updateRequest.index());
-            bulkRequest.add(updateRequest);
-            try {
-                Optional<Integer> size = Objects.firstNonNull(
-                        Optional.fromNullable(updateRequest.doc().source().length()),
-                        Optional.fromNullable(updateRequest.script().length()));
-                trackItemAndBytesWritten(size.get().longValue());
-            } catch( NullPointerException x) {
-                trackItemAndBytesWritten(1000);
+            if(parser.nextToken() != JsonToken.START_OBJECT)
+                throw new JsonParseException("Document is not an object", parser.getCurrentLocation());
+            while(wanted > 0 && parser.nextToken() == JsonToken.FIELD_NAME)
+            {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                for(int i = 0; i < fields.length; i++)
+                {
+                    if(values[i] == null && name.equals(fields[i]))
+                    {
+                        if(value.isScalarValue() && value != JsonToken.VALUE_NULL)
+                            values[i] = parser.getText();
+                        wanted--;
+                    }
+                }
+                parser.skipChildren();
             }
         }
+        finally
+        {
+            parser.close();
+        }
+        return values;
+    }
+
+    public void add(UpdateRequest updateRequest)
+    {
+        Preconditions.checkNotNull(updateRequest);
+        checkIndexImplications(updateRequest.index());
+        long size;
+        try {
+            Optional<Integer> length = Objects.firstNonNull(
+                    Optional.fromNullable(updateRequest.doc().source().length()),
+                    Optional.fromNullable(updateRequest.script().length()));
+            size = length.get().longValue();
+        } catch( NullPointerException x) {
+            size = 1000;
+        }
+        add(updateRequest, updateRequest.index(), updateRequest.id(), updateRequest.routing(), size);
     }
 
     public void add(IndexRequest indexRequest)
     {
-        synchronized (this)
-        {
-            checkAndCreateBulkRequest();
-            checkIndexImplications(indexRequest.index());
-            bulkRequest.add(indexRequest);
-            try {
-                trackItemAndBytesWritten(indexRequest.source().length());
-            } catch( NullPointerException x) {
-                LOGGER.warn("NPE adding/sizing indexrequest");
-            }
+        Preconditions.checkNotNull(indexRequest);
+        checkIndexImplications(indexRequest.index());
+        long size = 0;
+        try {
+            size = indexRequest.source().length();
+        } catch( NullPointerException x) {
+            LOGGER.warn("NPE adding/sizing indexrequest");
         }
+        add(indexRequest, indexRequest.index(), indexRequest.id(), indexRequest.routing(), size);
     }
 
-    private void trackItemAndBytesWritten(long sizeInBytes)
+    private void add(ActionRequest request, String index, String id, String routing, long sizeInBytes)
     {
-        batchItemsSent++;
-        batchSizeInBytes += sizeInBytes;
+        Preconditions.checkState(threadBuffers != null, "Writer has not been started");
+        String nodeId = shardRouter != null ? shardRouter.getPrimaryNode(index, id, routing) : null;
+        PendingBulk pending = getBuffer(index, nodeId).add(request, sizeInBytes);
 
-        // If our queue is larger than our flush threashold, then we should flush the queue.
-        if(batchSizeInBytes > flushThresholdSizeInBytes)
-            flushInternal();
+        // If our buffer is larger than our flush threshold, it was drained and should be sent.
+        if(pending != null)
+            send(pending);
     }
 
-    private void checkAndCreateBulkRequest()
+    /**
+     * This thread's buffer for a primary node when the document's shard is known, otherwise for its index.  Each bulk
+     * then only holds requests for the shards on one node, or for one index, rather than being spread over the cluster.
+     */
+    private BulkBuffer getBuffer(String indexName, String nodeId)
     {
-        // Synchronize to ensure that we don't lose any records
-        synchronized (this)
+        String key = nodeId != null ? "node:" + nodeId : "index:" + indexName;
+        Map<String, BulkBuffer> buffers = threadBuffers.get();
+        BulkBuffer buffer = buffers.get(key);
+        if(buffer == null)
         {
-            if(bulkRequest == null)
-                bulkRequest = this.manager.getClient().prepareBulk();
+            // retired buffers are empty, and only this thread adds to them, so they can be dropped
+            Iterator<BulkBuffer> iterator = buffers.values().iterator();
+            while(iterator.hasNext())
+                if(iterator.next().retired)
+                    iterator.remove();
+
+            buffer = new BulkBuffer(nodeId);
+            buffers.put(key, buffer);
+            allBuffers.add(buffer);
         }
+        return buffer;
     }
 
     private void checkIndexImplications(String indexName)
     {
 
-        // check to see if we have seen this index before.
-        if(this.affectedIndexes.contains(indexName))
+        // check to see if we have seen this index before, and log it if we haven't.
+        if(!this.affectedIndexes.add(indexName))
             return;
 
-        // we haven't log this index.
-        this.affectedIndexes.add(indexName);
+        // Indices routed to by time come and go, make sure this one exists before anything is sent to it
+        if(this.indexFormatter != null)
+            createIndexIfMissing(indexName);
 
         // Check to see if we are in 'veryLargeBulk' mode
         // if we aren't, exit early
@@ -467,7 +952,16 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
             // It does not exist... So we are going to need to create the index.
             // we are going to assume that the 'templates' that we have loaded into
             // elasticsearch are sufficient to ensure the index is being created properly.
-            CreateIndexResponse response = this.manager.getClient().admin().indices().create(new CreateIndexRequest(indexName)).actionGet();
+            CreateIndexResponse response;
+            try
+            {
+                response = this.manager.getClient().admin().indices().create(new CreateIndexRequest(indexName)).actionGet();
+            }
+            catch(IndexAlreadyExistsException e)
+            {
+                // another writer created it first
+                return;
+            }
 
             if(response.isAcknowledged())
             {
@@ -487,48 +981,117 @@ public class ElasticsearchPersistWriter implements StreamsPersistWriter, Flushab
             add(indexName, type, id, (String)toImport.get(id));
     }
 
-    private void checkThenAddBatch(String index, String type, Map<String, String> workingBatch)
-    {
-        Set<String> invalidIDs = checkIds(workingBatch.keySet(), index, type);
-
-        for(String toAddId : workingBatch.keySet())
-            if(!invalidIDs.contains(toAddId))
-                add(index, type, toAddId, workingBatch.get(toAddId));
-
-        LOGGER.info("Adding Batch: {} -> {}", workingBatch.size(), invalidIDs.size());
+    @Override
+    public void prepare(Object configurationObject) {
+        start();
     }
 
+    /**
+     * A bulk request that has been taken out of a buffer to be sent.
+     */
+    static class PendingBulk
+    {
+        final BulkRequest request;
+        final String nodeId;
+        final int items;
+        final long sizeInBytes;
+        final int attempt;
 
-    private Set<String> checkIds(Set<String> input, String index, String type) {
-
-        IdsQueryBuilder idsFilterBuilder = new IdsQueryBuilder();
+        private PendingBulk(BulkRequest request, String nodeId, int items, long sizeInBytes, int attempt)
+        {
+            this.request = request;
+            this.nodeId = nodeId;
+            this.items = items;
+            this.sizeInBytes = sizeInBytes;
+            this.attempt = attempt;
+        }
+    }
 
-        for(String s : input)
-            idsFilterBuilder.addIds(s);
+    /**
+     * A semaphore whose number of permits can be lowered while permits are held.
+     */
+    private static class AdjustableSemaphore extends Semaphore
+    {
+        private AdjustableSemaphore(int permits)
+        {
+            super(permits);
+        }
 
-        SearchRequestBuilder searchRequestBuilder = this.manager.getClient()
-                .prepareSearch(index)
-                .setTypes(type)
-                .setQuery(idsFilterBuilder)
-                .addField("_id")
-                .setSize(input.size());
+        void reduce(int reduction)
+        {
+            reducePermits(reduction);
+        }
+    }
 
-        SearchHits hits = searchRequestBuilder.execute()
-                .actionGet()
-                .getHits();
+    /**
+     * Requests for one index or node added by one thread.  Only the owning thread adds, the lock is only contended
+     * when another thread flushes.  A retired buffer has been taken out of allBuffers, and puts itself back if it is
+     * added to again.
+     */
+    private class BulkBuffer
+    {
+        private final String nodeId;
+        private BulkRequest request;
+        private volatile int items;
+        private volatile long sizeInBytes;
+        private long firstAddedMillis;
+        private long lastAddedMillis;
+        private volatile boolean retired;
+
+        private BulkBuffer(String nodeId)
+        {
+            this.nodeId = nodeId;
+        }
 
-        Set<String> toReturn = new HashSet<String>();
+        /**
+         * Appends a request, draining the buffer if it has reached the batch limits.
+         * @return the drained bulk, or null if it is not full yet
+         */
+        synchronized PendingBulk add(ActionRequest actionRequest, long size)
+        {
+            if(retired)
+            {
+                retired = false;
+                allBuffers.add(this);
+            }
+            if(request == null)
+                request = new BulkRequest();
+            lastAddedMillis = System.currentTimeMillis();
+            if(items == 0)
+                firstAddedMillis = lastAddedMillis;
+            request.add(actionRequest);
+            items++;
+            sizeInBytes += size;
+            if(items >= batchSize || sizeInBytes > getCurrentBatchBytes())
+                return drain();
+            return null;
+        }
 
-        for(SearchHit hit : hits) {
-            toReturn.add(hit.getId());
+        synchronized PendingBulk drainIfLingering(long now)
+        {
+            if(items == 0 || now - firstAddedMillis < lingerMillis)
+                return null;
+            return drain();
         }
 
-        return toReturn;
-    }
+        synchronized void retireIfIdle(long now)
+        {
+            if(items == 0 && !retired && now - lastAddedMillis >= lingerMillis)
+            {
+                retired = true;
+                allBuffers.remove(this);
+            }
+        }
 
-    @Override
-    public void prepare(Object configurationObject) {
-        start();
+        synchronized PendingBulk drain()
+        {
+            if(request == null || items == 0)
+                return null;
+            PendingBulk pending = new PendingBulk(request, nodeId, items, sizeInBytes, 0);
+            request = null;
+            items = 0;
+            sizeInBytes = 0;
+            return pending;
+        }
     }
-
 }
@@ -0,0 +1,69 @@
+package org.apache.streams.elasticsearch;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsResultSet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a bounded read by an {@link ElasticsearchPersistReader}.  Iterating takes hits from the reader's queue as
+ * the slices produce them, and ends once every slice has finished and the queue is empty.
+ */
+public class ElasticsearchResultSet extends StreamsResultSet {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final ElasticsearchPersistReader reader;
+    private final BlockingQueue<StreamsDatum> queue;
+
+    public ElasticsearchResultSet(ElasticsearchPersistReader reader, BlockingQueue<StreamsDatum> queue) {
+        super(queue);
+        this.reader = reader;
+        this.queue = queue;
+    }
+
+    @Override
+    public Iterator<StreamsDatum> iterator() {
+        return new Iterator<StreamsDatum>() {
+
+            private StreamsDatum next;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while( next == null && !done ) {
+                        // check before polling, so nothing added before the slices finished is missed
+                        boolean finished = reader.isReadFinished();
+                        next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if( next == null && finished ) {
+                            done = true;
+                            reader.onReadFinished();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    done = true;
+                }
+                return next != null;
+            }
+
+            @Override
+            public StreamsDatum next() {
+                if( !hasNext() )
+                    throw new NoSuchElementException();
+                StreamsDatum datum = next;
+                next = null;
+                return datum;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+package org.apache.streams.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * One of the independent scrolls an {@link ElasticsearchPersistReader} splits a read into.  Iterates over the hits of
+ * its own scroll cursor and keeps its own progress, so slices can be read from different threads.
+ *
+ * A slice that is stopped or fails clears its scroll, so the search context does not stay open on the server until the
+ * keep alive runs out.
+ */
+public class ElasticsearchScrollSlice implements Iterator<SearchHit> {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ElasticsearchScrollSlice.class);
+
+    private final int id;
+    private final Client client;
+    private final SearchRequestBuilder search;
+    private final String scrollTimeout;
+
+    private SearchResponse scrollResp;
+    // the scroll to clear when the slice stops, null once cleared
+    private String scrollId;
+    private SearchHit[] hits;
+    private int position;
+    private SearchHit next;
+
+    private volatile long totalHits = 0;
+    private volatile long totalRead = 0;
+    private volatile boolean completed = false;
+    private volatile boolean failed = false;
+
+    public ElasticsearchScrollSlice(int id, Client client, SearchRequestBuilder search, String scrollTimeout) {
+        this.id = id;
+        this.client = client;
+        this.search = search;
+        this.scrollTimeout = scrollTimeout;
+    }
+
+    public int getId()                  { return id; }
+    public long getHitCount()           { return totalHits; }
+    public long getReadCount()          { return totalRead; }
+    public boolean isCompleted()        { return completed; }
+    public boolean isFailed()           { return failed; }
+
+    public double getReadPercent() {
+        if(totalHits == 0)
+            return completed ? 1.0 : 0.0;
+        return (double) totalRead / (double) totalHits;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next == null)
+            calcNext();
+        return next != null;
+    }
+
+    @Override
+    public SearchHit next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        SearchHit hit = next;
+        next = null;
+        return hit;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void calcNext() {
+        try {
+            while(!completed) {
+                // start the scroll on first use, the first response of a scan has no hits
+                if(scrollResp == null) {
+                    scrollResp = search.execute().actionGet();
+                    if(!setScrollId(scrollResp.getScrollId()))
+                        return;
+                    totalHits = scrollResp.getHits().getTotalHits();
+                    hits = scrollResp.getHits().getHits();
+                    position = 0;
+                    LOGGER.trace("Slice {}: {}", id, search);
+                }
+
+                if(position < hits.length) {
+                    next = hits[position++];
+                    totalRead++;
+                    return;
+                }
+
+                // We have exhausted this page, get the next page of the scroll.
+                scrollResp = client.prepareSearchScroll(scrollResp.getScrollId())
+                        .setScroll(scrollTimeout)
+                        .execute()
+                        .actionGet();
+                if(!setScrollId(scrollResp.getScrollId()))
+                    return;
+                hits = scrollResp.getHits().getHits();
+                position = 0;
+
+                // an empty page means the scroll is done
+                if(hits.length == 0)
+                    completed = true;
+            }
+        } catch(Exception e) {
+            LOGGER.error("Unexpected scrolling error in slice {}: {}", id, e.getMessage());
+            failed = true;
+            completed = true;
+            clearScroll();
+        }
+    }
+
+    /**
+     * Remembers the current scroll, or clears it right away if the slice was stopped while the request was out.
+     * @return false if the slice has been stopped
+     */
+    private synchronized boolean setScrollId(String scrollId) {
+        this.scrollId = scrollId;
+        if(completed) {
+            clearScroll();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the slice and clears its scroll, the next call to hasNext returns false.
+     */
+    public void stop() {
+        completed = true;
+        next = null;
+        clearScroll();
+    }
+
+    private synchronized void clearScroll() {
+        if(scrollId == null)
+            return;
+        final String cleared = scrollId;
+        scrollId = null;
+        client.prepareClearScroll().addScrollId(cleared).execute(new ActionListener<ClearScrollResponse>() {
+            @Override
+            public void onResponse(ClearScrollResponse response) {
+                LOGGER.trace("Slice {}: cleared scroll", id);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                LOGGER.warn("Unable to clear the scroll of slice {}: {}", id, e.getMessage());
+            }
+        });
+    }
+}
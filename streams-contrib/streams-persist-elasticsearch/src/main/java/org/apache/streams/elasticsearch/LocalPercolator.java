@@ -0,0 +1,206 @@
+package org.apache.streams.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches documents against the percolator queries registered in an index without a round trip per document.
+ *
+ * The queries are loaded from the index's .percolator type and translated to Lucene queries, then each document is
+ * indexed into a single document MemoryIndex and every query is run against it.  Only the common parts of the query
+ * DSL are translated: match_all, match, term, query_string and bool combinations of them.  Queries using anything
+ * else are skipped with a warning, use remote percolation for those.
+ */
+public class LocalPercolator {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(LocalPercolator.class);
+
+    private static final String PERCOLATOR_TYPE = ".percolator";
+    private static final String ALL_FIELD = "_all";
+    private static final Version LUCENE_VERSION = Version.LUCENE_46;
+
+    private final Analyzer analyzer = new StandardAnalyzer(LUCENE_VERSION);
+
+    private volatile Map<String, Query> queries = Collections.emptyMap();
+
+    public int getQueryCount() {
+        return queries.size();
+    }
+
+    /**
+     * Reloads the registered queries, replacing the current set once they have all been read.
+     * @param client
+     * @param index index the queries are registered in
+     */
+    public void refresh(Client client, String index) {
+        SearchRequestBuilder search = client.prepareSearch(index)
+                .setTypes(PERCOLATOR_TYPE)
+                .setSearchType(SearchType.SCAN)
+                .setSize(500)
+                .setScroll("1m");
+
+        Map<String, Query> loaded = new LinkedHashMap<String, Query>();
+        int skipped = 0;
+        Iterator<SearchHit> hits = new ElasticsearchScrollSlice(0, client, search, "1m");
+        while(hits.hasNext()) {
+            SearchHit hit = hits.next();
+            try {
+                JsonNode source = JsonMapperRegistry.getMapper().readTree(hit.source());
+                Query query = toQuery(source.get("query"));
+                if(query == null) {
+                    LOGGER.warn("Percolator query {} cannot be matched locally: {}", hit.getId(), source.get("query"));
+                    skipped++;
+                } else {
+                    loaded.put(hit.getId(), query);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read percolator query {}: {}", hit.getId(), e.getMessage());
+                skipped++;
+            }
+        }
+        this.queries = loaded;
+        LOGGER.info("Loaded {} percolator queries from {}, skipped {}", loaded.size(), index, skipped);
+    }
+
+    void setQueries(Map<String, Query> queries) {
+        this.queries = queries;
+    }
+
+    /**
+     * Finds the queries that match a document.
+     * @param document
+     * @return ids of the matching queries
+     */
+    public List<String> match(ObjectNode document) {
+        Map<String, StringBuilder> fields = new LinkedHashMap<String, StringBuilder>();
+        flatten("", document, fields);
+
+        // MemoryIndex takes each field once, so values of arrays and the _all field are joined first
+        MemoryIndex memoryIndex = new MemoryIndex();
+        StringBuilder all = new StringBuilder();
+        for(Map.Entry<String, StringBuilder> field : fields.entrySet()) {
+            memoryIndex.addField(field.getKey(), field.getValue().toString(), analyzer);
+            all.append(field.getValue()).append('\n');
+        }
+        memoryIndex.addField(ALL_FIELD, all.toString(), analyzer);
+
+        List<String> matches = Lists.newArrayList();
+        for(Map.Entry<String, Query> query : queries.entrySet()) {
+            if(memoryIndex.search(query.getValue()) > 0.0f)
+                matches.add(query.getKey());
+        }
+        return matches;
+    }
+
+    private void flatten(String prefix, JsonNode node, Map<String, StringBuilder> fields) {
+        if(node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> children = node.fields();
+            while(children.hasNext()) {
+                Map.Entry<String, JsonNode> child = children.next();
+                flatten(prefix.isEmpty() ? child.getKey() : prefix + "." + child.getKey(), child.getValue(), fields);
+            }
+        } else if(node.isArray()) {
+            for(JsonNode element : node)
+                flatten(prefix, element, fields);
+        } else if(!node.isNull() && !prefix.isEmpty()) {
+            StringBuilder value = fields.get(prefix);
+            if(value == null)
+                fields.put(prefix, new StringBuilder(node.asText()));
+            else
+                value.append('\n').append(node.asText());
+        }
+    }
+
+    /**
+     * Translates a query DSL clause to a Lucene query.
+     * @return the query, or null if the clause is not supported
+     */
+    Query toQuery(JsonNode clause) {
+        if(clause == null || !clause.isObject() || clause.size() != 1)
+            return null;
+        String type = clause.fieldNames().next();
+        JsonNode body = clause.get(type);
+        try {
+            if("match_all".equals(type)) {
+                return new MatchAllDocsQuery();
+            } else if("term".equals(type) && body.size() == 1) {
+                String field = body.fieldNames().next();
+                JsonNode value = body.get(field);
+                if(value.isObject())
+                    value = value.get("value");
+                return value == null ? null : new TermQuery(new Term(field, value.asText()));
+            } else if("match".equals(type) && body.size() == 1) {
+                String field = body.fieldNames().next();
+                JsonNode value = body.get(field);
+                if(value.isObject())
+                    value = value.get("query");
+                return value == null ? null : parse(field, QueryParser.escape(value.asText()));
+            } else if("query_string".equals(type) && body.has("query")) {
+                String field = body.has("default_field") ? body.get("default_field").asText() : ALL_FIELD;
+                return parse(field, body.get("query").asText());
+            } else if("bool".equals(type)) {
+                BooleanQuery bool = new BooleanQuery();
+                if(!addClauses(bool, body.get("must"), BooleanClause.Occur.MUST)
+                        || !addClauses(bool, body.get("should"), BooleanClause.Occur.SHOULD)
+                        || !addClauses(bool, body.get("must_not"), BooleanClause.Occur.MUST_NOT))
+                    return null;
+                // a bool query of only must_not clauses matches everything else
+                if(!body.has("must") && !body.has("should"))
+                    bool.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+                return bool;
+            }
+        } catch (ParseException e) {
+            LOGGER.warn("Unable to parse query: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    private boolean addClauses(BooleanQuery bool, JsonNode clauses, BooleanClause.Occur occur) throws ParseException {
+        if(clauses == null)
+            return true;
+        List<JsonNode> list = Lists.newArrayList();
+        if(clauses.isArray())
+            Iterators.addAll(list, clauses.elements());
+        else
+            list.add(clauses);
+        for(JsonNode clause : list) {
+            Query query = toQuery(clause);
+            if(query == null)
+                return false;
+            bool.add(query, occur);
+        }
+        return true;
+    }
+
+    private Query parse(String field, String text) throws ParseException {
+        return new QueryParser(LUCENE_VERSION, field, analyzer).parse(text);
+    }
+}
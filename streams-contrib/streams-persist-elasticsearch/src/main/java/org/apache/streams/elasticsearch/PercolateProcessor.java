@@ -1,24 +1,31 @@
 package org.apache.streams.elasticsearch;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsProcessor;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
+import org.elasticsearch.action.percolate.MultiPercolateRequestBuilder;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
 import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.action.percolate.PercolateSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * References:
@@ -34,7 +41,9 @@ public class PercolateProcessor implements StreamsProcessor, Runnable
 {
     private final static Logger LOGGER = LoggerFactory.getLogger(PercolateProcessor.class);
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private final static int DEFAULT_BATCH_SIZE = 100;
+    private final static long POLL_MILLIS = 100;
+    private final static long DEFAULT_REFRESH_SECONDS = 300;
 
     protected Queue<StreamsDatum> inQueue;
     protected Queue<StreamsDatum> outQueue;
@@ -42,6 +51,14 @@ public class PercolateProcessor implements StreamsProcessor, Runnable
     private ElasticsearchWriterConfiguration config;
     private ElasticsearchClientManager manager;
 
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    // null matches single documents locally and batches remotely
+    private Boolean local = null;
+    private long refreshSeconds = DEFAULT_REFRESH_SECONDS;
+
+    private transient LocalPercolator localPercolator;
+    private transient ScheduledExecutorService refresher;
+
     public PercolateProcessor(Queue<StreamsDatum> inQueue) {
         this.inQueue = inQueue;
         this.outQueue = new LinkedBlockingQueue<StreamsDatum>();
@@ -63,59 +80,193 @@ public class PercolateProcessor implements StreamsProcessor, Runnable
         this.config = config;
     }
 
+    /**
+     * Sets the number of documents sent in each multi percolate request by {@link #run()}.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Match documents against a local copy of the registered queries, instead of percolating them in elasticsearch.
+     * See {@link LocalPercolator} for the queries that can be matched locally.
+     *
+     * When not set, {@link #process(StreamsDatum)} matches locally, since percolating one document at a time costs a
+     * round trip per document, and {@link #run()} and {@link #processBatch(List)} percolate remotely.
+     * @param local
+     */
+    public void setLocal(boolean local) {
+        this.local = local;
+    }
+
+    /**
+     * Sets how often the local copy of the queries is reloaded.
+     * @param refreshSeconds
+     */
+    public void setRefreshSeconds(long refreshSeconds) {
+        Preconditions.checkArgument(refreshSeconds > 0);
+        this.refreshSeconds = refreshSeconds;
+    }
+
+    /**
+     * Matches against the given queries instead of loading them in {@link #start()}.
+     */
+    void setLocalPercolator(LocalPercolator localPercolator) {
+        this.localPercolator = localPercolator;
+    }
+
     public void start() {
         Preconditions.checkNotNull(config);
         Preconditions.checkNotNull(manager);
         Preconditions.checkNotNull(manager.getClient());
+
+        if(local == null || local) {
+            localPercolator = new LocalPercolator();
+            localPercolator.refresh(manager.getClient(), config.getIndex());
+            refresher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("PercolateProcessor-refresh-%d").build());
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        localPercolator.refresh(manager.getClient(), config.getIndex());
+                    } catch (Exception e) {
+                        LOGGER.warn("Unable to refresh percolator queries, keeping the current ones: {}", e.getMessage());
+                    }
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
     }
 
     public void stop() {
-
+        if(refresher != null)
+            refresher.shutdownNow();
     }
 
     public Queue<StreamsDatum> getProcessorOutputQueue() {
         return outQueue;
     }
 
+    /**
+     * Tags one document with the ids of the percolator queries it matches, locally unless set otherwise with
+     * {@link #setLocal(boolean)}.
+     * @param entry
+     * @return the entry, or nothing if it could not be percolated
+     */
     @Override
     public List<StreamsDatum> process(StreamsDatum entry) {
+        return processBatch(Collections.singletonList(entry), local == null || local);
+    }
 
-        List<StreamsDatum> result = Lists.newArrayList();
+    /**
+     * Tags a batch of documents with the ids of the percolator queries they match, using a single multi percolate
+     * request when percolating remotely.
+     * @param entries
+     * @return the entries that could be percolated
+     */
+    public List<StreamsDatum> processBatch(List<StreamsDatum> entries) {
+        return processBatch(entries, local != null && local);
+    }
 
-        String json;
-        ObjectNode node;
-        // first check for valid json
-        if( entry.getDocument() instanceof String ) {
-            json = (String) entry.getDocument();
+    private List<StreamsDatum> processBatch(List<StreamsDatum> entries, boolean local) {
+
+        List<StreamsDatum> result = Lists.newArrayList();
+        List<ObjectNode> nodes = Lists.newArrayList();
+        List<String> sources = Lists.newArrayList();
+
+        for( StreamsDatum entry : entries ) {
+            Object document = entry.getDocument();
+            String json;
+            JsonNode node;
+            // first check for a json object
             try {
-                node = (ObjectNode) mapper.readTree(json);
+                if( document instanceof String ) {
+                    json = (String) document;
+                    node = JsonMapperRegistry.getMapper().readTree(json);
+                } else {
+                    node = document instanceof JsonNode ? (JsonNode) document : JsonMapperRegistry.getMapper().valueToTree(document);
+                    json = null;
+                }
             } catch (IOException e) {
-                e.printStackTrace();
-                return null;
+                LOGGER.warn("Unable to percolate invalid document: {}", e.getMessage());
+                continue;
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Unable to percolate document {}: {}", entry.getId(), e.getMessage());
+                continue;
+            }
+            if( node == null || !node.isObject() ) {
+                LOGGER.warn("Skipping document {} that is not a json object", entry.getId());
+                continue;
             }
-        } else {
-            node = (ObjectNode) entry.getDocument();
-            json = node.asText();
+            if( json == null && !local )
+                json = node.toString();
+            result.add(entry);
+            nodes.add((ObjectNode) node);
+            sources.add(json);
         }
 
-        PercolateResponse response = manager.getClient().preparePercolate().setDocumentType(config.getType()).setSource(json).execute().actionGet();
+        if( result.isEmpty() )
+            return result;
+
+        List<List<String>> matches = local ? matchLocally(nodes) : matchRemotely(sources);
+
+        for( int i = 0; i < nodes.size(); i++ ) {
+            ArrayNode tagArray = JsonNodeFactory.instance.arrayNode();
+            for( String id : matches.get(i) )
+                tagArray.add(id);
+
+            ObjectNode w2o = nodes.get(i).with("extensions").with("w2o");
+            w2o.put("tags", tagArray);
+
+            // string documents and pojos were converted into a copy, write the tags back
+            StreamsDatum entry = result.get(i);
+            Object document = entry.getDocument();
+            if( document instanceof String ) {
+                entry.setDocument(nodes.get(i).toString());
+            } else if( !(document instanceof JsonNode) ) {
+                try {
+                    entry.setDocument(JsonMapperRegistry.getMapper().convertValue(nodes.get(i), document.getClass()));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Unable to tag document {}: {}", entry.getId(), e.getMessage());
+                }
+            }
+        }
 
-        ArrayNode tagArray = JsonNodeFactory.instance.arrayNode();
+        return result;
+    }
 
-        for( PercolateResponse.Match match : response.getMatches()) {
-            tagArray.add(match.getId().string());
+    private List<List<String>> matchLocally(List<ObjectNode> nodes) {
+        List<List<String>> matches = Lists.newArrayListWithCapacity(nodes.size());
+        for( ObjectNode node : nodes )
+            matches.add(localPercolator.match(node));
+        return matches;
+    }
 
+    private List<List<String>> matchRemotely(List<String> sources) {
+        MultiPercolateRequestBuilder request = manager.getClient().prepareMultiPercolate();
+        for( String json : sources ) {
+            request.add(manager.getClient().preparePercolate()
+                    .setIndices(config.getIndex())
+                    .setDocumentType(config.getType())
+                    .setPercolateDoc(PercolateSourceBuilder.docBuilder().setDoc(json)));
         }
 
-        // need utility methods for get / create specific node
-        ObjectNode extensions = (ObjectNode) node.get("extensions");
-        ObjectNode w2o = (ObjectNode) extensions.get("w2o");
-        w2o.put("tags", tagArray);
-
-        result.add(entry);
-
-        return result;
+        MultiPercolateResponse response = request.execute().actionGet();
 
+        List<List<String>> matches = Lists.newArrayListWithCapacity(sources.size());
+        for( MultiPercolateResponse.Item item : response ) {
+            List<String> ids = Lists.newArrayList();
+            if( item.isFailure() ) {
+                LOGGER.warn("Percolation failed: {}", item.getErrorMessage());
+            } else {
+                for( PercolateResponse.Match match : item.getResponse().getMatches() )
+                    ids.add(match.getId().string());
+            }
+            matches.add(ids);
+        }
+        return matches;
     }
 
     @Override
@@ -131,22 +282,28 @@ public class PercolateProcessor implements StreamsProcessor, Runnable
     @Override
     public void run() {
 
-        while(true) {
-            StreamsDatum item;
+        List<StreamsDatum> batch = Lists.newArrayListWithCapacity(batchSize);
+        while(!Thread.currentThread().isInterrupted()) {
             try {
-                item = inQueue.poll();
-
-                Thread.sleep(new Random().nextInt(100));
-
-                for( StreamsDatum entry : process(item)) {
-                    outQueue.offer(entry);
+                StreamsDatum item = inQueue.poll();
+                if( item != null )
+                    batch.add(item);
+
+                // send when the batch is full, or when the queue has run dry
+                if( batch.size() >= batchSize || (item == null && !batch.isEmpty()) ) {
+                    for( StreamsDatum entry : processBatch(batch) ) {
+                        outQueue.offer(entry);
+                    }
+                    batch = Lists.newArrayListWithCapacity(batchSize);
+                } else if( item == null ) {
+                    Thread.sleep(POLL_MILLIS);
                 }
-
-
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
-                e.printStackTrace();
-
+                LOGGER.error("Percolation failed for {} documents: {}", batch.size(), e.getMessage());
+                batch = Lists.newArrayListWithCapacity(batchSize);
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+package org.apache.streams.elasticsearch;
+
+import com.google.common.base.Preconditions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.elasticsearch.common.math.MathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out which node holds the primary shard a document is written to, from the cluster state.
+ *
+ * Documents are routed the way elasticsearch routes them by default: the djb hash of the routing value, or of the id
+ * when there is none, modulo the number of shards of the index.  The cluster state is read again when it is older than
+ * the refresh interval, or after {@link #invalidate()}.  Anything that cannot be placed, such as documents without an
+ * id, aliases, or indices created since the last refresh, is reported as unknown.
+ */
+public class ShardRouter {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ShardRouter.class);
+
+    private final ElasticsearchClientManager manager;
+    private final long refreshMillis;
+
+    // index name to the node holding the primary of each shard, replaced as a whole on refresh
+    private volatile Map<String, String[]> primaries = Collections.emptyMap();
+    private volatile Map<String, DiscoveryNode> nodes = Collections.emptyMap();
+    private volatile long refreshedAt = 0;
+
+    /**
+     * @param manager manager of the clients for the cluster
+     * @param refreshMillis how long the cluster state is used for before it is read again
+     */
+    public ShardRouter(ElasticsearchClientManager manager, long refreshMillis) {
+        Preconditions.checkNotNull(manager);
+        Preconditions.checkArgument(refreshMillis > 0);
+        this.manager = manager;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Finds the node holding the primary shard for a document.
+     * @param index index the document is written to
+     * @param id id of the document
+     * @param routing routing value of the document, null for none
+     * @return id of the node, or null if it is not known
+     */
+    public String getPrimaryNode(String index, String id, String routing) {
+        String value = routing != null ? routing : id;
+        if(value == null)
+            return null;
+
+        if(System.currentTimeMillis() - refreshedAt > refreshMillis)
+            refresh();
+
+        String[] shards = primaries.get(index);
+        if(shards == null)
+            return null;
+        return shards[shardId(value, shards.length)];
+    }
+
+    /**
+     * Gets a client that sends requests to the given node.
+     * @param nodeId id of a node returned by {@link #getPrimaryNode(String, String, String)}
+     * @return client for the node, or null if the node has left the cluster
+     */
+    public Client getNodeClient(String nodeId) {
+        DiscoveryNode node = nodes.get(nodeId);
+        return node != null ? manager.getNodeClient(node) : null;
+    }
+
+    /**
+     * Makes the next lookup read the cluster state again, for when shards are found to have moved.
+     */
+    public void invalidate() {
+        refreshedAt = 0;
+    }
+
+    /**
+     * Reads the cluster state.  Lookups keep using the previous state if it cannot be read.
+     */
+    public synchronized void refresh() {
+        // another thread may have just done it
+        if(System.currentTimeMillis() - refreshedAt <= refreshMillis)
+            return;
+        try {
+            ClusterState state = manager.getClient().admin().cluster().prepareState().execute().actionGet().getState();
+
+            Map<String, String[]> primaries = new HashMap<String, String[]>();
+            for(IndexRoutingTable indexRouting : state.routingTable()) {
+                IndexMetaData indexMetaData = state.metaData().index(indexRouting.getIndex());
+                if(indexMetaData == null)
+                    continue;
+                String[] shards = new String[indexMetaData.numberOfShards()];
+                for(int shard = 0; shard < shards.length; shard++) {
+                    ShardRouting primary = indexRouting.shard(shard) != null ? indexRouting.shard(shard).primaryShard() : null;
+                    shards[shard] = primary != null && primary.active() ? primary.currentNodeId() : null;
+                }
+                primaries.put(indexRouting.getIndex(), shards);
+            }
+
+            Map<String, DiscoveryNode> nodes = new HashMap<String, DiscoveryNode>();
+            for(DiscoveryNode node : state.nodes())
+                nodes.put(node.getId(), node);
+
+            this.primaries = primaries;
+            this.nodes = nodes;
+        } catch (Exception e) {
+            LOGGER.warn("Unable to read the cluster state, keeping the shard locations we have: {}", e.getMessage());
+        }
+        refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The shard a routing value maps to.
+     */
+    static int shardId(String routing, int numberOfShards) {
+        return MathUtils.mod(DjbHashFunction.DJB_HASH(routing), numberOfShards);
+    }
+}
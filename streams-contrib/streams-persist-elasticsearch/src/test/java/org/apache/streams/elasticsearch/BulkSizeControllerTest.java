@@ -0,0 +1,59 @@
+package org.apache.streams.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkSizeControllerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testRejectionsBackOffMultiplicatively() {
+        BulkSizeController controller = new BulkSizeController(8 * MB, MB, 16 * MB, 8, 1000);
+        assertEquals(-4, controller.onResponse(100, 3));
+        assertEquals(4 * MB, controller.getBatchBytes());
+        assertEquals(4, controller.getConcurrency());
+        controller.onResponse(100, 1);
+        controller.onResponse(100, 1);
+        controller.onResponse(100, 1);
+        controller.onResponse(100, 1);
+        assertEquals(MB, controller.getBatchBytes());
+        assertEquals(1, controller.getConcurrency());
+    }
+
+    @Test
+    public void testCleanResponsesGrowAdditively() {
+        BulkSizeController controller = new BulkSizeController(MB, MB, 11 * MB, 4, 1000);
+        controller.onResponse(100, 8);
+        assertEquals(2, controller.getConcurrency());
+        assertEquals(0, controller.onResponse(100, 0));
+        assertEquals(1, controller.onResponse(100, 0));
+        assertEquals(3, controller.getConcurrency());
+        assertEquals(3 * MB, controller.getBatchBytes());
+        for(int i = 0; i < 100; ++i) {
+            controller.onResponse(100, 0);
+        }
+        assertEquals(11 * MB, controller.getBatchBytes());
+        assertEquals(4, controller.getConcurrency());
+    }
+
+    @Test
+    public void testSlowResponsesShrinkBulks() {
+        BulkSizeController controller = new BulkSizeController(8 * MB, MB, 16 * MB, 4, 1000);
+        assertEquals(0, controller.onResponse(5000, 0));
+        assertEquals(6 * MB, controller.getBatchBytes());
+        assertEquals(4, controller.getConcurrency());
+    }
+
+    @Test
+    public void testBackoffIsJitteredAndCapped() {
+        BulkSizeController controller = new BulkSizeController(MB, MB, MB, 1, 1000);
+        for(int i = 0; i < 100; ++i) {
+            long first = controller.backoffMillis(1, 100, 10000);
+            assertTrue(first >= 50 && first <= 100);
+            long late = controller.backoffMillis(30, 100, 10000);
+            assertTrue(late >= 5000 && late <= 10000);
+        }
+    }
+}
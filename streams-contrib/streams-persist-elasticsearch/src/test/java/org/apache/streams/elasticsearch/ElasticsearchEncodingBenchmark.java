@@ -0,0 +1,71 @@
+package org.apache.streams.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.apache.streams.pojo.json.Activity;
+import org.apache.streams.pojo.json.Actor;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.IOException;
+
+/**
+ * Compares documents per second on one core for the old encoding path, which wrote each document to a String and
+ * parsed it again in full to find the parent, against writing straight to bytes and streaming to the parent field.
+ * The full parse is done with a Jackson tree, which is faster than the org.json parse it stands in for.  Not run as
+ * part of the build; run the main method directly.
+ */
+public class ElasticsearchEncodingBenchmark {
+
+    private static final int WARMUP = 100000;
+    private static final int ITERATIONS = 500000;
+
+    public static void main(String[] args) throws Exception {
+        final Activity activity = new Activity();
+        activity.setId("id:twitter:post:1234567890");
+        activity.setVerb("post");
+        activity.setContent("RT @someone: Check out #streams and #bigdata at http://t.co/abcdef #apache");
+        Actor actor = new Actor();
+        actor.setId("id:twitter:987654321");
+        actor.setDisplayName("someone");
+        activity.setActor(actor);
+        activity.setAdditionalProperty("parent", "id:twitter:987654321");
+
+        final ObjectMapper mapper = new ObjectMapper();
+
+        for (int round = 0; round < 3; ++round) {
+            run("string and full parse", new Encoding() {
+                @Override
+                public IndexRequest encode() throws IOException {
+                    String json = mapper.writeValueAsString(activity);
+                    IndexRequest request = new IndexRequest("index", "type", "id").source(json);
+                    return request.parent(mapper.readTree(json).get("parent").asText());
+                }
+            });
+            run("bytes and streamed field", new Encoding() {
+                @Override
+                public IndexRequest encode() throws IOException {
+                    byte[] source = JsonMapperRegistry.writer().writeValueAsBytes(activity);
+                    IndexRequest request = new IndexRequest("index", "type", "id").source(source);
+                    return request.parent(ElasticsearchPersistWriter.readTopLevelFields(source, "parent")[0]);
+                }
+            });
+        }
+    }
+
+    private interface Encoding {
+        IndexRequest encode() throws IOException;
+    }
+
+    private static void run(String name, Encoding encoding) throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < WARMUP; ++i) {
+            bytes += encoding.encode().source().length();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            bytes += encoding.encode().source().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-30s %10.0f docs/s (%d bytes)", name, ITERATIONS / (elapsed / 1e9), bytes));
+    }
+}
@@ -0,0 +1,129 @@
+package org.apache.streams.elasticsearch;
+
+import com.google.common.collect.Lists;
+import org.apache.streams.core.StreamsDatum;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the parts of {@link ElasticsearchPersistReader} that do not need a cluster: dealing shards to slices, when a
+ * read is recorded as finished, and when its result set ends.
+ */
+public class ElasticsearchPersistReaderTest {
+
+    @Test
+    public void testDealsShardsBetweenSlices() {
+        assertEquals(Arrays.asList(Arrays.asList(0, 3, 6, 9), Arrays.asList(1, 4, 7), Arrays.asList(2, 5, 8)),
+                ElasticsearchPersistReader.dealShards(10, 3));
+        // never more slices than shards, and always at least one
+        assertEquals(Arrays.asList(Arrays.asList(0), Arrays.asList(1)), ElasticsearchPersistReader.dealShards(2, 5));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2)), ElasticsearchPersistReader.dealShards(3, 0));
+    }
+
+    @Test
+    public void testRecordsSequenceOnceRead() {
+        ElasticsearchPersistReader reader = reader();
+        reader.scrollSlices = Lists.newArrayList(slice(0, false), slice(1, false));
+        reader.pendingSequence = 42L;
+        reader.onReadFinished();
+        assertEquals(Long.valueOf(42), reader.lastSequence);
+        assertNull(reader.pendingSequence);
+
+        // readRange does not move the sequence
+        reader.onReadFinished();
+        assertEquals(Long.valueOf(42), reader.lastSequence);
+    }
+
+    @Test
+    public void testFailedSliceKeepsSequence() {
+        ElasticsearchPersistReader reader = reader();
+        reader.lastSequence = 7L;
+        reader.scrollSlices = Lists.newArrayList(slice(0, false), slice(1, true));
+        reader.pendingSequence = 42L;
+        reader.onReadFinished();
+        assertEquals(Long.valueOf(7), reader.lastSequence);
+        assertNull(reader.pendingSequence);
+    }
+
+    @Test
+    public void testResultSetEndsOnceReadFinishes() throws Exception {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final AtomicInteger finishes = new AtomicInteger();
+        ElasticsearchPersistReader reader = new ElasticsearchPersistReader(config()) {
+            @Override
+            boolean isReadFinished() {
+                return finished.get();
+            }
+
+            @Override
+            void onReadFinished() {
+                finishes.incrementAndGet();
+            }
+        };
+        final BlockingQueue<StreamsDatum> queue = new LinkedBlockingQueue<StreamsDatum>();
+        queue.add(new StreamsDatum("0"));
+
+        // slices still running, so an empty queue does not end the result set
+        Thread slices = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                    queue.add(new StreamsDatum("1"));
+                    queue.add(new StreamsDatum("2"));
+                    finished.set(true);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        slices.start();
+
+        List<Object> documents = Lists.newArrayList();
+        for(StreamsDatum datum : new ElasticsearchResultSet(reader, queue))
+            documents.add(datum.getDocument());
+        slices.join();
+        assertEquals(Arrays.<Object>asList("0", "1", "2"), documents);
+        assertEquals(1, finishes.get());
+    }
+
+    private static ElasticsearchReaderConfiguration config() {
+        ElasticsearchReaderConfiguration config = new ElasticsearchReaderConfiguration();
+        config.setIndex("test");
+        config.setType("activity");
+        config.setSequenceField("sequence");
+        return config;
+    }
+
+    private static ElasticsearchPersistReader reader() {
+        ElasticsearchPersistReader reader = new ElasticsearchPersistReader(config());
+        reader.scrollSlices = Collections.emptyList();
+        return reader;
+    }
+
+    /**
+     * A slice that has already finished, without a scroll.
+     */
+    private static ElasticsearchScrollSlice slice(int id, final boolean failed) {
+        return new ElasticsearchScrollSlice(id, null, null, "1m") {
+            @Override
+            public boolean isFailed() {
+                return failed;
+            }
+
+            @Override
+            public boolean isCompleted() {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package org.apache.streams.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+public class ElasticsearchPersistUpdaterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ObjectNode json(String json) throws IOException {
+        return mapper.readValue(json, ObjectNode.class);
+    }
+
+    @Test
+    public void testMergesObjects() throws IOException {
+        ObjectNode target = json("{\"a\":1,\"actor\":{\"id\":\"1\",\"name\":\"old\"}}");
+        ElasticsearchPersistUpdater.merge(target, json("{\"b\":2,\"actor\":{\"name\":\"new\",\"url\":\"u\"}}"));
+        assertEquals(json("{\"a\":1,\"b\":2,\"actor\":{\"id\":\"1\",\"name\":\"new\",\"url\":\"u\"}}"), target);
+    }
+
+    @Test
+    public void testReplacesScalarsAndArrays() throws IOException {
+        ObjectNode target = json("{\"count\":1,\"tags\":[\"a\",\"b\"],\"actor\":{\"id\":\"1\"},\"text\":\"x\"}");
+        ElasticsearchPersistUpdater.merge(target, json("{\"count\":2,\"tags\":[\"c\"],\"actor\":\"someone\",\"text\":{\"en\":\"x\"}}"));
+        assertEquals(json("{\"count\":2,\"tags\":[\"c\"],\"actor\":\"someone\",\"text\":{\"en\":\"x\"}}"), target);
+    }
+
+    @Test
+    public void testMergeDoesNotShareNodes() throws IOException {
+        ObjectNode target = json("{}");
+        ObjectNode update = json("{\"actor\":{\"id\":\"1\"}}");
+        ElasticsearchPersistUpdater.merge(target, update);
+        ElasticsearchPersistUpdater.merge(target, json("{\"actor\":{\"name\":\"someone\"}}"));
+        assertEquals(json("{\"actor\":{\"id\":\"1\"}}"), update);
+    }
+
+    @Test
+    public void testCoalescesWithinWindow() throws IOException {
+        Queue<ElasticsearchPersistWriter.PendingBulk> sent = new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>();
+        ElasticsearchPersistUpdater updater = capturingUpdater(sent);
+        updater.init();
+
+        ObjectNode first = json("{\"a\":1,\"actor\":{\"id\":\"1\"}}");
+        updater.add("test", "activity", "1", first);
+        updater.add("test", "activity", "2", json("{\"c\":3}"));
+        updater.add("test", "activity", "1", json("{\"b\":2,\"actor\":{\"name\":\"someone\"}}"));
+        updater.add("test", "activity", "1", json("{\"a\":4}"));
+        // held until the window closes
+        assertTrue(sent.isEmpty());
+
+        updater.flush();
+        Map<String, ObjectNode> updates = new HashMap<String, ObjectNode>();
+        for(ElasticsearchPersistWriter.PendingBulk pending : sent) {
+            for(ActionRequest request : pending.request.requests()) {
+                UpdateRequest update = (UpdateRequest) request;
+                assertTrue(update.docAsUpsert());
+                assertNull("one update per document", updates.put(update.id(), json(update.doc().source().toUtf8())));
+            }
+        }
+        assertEquals(2, updates.size());
+        assertEquals(json("{\"a\":4,\"b\":2,\"actor\":{\"id\":\"1\",\"name\":\"someone\"}}"), updates.get("1"));
+        assertEquals(json("{\"c\":3}"), updates.get("2"));
+        // the caller's document is not merged into
+        assertEquals(json("{\"a\":1,\"actor\":{\"id\":\"1\"}}"), first);
+
+        // a new window starts empty
+        sent.clear();
+        updater.add("test", "activity", "1", json("{\"d\":5}"));
+        updater.flush();
+        assertEquals(1, sent.size());
+        UpdateRequest update = (UpdateRequest) sent.peek().request.requests().get(0);
+        assertEquals(json("{\"d\":5}"), json(update.doc().source().toUtf8()));
+    }
+
+    /**
+     * An updater that records the bulks it would send instead of sending them.
+     */
+    private static ElasticsearchPersistUpdater capturingUpdater(final Queue<ElasticsearchPersistWriter.PendingBulk> sent) {
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setIndex("test");
+        config.setType("activity");
+        ElasticsearchPersistUpdater updater = new ElasticsearchPersistUpdater(config) {
+            @Override
+            void send(PendingBulk pending) {
+                sent.add(pending);
+            }
+        };
+        updater.setCoalesceWindowMillis(60000);
+        updater.setLingerMillis(60000);
+        return updater;
+    }
+}
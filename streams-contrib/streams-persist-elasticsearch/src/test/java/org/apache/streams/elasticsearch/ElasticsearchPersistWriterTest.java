@@ -0,0 +1,180 @@
+package org.apache.streams.elasticsearch;
+
+import com.google.common.base.Charsets;
+import org.elasticsearch.action.ActionRequest;
+import org.apache.streams.core.StreamsDatum;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+public class ElasticsearchPersistWriterTest {
+
+    private static byte[] json(String json) {
+        return json.getBytes(Charsets.UTF_8);
+    }
+
+    @Test
+    public void testReadsTopLevelFields() throws IOException {
+        String[] values = ElasticsearchPersistWriter.readTopLevelFields(
+                json("{\"object\":{\"parent\":\"nested\"},\"list\":[1,{\"a\":2}],\"parent\":\"p1\",\"route\":42}"),
+                "parent", "route");
+        assertEquals("p1", values[0]);
+        assertEquals("42", values[1]);
+    }
+
+    @Test
+    public void testMissingAndNonScalarFieldsAreNull() throws IOException {
+        String[] values = ElasticsearchPersistWriter.readTopLevelFields(
+                json("{\"parent\":{\"id\":\"p1\"},\"other\":null}"),
+                "parent", null, "other", "missing");
+        assertArrayEquals(new String[] { null, null, null, null }, values);
+    }
+
+    @Test
+    public void testStopsAtTheLastFieldWanted() throws IOException {
+        // the malformed tail is never read
+        String[] values = ElasticsearchPersistWriter.readTopLevelFields(json("{\"parent\":\"p1\", !!!"), "parent");
+        assertEquals("p1", values[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsNonObjects() throws IOException {
+        ElasticsearchPersistWriter.readTopLevelFields(json("[\"parent\"]"), "parent");
+    }
+
+    @Test
+    public void testBuffersPerThreadAndIndex() throws Exception {
+        final int threads = 4;
+        final int documents = 1000;
+        final Queue<ElasticsearchPersistWriter.PendingBulk> sent = new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>();
+        final ElasticsearchPersistWriter writer = capturingWriter(sent);
+        writer.setBatchSize(128);
+        writer.init();
+
+        Thread[] adders = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            final int thread = t;
+            adders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < documents; i++)
+                        writer.add(i % 2 == 0 ? "even" : "odd", "activity", thread + ":" + i, "{\"n\":" + i + "}");
+                }
+            });
+            adders[t].start();
+        }
+        for(Thread adder : adders)
+            adder.join();
+
+        // each thread has a part full buffer left for each index
+        assertEquals(threads * 2 * (documents / 2 % 128), writer.getBatchItemsSent());
+
+        // not lingered long enough yet, then long enough
+        writer.flushLingering(System.currentTimeMillis());
+        assertEquals(threads * 2 * (documents / 2 % 128), writer.getBatchItemsSent());
+        writer.flushLingering(System.currentTimeMillis() + 60000);
+        assertEquals(0, writer.getBatchItemsSent());
+
+        Set<String> ids = new HashSet<String>();
+        for(ElasticsearchPersistWriter.PendingBulk pending : sent) {
+            assertTrue(pending.items <= 128);
+            assertEquals(pending.items, pending.request.requests().size());
+            String index = ((IndexRequest) pending.request.requests().get(0)).index();
+            for(ActionRequest request : pending.request.requests()) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                assertEquals("bulks hold one index", index, indexRequest.index());
+                assertTrue("sent twice: " + indexRequest.id(), ids.add(indexRequest.id()));
+            }
+        }
+        assertEquals(threads * documents, ids.size());
+    }
+
+    @Test
+    public void testIdleBuffersAreRetired() throws Exception {
+        Queue<ElasticsearchPersistWriter.PendingBulk> sent = new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>();
+        ElasticsearchPersistWriter writer = capturingWriter(sent);
+        writer.init();
+
+        writer.add("old", "activity", "1", "{}");
+        writer.add("current", "activity", "2", "{}");
+        assertEquals(2, writer.getBufferCount());
+
+        // sent once they linger, then retired once they have been idle as long
+        long now = System.currentTimeMillis();
+        writer.flushLingering(now + 60000);
+        assertEquals(2, sent.size());
+        assertEquals(2, writer.getBufferCount());
+        writer.flushLingering(now + 60000);
+        assertEquals(0, writer.getBufferCount());
+
+        // adding to a retired buffer puts it back, so nothing added to it is lost
+        writer.add("current", "activity", "3", "{}");
+        assertEquals(1, writer.getBufferCount());
+        writer.flush();
+        assertEquals(3, sent.size());
+        assertEquals("3", ((IndexRequest) sent.toArray(new ElasticsearchPersistWriter.PendingBulk[3])[2].request.requests().get(0)).id());
+    }
+
+    @Test
+    public void testIndexRouting() throws Exception {
+        ElasticsearchPersistWriter writer = capturingWriter(new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>());
+        writer.init();
+        assertEquals("test", writer.getIndex(new StreamsDatum("{}", new DateTime(2014, 3, 1, 23, 30, DateTimeZone.UTC))));
+
+        writer = capturingWriter(new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>());
+        writer.setIndexPattern("'activity-'yyyy.MM.dd");
+        writer.init();
+        // by the timestamp in UTC, whatever zone it is in
+        assertEquals("activity-2014.03.02", writer.getIndex(new StreamsDatum("{}", new DateTime(2014, 3, 1, 23, 30, DateTimeZone.forOffsetHours(-5)))));
+        assertEquals("activity-2014.03.01", writer.getIndex(new StreamsDatum("{}", new DateTime(2014, 3, 1, 23, 30, DateTimeZone.UTC))));
+        // without one, by the current time
+        assertEquals("activity-" + DateTimeFormat.forPattern("yyyy.MM.dd").withZoneUTC().print(System.currentTimeMillis()),
+                writer.getIndex(new StreamsDatum("{}")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBadIndexPattern() {
+        capturingWriter(new ConcurrentLinkedQueue<ElasticsearchPersistWriter.PendingBulk>()).setIndexPattern("'activity-'yyyy.qq");
+    }
+
+    @Test
+    public void testOnlyRejectionsAndConnectionFailuresAreRetried() {
+        assertTrue(ElasticsearchPersistWriter.isRetryable(new EsRejectedExecutionException("bulk queue full")));
+        assertTrue(ElasticsearchPersistWriter.isRetryable(
+                new RemoteTransportException("[node][inet[/10.0.0.1:9300]][bulk]", new EsRejectedExecutionException("bulk queue full"))));
+        assertFalse(ElasticsearchPersistWriter.isRetryable(new MapperParsingException("failed to parse")));
+        assertFalse(ElasticsearchPersistWriter.isRetryable(
+                new RemoteTransportException("[node][inet[/10.0.0.1:9300]][bulk]", new MapperParsingException("failed to parse"))));
+        assertFalse(ElasticsearchPersistWriter.isRetryable(new NullPointerException()));
+    }
+
+    /**
+     * A writer that records the bulks it would send instead of sending them.
+     */
+    static ElasticsearchPersistWriter capturingWriter(final Queue<ElasticsearchPersistWriter.PendingBulk> sent) {
+        ElasticsearchWriterConfiguration config = new ElasticsearchWriterConfiguration();
+        config.setIndex("test");
+        config.setType("activity");
+        ElasticsearchPersistWriter writer = new ElasticsearchPersistWriter(config) {
+            @Override
+            void send(PendingBulk pending) {
+                sent.add(pending);
+            }
+        };
+        writer.setLingerMillis(60000);
+        return writer;
+    }
+}
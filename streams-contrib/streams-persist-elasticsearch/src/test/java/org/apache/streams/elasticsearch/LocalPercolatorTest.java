@@ -0,0 +1,98 @@
+package org.apache.streams.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocalPercolatorTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final LocalPercolator percolator = new LocalPercolator();
+
+    private JsonNode json(String json) throws IOException {
+        return mapper.readTree(json);
+    }
+
+    private Query toQuery(String json) throws IOException {
+        return percolator.toQuery(json(json));
+    }
+
+    @Test
+    public void testMatchAll() throws IOException {
+        assertTrue(toQuery("{\"match_all\":{}}") instanceof MatchAllDocsQuery);
+    }
+
+    @Test
+    public void testTermIsNotAnalyzed() throws IOException {
+        Query query = toQuery("{\"term\":{\"user\":\"Kimchy\"}}");
+        assertTrue(query instanceof TermQuery);
+        assertEquals("user:Kimchy", query.toString());
+        assertEquals("user:kimchy", toQuery("{\"term\":{\"user\":{\"value\":\"kimchy\"}}}").toString());
+    }
+
+    @Test
+    public void testMatchIsAnalyzed() throws IOException {
+        assertEquals("text:hello text:world", toQuery("{\"match\":{\"text\":\"Hello World\"}}").toString());
+        assertEquals("text:hello", toQuery("{\"match\":{\"text\":{\"query\":\"Hello\"}}}").toString());
+        // characters that are query syntax are taken literally
+        assertEquals("text:foo text:bar", toQuery("{\"match\":{\"text\":\"foo (bar\"}}").toString());
+    }
+
+    @Test
+    public void testQueryString() throws IOException {
+        assertEquals("+title:foo +_all:bar", toQuery("{\"query_string\":{\"query\":\"title:foo AND bar\"}}").toString());
+        assertEquals("text:bar", toQuery("{\"query_string\":{\"query\":\"bar\",\"default_field\":\"text\"}}").toString());
+    }
+
+    @Test
+    public void testBool() throws IOException {
+        Query query = toQuery("{\"bool\":{\"must\":{\"term\":{\"user\":\"kimchy\"}}," +
+                "\"should\":[{\"term\":{\"tag\":\"a\"}},{\"term\":{\"tag\":\"b\"}}],\"must_not\":{\"term\":{\"lang\":\"fr\"}}}}");
+        assertTrue(query instanceof BooleanQuery);
+        assertEquals("+user:kimchy tag:a tag:b -lang:fr", query.toString());
+
+        // only must_not clauses match everything else
+        assertEquals("-lang:fr +*:*", toQuery("{\"bool\":{\"must_not\":{\"term\":{\"lang\":\"fr\"}}}}").toString());
+    }
+
+    @Test
+    public void testUnsupportedClauses() throws IOException {
+        assertNull(toQuery("{\"range\":{\"count\":{\"gt\":1}}}"));
+        assertNull(toQuery("{\"bool\":{\"must\":[{\"term\":{\"user\":\"kimchy\"}},{\"range\":{\"count\":{\"gt\":1}}}]}}"));
+        assertNull(toQuery("{\"term\":{\"user\":\"kimchy\"},\"match_all\":{}}"));
+        assertNull(toQuery("\"match_all\""));
+    }
+
+    @Test
+    public void testMatch() throws IOException {
+        Map<String, Query> queries = new LinkedHashMap<String, Query>();
+        queries.put("all", toQuery("{\"match_all\":{}}"));
+        queries.put("hello", toQuery("{\"match\":{\"text\":\"hello\"}}"));
+        queries.put("goodbye", toQuery("{\"match\":{\"text\":\"goodbye\"}}"));
+        queries.put("user", toQuery("{\"term\":{\"user\":\"kimchy\"}}"));
+        queries.put("nested", toQuery("{\"match\":{\"actor.name\":\"Someone\"}}"));
+        queries.put("array", toQuery("{\"term\":{\"tags\":\"b\"}}"));
+        queries.put("anywhere", toQuery("{\"query_string\":{\"query\":\"someone\"}}"));
+        queries.put("excluded", toQuery("{\"bool\":{\"must\":{\"match\":{\"text\":\"hello\"}},\"must_not\":{\"term\":{\"user\":\"kimchy\"}}}}"));
+        percolator.setQueries(queries);
+
+        ObjectNode document = (ObjectNode) json("{\"text\":\"Hello world\",\"user\":\"kimchy\"," +
+                "\"actor\":{\"name\":\"Someone\"},\"tags\":[\"a\",\"b\"]}");
+        assertEquals(Lists.newArrayList("all", "hello", "user", "nested", "array", "anywhere"), percolator.match(document));
+
+        ObjectNode other = (ObjectNode) json("{\"text\":\"nothing here\",\"user\":\"other\"}");
+        assertEquals(Lists.newArrayList("all"), percolator.match(other));
+    }
+}
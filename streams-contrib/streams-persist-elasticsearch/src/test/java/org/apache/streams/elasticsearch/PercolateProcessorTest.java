@@ -0,0 +1,72 @@
+package org.apache.streams.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.lucene.search.Query;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.pojo.json.Activity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tags documents of each supported type with {@link PercolateProcessor#process(StreamsDatum)}, matching locally.
+ */
+public class PercolateProcessorTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private PercolateProcessor processor;
+
+    @Before
+    public void setUp() throws IOException {
+        LocalPercolator percolator = new LocalPercolator();
+        Map<String, Query> queries = new LinkedHashMap<String, Query>();
+        queries.put("post", percolator.toQuery(mapper.readTree("{\"term\":{\"verb\":\"post\"}}")));
+        percolator.setQueries(queries);
+        processor = new PercolateProcessor(new ConcurrentLinkedQueue<StreamsDatum>());
+        processor.setLocalPercolator(percolator);
+    }
+
+    @Test
+    public void testTagsStrings() throws IOException {
+        List<StreamsDatum> result = processor.process(new StreamsDatum("{\"verb\":\"post\"}"));
+        assertEquals(1, result.size());
+        JsonNode tagged = mapper.readTree((String) result.get(0).getDocument());
+        assertEquals("post", tagged.path("extensions").path("w2o").path("tags").get(0).asText());
+    }
+
+    @Test
+    public void testTagsObjectNodes() throws IOException {
+        ObjectNode document = (ObjectNode) mapper.readTree("{\"verb\":\"share\"}");
+        List<StreamsDatum> result = processor.process(new StreamsDatum(document));
+        assertEquals(1, result.size());
+        assertEquals(0, document.path("extensions").path("w2o").path("tags").size());
+    }
+
+    @Test
+    public void testTagsPojos() {
+        Activity activity = new Activity();
+        activity.setVerb("post");
+        List<StreamsDatum> result = processor.process(new StreamsDatum(activity));
+        assertEquals(1, result.size());
+        Activity tagged = (Activity) result.get(0).getDocument();
+        assertEquals("post", tagged.getVerb());
+        JsonNode extensions = mapper.valueToTree(tagged.getAdditionalProperties().get("extensions"));
+        assertEquals("post", extensions.path("w2o").path("tags").get(0).asText());
+    }
+
+    @Test
+    public void testSkipsDocumentsThatAreNotObjects() {
+        for(Object document : Arrays.<Object>asList("[1,2]", "\"text\"", "not json", mapper.createArrayNode(), null))
+            assertTrue(String.valueOf(document), processor.process(new StreamsDatum(document)).isEmpty());
+    }
+}
@@ -0,0 +1,35 @@
+package org.apache.streams.elasticsearch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins {@link ShardRouter#shardId} to the shards elasticsearch 1.0 routes to by default, the djb hash of the routing
+ * value modulo the number of shards.  The expected values were worked out independently of elasticsearch's code.
+ */
+public class ShardRouterTest {
+
+    private static final int[] SHARDS = { 1, 5, 7, 32 };
+
+    private static void assertShards(String routing, int... expected) {
+        for(int i = 0; i < SHARDS.length; i++)
+            assertEquals(routing + " with " + SHARDS[i] + " shards", expected[i], ShardRouter.shardId(routing, SHARDS[i]));
+    }
+
+    @Test
+    public void testKnownShards() {
+        assertShards("1", 0, 2, 4, 22);
+        assertShards("2", 0, 3, 5, 23);
+        assertShards("abc", 0, 3, 6, 11);
+        assertShards("user:42", 0, 1, 4, 4);
+        assertShards("tag:twitter.com,2013:12345", 0, 0, 1, 6);
+        assertShards("caf\u00e9", 0, 0, 2, 24);
+    }
+
+    @Test
+    public void testNegativeHash() {
+        // the hash overflows to a negative int, which must still land on a shard in range
+        assertShards("a-much-longer-routing-value-that-overflows-the-hash", 0, 0, 4, 4);
+    }
+}
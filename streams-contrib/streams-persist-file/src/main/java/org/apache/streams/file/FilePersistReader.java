@@ -0,0 +1,126 @@
+package org.apache.streams.file;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsPersistReader;
+import org.apache.streams.core.StreamsResultSet;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Replays the segment files written by {@link FilePersistWriter}.
+ *
+ * Segments are memory mapped and scanned for line or frame boundaries in place.  Each document is handed out as a
+ * read only ByteBuffer slice of the mapping, or as a String when decode is set, so nothing is copied unless asked for.
+ * readAll returns a lazy result set that maps one segment at a time; readCurrent returns the next batch.
+ */
+public class FilePersistReader implements StreamsPersistReader {
+
+    public final static String STREAMS_ID = "FilePersistReader";
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(FilePersistReader.class);
+
+    private final static int BATCH_SIZE = 10000;
+
+    private FileConfiguration config;
+
+    private transient List<File> segments;
+    private transient SegmentScanner current;
+
+    public FilePersistReader(FileConfiguration config) {
+        this.config = config;
+    }
+
+    public FileConfiguration getConfig() {
+        return config;
+    }
+
+    @Override
+    public void prepare(Object configurationObject) {
+        Preconditions.checkNotNull(config);
+        Preconditions.checkNotNull(config.getPath());
+        segments = listSegments(new File(config.getPath()));
+        LOGGER.info("Found {} segments in {}", segments.size(), config.getPath());
+    }
+
+    @Override
+    public void startStream() {
+        current = newScanner();
+    }
+
+    @Override
+    public StreamsResultSet readCurrent() {
+        if(current == null)
+            startStream();
+        Queue<StreamsDatum> batch = Queues.newArrayDeque();
+        while(batch.size() < BATCH_SIZE && current.hasNext())
+            batch.add(current.next());
+        return new StreamsResultSet(batch);
+    }
+
+    @Override
+    public StreamsResultSet readAll() {
+        return new StreamsResultSet(Queues.<StreamsDatum>newArrayDeque()) {
+            @Override
+            public Iterator<StreamsDatum> iterator() {
+                return newScanner();
+            }
+        };
+    }
+
+    /**
+     * Segments do not record sequence ids, so there is nothing to read by sequence.
+     * @return an empty result set
+     */
+    @Override
+    public StreamsResultSet readNew(BigInteger sequence) {
+        return new StreamsResultSet(Queues.<StreamsDatum>newArrayDeque());
+    }
+
+    /**
+     * Segments do not record timestamps, so there is nothing to read by range.
+     * @return an empty result set
+     */
+    @Override
+    public StreamsResultSet readRange(DateTime start, DateTime end) {
+        return new StreamsResultSet(Queues.<StreamsDatum>newArrayDeque());
+    }
+
+    @Override
+    public void cleanUp() {
+        current = null;
+    }
+
+    private SegmentScanner newScanner() {
+        Preconditions.checkState(segments != null, "read called before prepare");
+        return new SegmentScanner(segments, config.getFormat() == FileConfiguration.Format.FRAMES,
+                Boolean.TRUE.equals(config.getDecode()));
+    }
+
+    /**
+     * Lists the segments in a directory in the order they were written.
+     */
+    static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FilePersistWriter.SEGMENT_PREFIX) && name.endsWith(FilePersistWriter.SEGMENT_SUFFIX);
+            }
+        });
+        if(files == null)
+            return Collections.emptyList();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+}
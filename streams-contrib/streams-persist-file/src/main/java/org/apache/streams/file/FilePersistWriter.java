@@ -0,0 +1,211 @@
+package org.apache.streams.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * Appends documents to segment files in a local directory, for replay with {@link FilePersistReader}.
+ *
+ * Each segment is preallocated to segmentBytes and filled through a FileChannel from a direct buffer; a new segment is
+ * started when the next document does not fit.  Closing a segment truncates it to the bytes written.  Segment names
+ * sort in the order they were written, and include a random part so several writers can share a directory.
+ *
+ * In the lines format each document is written as one line of json, in the frames format as a 4 byte length followed
+ * by the document.  String documents are written as they are, anything else is serialized to json.
+ */
+public class FilePersistWriter implements StreamsPersistWriter, Flushable, Closeable {
+
+    public final static String STREAMS_ID = "FilePersistWriter";
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(FilePersistWriter.class);
+
+    public final static String SEGMENT_PREFIX = "segment-";
+    public final static String SEGMENT_SUFFIX = ".dat";
+
+    public final static long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private final static int WRITE_BUFFER_BYTES = 1024 * 1024;
+
+    private FileConfiguration config;
+
+    private transient File directory;
+    private transient String writerId;
+    private transient int segmentCount;
+    private transient File segment;
+    private transient RandomAccessFile segmentFile;
+    private transient FileChannel channel;
+    // bytes of the current segment, including those still in the buffer
+    private transient long position;
+    private transient ByteBuffer buffer;
+
+    public FilePersistWriter(FileConfiguration config) {
+        this.config = config;
+    }
+
+    public FileConfiguration getConfig() {
+        return config;
+    }
+
+    @Override
+    public void prepare(Object configurationObject) {
+        Preconditions.checkNotNull(config);
+        Preconditions.checkNotNull(config.getPath());
+        // segments are memory mapped for replay, which is limited to 2GB a segment
+        Preconditions.checkArgument(getSegmentBytes() > 0 && getSegmentBytes() <= Integer.MAX_VALUE,
+                "segmentBytes must be between 1 and %s", Integer.MAX_VALUE);
+
+        directory = new File(config.getPath());
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("Unable to create directory " + directory);
+
+        writerId = Long.toString(System.currentTimeMillis(), 36) + "-" + UUID.randomUUID().toString().substring(0, 8);
+        segmentCount = 0;
+        buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    }
+
+    @Override
+    public synchronized void write(StreamsDatum entry) {
+        Preconditions.checkState(buffer != null, "write called before prepare");
+
+        byte[] bytes;
+        try {
+            bytes = encode(entry.getDocument());
+        } catch (IOException e) {
+            LOGGER.warn("Unable to serialize document {}: {}", entry.getId(), e.getMessage());
+            return;
+        }
+
+        // an empty document could not be told apart from the unwritten end of a segment
+        if(bytes.length == 0) {
+            LOGGER.warn("Skipping empty document {}", entry.getId());
+            return;
+        }
+        if(isLines() && (indexOf(bytes, (byte) '\n') >= 0 || indexOf(bytes, (byte) 0) >= 0)) {
+            LOGGER.warn("Skipping document {} that cannot be written as a single line", entry.getId());
+            return;
+        }
+
+        int size = isLines() ? bytes.length + 1 : bytes.length + 4;
+        try {
+            if(channel == null || (position > 0 && position + size > getSegmentBytes()))
+                nextSegment();
+
+            if(size > buffer.remaining())
+                drain();
+            if(size > buffer.capacity()) {
+                // larger than the buffer, goes straight to the file
+                writeFully(isLines() ? ByteBuffer.wrap(bytes) : (ByteBuffer) ByteBuffer.allocate(4).putInt(bytes.length).flip());
+                writeFully(isLines() ? (ByteBuffer) ByteBuffer.allocate(1).put((byte) '\n').flip() : ByteBuffer.wrap(bytes));
+            } else {
+                if(isLines()) {
+                    buffer.put(bytes);
+                    buffer.put((byte) '\n');
+                } else {
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                }
+            }
+            position += size;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write to " + segment, e);
+        }
+    }
+
+    /**
+     * Writes buffered documents to the current segment.  They become visible to readers, but are not forced to disk.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if(channel != null)
+            drain();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    @Override
+    public void cleanUp() {
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.error("Unable to close {}: {}", segment, e.getMessage());
+        }
+    }
+
+    private boolean isLines() {
+        return config.getFormat() != FileConfiguration.Format.FRAMES;
+    }
+
+    private long getSegmentBytes() {
+        return config.getSegmentBytes() != null ? config.getSegmentBytes() : DEFAULT_SEGMENT_BYTES;
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+
+        segment = new File(directory, String.format("%s%s-%06d%s", SEGMENT_PREFIX, writerId, segmentCount++, SEGMENT_SUFFIX));
+        segmentFile = new RandomAccessFile(segment, "rw");
+        // reserve the space up front, the unwritten end reads as zeros until the segment is closed
+        segmentFile.setLength(getSegmentBytes());
+        channel = segmentFile.getChannel();
+        position = 0;
+        LOGGER.debug("Started segment {}", segment);
+    }
+
+    private void closeSegment() throws IOException {
+        if(channel == null)
+            return;
+        try {
+            drain();
+            channel.truncate(position);
+            channel.force(false);
+        } finally {
+            segmentFile.close();
+            channel = null;
+            segmentFile = null;
+        }
+        LOGGER.debug("Closed segment {} at {} bytes", segment, position);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while(source.hasRemaining())
+            channel.write(source);
+    }
+
+    private static byte[] encode(Object document) throws IOException {
+        if(document instanceof String)
+            return ((String) document).getBytes(Charsets.UTF_8);
+        if(document instanceof byte[])
+            return (byte[]) document;
+        return JsonMapperRegistry.writer().writeValueAsBytes(document);
+    }
+
+    private static int indexOf(byte[] bytes, byte value) {
+        for(int i = 0; i < bytes.length; i++) {
+            if(bytes[i] == value)
+                return i;
+        }
+        return -1;
+    }
+}
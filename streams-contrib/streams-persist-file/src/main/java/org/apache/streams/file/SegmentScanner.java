@@ -0,0 +1,149 @@
+package org.apache.streams.file;
+
+import com.google.common.base.Charsets;
+import org.apache.streams.core.StreamsDatum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the documents in a list of segments, mapping one segment at a time.
+ *
+ * A zero byte where a line or frame should start marks the unwritten end of a segment that is still being written.
+ * The mapping stays valid after its channel is closed and is released when it is no longer referenced.
+ */
+class SegmentScanner implements Iterator<StreamsDatum> {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(SegmentScanner.class);
+
+    private final List<File> segments;
+    private final boolean frames;
+    private final boolean decode;
+
+    private int nextSegment = 0;
+    private MappedByteBuffer mapped;
+    private int position;
+    private int limit;
+
+    // bounds of the next document, start < 0 when it has not been found yet
+    private int start = -1;
+    private int end;
+
+    SegmentScanner(List<File> segments, boolean frames, boolean decode) {
+        this.segments = segments;
+        this.frames = frames;
+        this.decode = decode;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while(start < 0) {
+            if(mapped != null && scan())
+                return true;
+            if(!map())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public StreamsDatum next() {
+        if(!hasNext())
+            throw new NoSuchElementException();
+
+        ByteBuffer slice = mapped.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        start = -1;
+
+        if(decode)
+            return new StreamsDatum(Charsets.UTF_8.decode(slice).toString());
+        return new StreamsDatum(slice.slice().asReadOnlyBuffer());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Finds the next document in the mapped segment.
+     * @return false at the end of the segment
+     */
+    private boolean scan() {
+        if(frames) {
+            if(limit - position < 4)
+                return false;
+            int length = mapped.getInt(position);
+            if(length <= 0 || length > limit - position - 4) {
+                if(length != 0)
+                    LOGGER.warn("Truncated frame at {} in {}", position, segments.get(nextSegment - 1));
+                return false;
+            }
+            start = position + 4;
+            end = start + length;
+            position = end;
+            return true;
+        }
+
+        if(position >= limit || mapped.get(position) == 0)
+            return false;
+        int i = position;
+        while(i < limit) {
+            byte b = mapped.get(i);
+            if(b == '\n' || b == 0)
+                break;
+            i++;
+        }
+        start = position;
+        end = i;
+        position = i < limit && mapped.get(i) == '\n' ? i + 1 : i;
+        return true;
+    }
+
+    /**
+     * Maps the next segment.
+     * @return false when there are no more segments
+     */
+    private boolean map() {
+        mapped = null;
+        while(nextSegment < segments.size()) {
+            File segment = segments.get(nextSegment++);
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(segment, "r");
+                long size = file.length();
+                if(size > Integer.MAX_VALUE) {
+                    LOGGER.warn("Skipping segment {} larger than 2GB", segment);
+                    continue;
+                }
+                if(size == 0)
+                    continue;
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                position = 0;
+                limit = (int) size;
+                return true;
+            } catch (IOException e) {
+                LOGGER.warn("Unable to map segment {}: {}", segment, e.getMessage());
+            } finally {
+                if(file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        // the mapping does not depend on the file staying open
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
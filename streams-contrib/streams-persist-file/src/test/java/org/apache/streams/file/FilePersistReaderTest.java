@@ -0,0 +1,132 @@
+package org.apache.streams.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.streams.core.StreamsDatum;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes documents with {@link FilePersistWriter} and reads them back with {@link FilePersistReader}.
+ */
+public class FilePersistReaderTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testLines() throws Exception {
+        FileConfiguration config = config(FileConfiguration.Format.LINES);
+        write(config, 20).close();
+
+        List<String> documents = read(config);
+        assertEquals(20, documents.size());
+        assertEquals("{\"n\":0}", documents.get(0));
+        assertEquals("{\"n\":19}", documents.get(19));
+        assertTrue(FilePersistReader.listSegments(directory).size() > 1);
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+        FileConfiguration config = config(FileConfiguration.Format.FRAMES);
+        write(config, 20).close();
+
+        List<String> documents = read(config);
+        assertEquals(20, documents.size());
+        assertEquals("{\"n\":19}", documents.get(19));
+    }
+
+    @Test
+    public void testOpenSegment() throws Exception {
+        FileConfiguration config = config(FileConfiguration.Format.LINES);
+        config.setSegmentBytes(1024L * 1024);
+        FilePersistWriter writer = write(config, 5);
+        writer.flush();
+
+        // the preallocated end of the segment is not read as documents
+        assertEquals(5, read(config).size());
+        writer.close();
+        assertEquals(5, read(config).size());
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        FileConfiguration config = config(FileConfiguration.Format.LINES);
+        write(config, 1).close();
+
+        FilePersistReader reader = new FilePersistReader(config);
+        reader.prepare(null);
+        reader.startStream();
+        StreamsDatum datum = reader.readCurrent().iterator().next();
+        ByteBuffer slice = (ByteBuffer) datum.getDocument();
+        assertEquals("{\"n\":0}", Charsets.UTF_8.decode(slice).toString());
+    }
+
+    @Test
+    public void testReadNewAndRangeAreEmpty() throws Exception {
+        FileConfiguration config = config(FileConfiguration.Format.LINES);
+        write(config, 5).close();
+
+        FilePersistReader reader = new FilePersistReader(config);
+        reader.prepare(null);
+        assertFalse(reader.readNew(BigInteger.ZERO).iterator().hasNext());
+        assertFalse(reader.readRange(new DateTime(0), DateTime.now()).iterator().hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsSegmentsTooLargeToReplay() {
+        FileConfiguration config = config(FileConfiguration.Format.LINES);
+        config.setSegmentBytes(Integer.MAX_VALUE + 1L);
+        new FilePersistWriter(config).prepare(null);
+    }
+
+    private FileConfiguration config(FileConfiguration.Format format) {
+        FileConfiguration config = new FileConfiguration();
+        config.setPath(directory.getAbsolutePath());
+        config.setFormat(format);
+        config.setSegmentBytes(100L);
+        return config;
+    }
+
+    private FilePersistWriter write(FileConfiguration config, int count) {
+        FilePersistWriter writer = new FilePersistWriter(config);
+        writer.prepare(null);
+        for(int i = 0; i < count; i++)
+            writer.write(new StreamsDatum("{\"n\":" + i + "}"));
+        return writer;
+    }
+
+    private List<String> read(FileConfiguration config) {
+        config.setDecode(true);
+        FilePersistReader reader = new FilePersistReader(config);
+        reader.prepare(null);
+        List<String> documents = Lists.newArrayList();
+        for(StreamsDatum datum : reader.readAll())
+            documents.add((String) datum.getDocument());
+        config.setDecode(false);
+        return documents;
+    }
+}
@@ -0,0 +1,99 @@
+package org.apache.streams.file;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.streams.core.StreamsDatum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Scanner;
+
+/**
+ * Compares replaying a segment directory with {@link FilePersistReader} to reading the same lines with a Scanner, the
+ * way FileReaderProvider does.
+ *
+ * Run with: java org.apache.streams.file.FileReplayBenchmark [documents]
+ */
+public class FileReplayBenchmark {
+
+    private static final String DOCUMENT = "{\"id\":\"tag:twitter.com,2013:%d\",\"verb\":\"post\",\"published\":\"2014-03-01T12:00:00.000Z\"," +
+            "\"actor\":{\"id\":\"id:twitter:%d\",\"displayName\":\"someone\"},\"object\":{\"objectType\":\"note\"," +
+            "\"content\":\"a short message that is about as long as a tweet usually is, with a link http://t.co/abcdefg\"}}";
+
+    // keeps the reads from being optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+        File directory = Files.createTempDir();
+        try {
+            FileConfiguration config = new FileConfiguration();
+            config.setPath(directory.getAbsolutePath());
+            config.setFormat(FileConfiguration.Format.LINES);
+
+            long started = System.nanoTime();
+            FilePersistWriter writer = new FilePersistWriter(config);
+            writer.prepare(null);
+            for(int i = 0; i < documents; i++)
+                writer.write(new StreamsDatum(String.format(DOCUMENT, i, i % 1000)));
+            writer.cleanUp();
+            report("write", documents, started);
+
+            for(int round = 0; round < 3; round++) {
+                replay(config, documents);
+                config.setDecode(true);
+                replay(config, documents);
+                config.setDecode(false);
+                scan(directory, documents);
+            }
+        } finally {
+            for(File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    private static void replay(FileConfiguration config, int documents) {
+        long started = System.nanoTime();
+        FilePersistReader reader = new FilePersistReader(config);
+        reader.prepare(null);
+        int count = 0;
+        for(StreamsDatum datum : reader.readAll()) {
+            sink += datum.getDocument().hashCode();
+            count++;
+        }
+        check(count, documents);
+        report(Boolean.TRUE.equals(config.getDecode()) ? "replay strings" : "replay slices", count, started);
+    }
+
+    private static void scan(File directory, int documents) throws Exception {
+        long started = System.nanoTime();
+        int count = 0;
+        for(File segment : FilePersistReader.listSegments(directory)) {
+            InputStream in = new FileInputStream(segment);
+            try {
+                Scanner scanner = new Scanner(in, Charsets.UTF_8.name());
+                while(scanner.hasNextLine()) {
+                    new StreamsDatum(scanner.nextLine());
+                    count++;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        check(count, documents);
+        report("scanner", count, started);
+    }
+
+    private static void check(int count, int documents) {
+        if(count != documents)
+            throw new IllegalStateException("Read " + count + " of " + documents + " documents");
+    }
+
+    private static void report(String name, int count, long started) {
+        long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+        System.out.println(String.format("%-16s %,d documents in %,d ms, %,d per second", name, count, millis, count * 1000L / millis));
+    }
+}
@@ -0,0 +1,68 @@
+package org.apache.streams.hdfs;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsResultSet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a bounded read by one of the hdfs readers.  Iterating takes datums from the reader's queue as its threads
+ * produce them, and ends once the reading threads have all finished and the queue is empty.
+ */
+public class HdfsResultSet extends StreamsResultSet {
+
+    private static final long POLL_MILLIS = 100;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<StreamsDatum> queue;
+
+    public HdfsResultSet(ExecutorService executor, BlockingQueue<StreamsDatum> queue) {
+        super(queue);
+        this.executor = executor;
+        this.queue = queue;
+    }
+
+    @Override
+    public Iterator<StreamsDatum> iterator() {
+        return new Iterator<StreamsDatum>() {
+
+            private StreamsDatum next;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while( next == null && !done ) {
+                        // check before polling, so nothing added before the threads finished is missed
+                        boolean finished = executor.isTerminated();
+                        next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if( next == null && finished )
+                            done = true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    done = true;
+                }
+                return next != null;
+            }
+
+            @Override
+            public StreamsDatum next() {
+                if( !hasNext() )
+                    throw new NoSuchElementException();
+                StreamsDatum datum = next;
+                next = null;
+                return datum;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
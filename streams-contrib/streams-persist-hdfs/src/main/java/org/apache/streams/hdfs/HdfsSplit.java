@@ -0,0 +1,37 @@
+package org.apache.streams.hdfs;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A byte range of a file to be read by one thread.  A reader of a split starts at the first record boundary at or
+ * after start, and reads every record that starts before end, so the splits of a file read every record once.
+ */
+public class HdfsSplit {
+
+    private final Path path;
+    private final long start;
+    private final long end;
+
+    public HdfsSplit(Path path, long start, long end) {
+        this.path = path;
+        this.start = start;
+        this.end = end;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return path + ":" + start + "+" + (end - start);
+    }
+}
@@ -0,0 +1,218 @@
+package org.apache.streams.hdfs;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsPersistReader;
+import org.apache.streams.core.StreamsResultSet;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads the SequenceFiles written by {@link SequenceFilePersistWriter}.
+ *
+ * Files are read concurrently on a pool of readerThreads, and files larger than splitSize are cut into byte ranges
+ * that are read concurrently too, each starting at the first sync marker in its range.  Datums are handed over through
+ * a bounded queue, so readers wait for the stream rather than buffering whole files.
+ */
+public class SequenceFilePersistReader implements StreamsPersistReader {
+
+    public final static String STREAMS_ID = "SequenceFilePersistReader";
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(SequenceFilePersistReader.class);
+
+    private final static int DEFAULT_THREADS = 4;
+    private final static long DEFAULT_SPLIT_SIZE = 128l * 1024l * 1024l;
+    private final static int DEFAULT_QUEUE_SIZE = 10000;
+
+    private HdfsReaderConfiguration hdfsConfiguration;
+
+    private transient Configuration conf;
+    private transient FileSystem client;
+    transient List<HdfsSplit> splits;
+    private transient ExecutorService executor;
+
+    protected volatile BlockingQueue<StreamsDatum> persistQueue;
+
+    // filters of the read in progress
+    private volatile BigInteger minSequence;
+    private volatile DateTime rangeStart;
+    private volatile DateTime rangeEnd;
+
+    public SequenceFilePersistReader(HdfsReaderConfiguration hdfsConfiguration) {
+        this.hdfsConfiguration = hdfsConfiguration;
+    }
+
+    @Override
+    public void prepare(Object configurationObject) {
+        Configuration conf = WebHdfsClient.newConfiguration();
+        try {
+            init(WebHdfsClient.connect(hdfsConfiguration, conf), conf);
+        } catch (Exception e) {
+            LOGGER.error("There was an error connecting to WebHDFS, please check your settings and try again");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lists the splits to read from a file system.
+     */
+    void init(FileSystem client, Configuration conf) {
+        this.client = client;
+        this.conf = conf;
+
+        long splitSize = hdfsConfiguration.getSplitSize() != null ? hdfsConfiguration.getSplitSize() : DEFAULT_SPLIT_SIZE;
+        Path path = new Path(hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getReaderPath());
+        splits = Lists.newArrayList();
+        try {
+            for( FileStatus fileStatus : client.listStatus(path) ) {
+                String name = fileStatus.getPath().getName();
+                if( !fileStatus.isFile() || name.startsWith("_") || name.startsWith(".") )
+                    continue;
+                for( long start = 0; start < fileStatus.getLen(); start += splitSize )
+                    splits.add(new HdfsSplit(fileStatus.getPath(), start, Math.min(start + splitSize, fileStatus.getLen())));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to list {}: {}", path, e.getMessage());
+        }
+        LOGGER.info("{} splits to read under {}", splits.size(), path);
+
+        int queueSize = hdfsConfiguration.getQueueSize() != null
+                ? hdfsConfiguration.getQueueSize().intValue() : DEFAULT_QUEUE_SIZE;
+        persistQueue = new LinkedBlockingQueue<StreamsDatum>(queueSize);
+    }
+
+    @Override
+    public void cleanUp() {
+        if( executor != null )
+            executor.shutdownNow();
+    }
+
+    @Override
+    public void startStream() {
+        read(null, null, null);
+    }
+
+    @Override
+    public StreamsResultSet readAll() {
+        read(null, null, null);
+        return new HdfsResultSet(executor, persistQueue);
+    }
+
+    @Override
+    public StreamsResultSet readCurrent() {
+        List<StreamsDatum> current = Lists.newArrayList();
+        persistQueue.drainTo(current, persistQueue.size());
+        return new StreamsResultSet(Queues.newConcurrentLinkedQueue(current));
+    }
+
+    /**
+     * Reads the datums with a sequence id above the given one.
+     */
+    @Override
+    public StreamsResultSet readNew(BigInteger sequence) {
+        read(sequence, null, null);
+        return new HdfsResultSet(executor, persistQueue);
+    }
+
+    /**
+     * Reads the datums with a timestamp in [start, end).
+     */
+    @Override
+    public StreamsResultSet readRange(DateTime start, DateTime end) {
+        read(null, start, end);
+        return new HdfsResultSet(executor, persistQueue);
+    }
+
+    public boolean isRunning() {
+        return executor != null && !executor.isTerminated();
+    }
+
+    /**
+     * Whether a datum passes the filters of the read in progress.
+     */
+    boolean accept(StreamsDatum datum) {
+        if( minSequence != null && (datum.getSequenceid() == null || datum.getSequenceid().compareTo(minSequence) <= 0) )
+            return false;
+        if( rangeStart != null && (datum.getTimestamp() == null || datum.getTimestamp().isBefore(rangeStart)) )
+            return false;
+        if( rangeEnd != null && (datum.getTimestamp() == null || !datum.getTimestamp().isBefore(rangeEnd)) )
+            return false;
+        return true;
+    }
+
+    /**
+     * Reads every split on a pool of readerThreads, keeping the datums that pass the given filters.
+     */
+    private void read(BigInteger sequence, DateTime start, DateTime end) {
+        if( executor != null )
+            executor.shutdownNow();
+
+        minSequence = sequence;
+        rangeStart = start;
+        rangeEnd = end;
+
+        int threads = hdfsConfiguration.getReaderThreads() != null
+                ? hdfsConfiguration.getReaderThreads().intValue() : DEFAULT_THREADS;
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, splits.size())));
+        for( final HdfsSplit split : splits ) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(split);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        LOGGER.error("Failed reading {}: {}", split, e.getMessage());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Reads the records of a split: those that start after the first sync marker at or after the split start, up to
+     * the first sync marker at or after the split end.  Together the splits of a file read every record once.
+     */
+    @SuppressWarnings("deprecation")
+    private void read(HdfsSplit split) throws IOException, InterruptedException {
+        SequenceFile.Reader in = new SequenceFile.Reader(client, split.getPath(), conf);
+        try {
+            if( split.getStart() > in.getPosition() )
+                in.sync(split.getStart());
+
+            Text key = new Text();
+            StreamsDatumWritable value = new StreamsDatumWritable();
+            // a split that starts in the middle of the last sync interval has nothing of its own
+            if( in.getPosition() >= split.getEnd() )
+                return;
+            while( !Thread.currentThread().isInterrupted() ) {
+                long position = in.getPosition();
+                if( !in.next(key, value) || (position >= split.getEnd() && in.syncSeen()) )
+                    break;
+                StreamsDatum datum = value.toDatum(key.getLength() > 0 ? new BigInteger(key.toString()) : null);
+                if( accept(datum) )
+                    persistQueue.put(datum);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
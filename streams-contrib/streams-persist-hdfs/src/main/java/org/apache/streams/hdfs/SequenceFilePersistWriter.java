@@ -0,0 +1,166 @@
+package org.apache.streams.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.StreamsPersistWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * Writes datums to block compressed SequenceFiles, keyed by sequence id with a {@link StreamsDatumWritable} value.
+ *
+ * SequenceFiles carry sync markers, so unlike compressed tsv they can be split and read in parallel by hadoop jobs
+ * and by {@link SequenceFilePersistReader}.  Records are compressed with the configured codec, deflate by default.
+ */
+public class SequenceFilePersistWriter implements StreamsPersistWriter, Flushable, Closeable
+{
+    public final static String STREAMS_ID = "SequenceFilePersistWriter";
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(SequenceFilePersistWriter.class);
+
+    private final static int DEFAULT_RECORDS_PER_FILE = 1000000;
+
+    private HdfsWriterConfiguration hdfsConfiguration;
+    private int recordsPerFile = DEFAULT_RECORDS_PER_FILE;
+
+    private transient Configuration conf;
+    private transient FileSystem client;
+    private transient Path path;
+    private transient CompressionCodec codec;
+    private transient SequenceFile.Writer currentWriter;
+    private transient int fileRecordCounter = 0;
+    private transient List<Path> writtenFiles;
+
+    // reused for every record
+    private transient Text key;
+    private transient StreamsDatumWritable value;
+
+    private volatile int totalRecordsWritten = 0;
+
+    protected volatile Queue<StreamsDatum> persistQueue;
+
+    public SequenceFilePersistWriter(HdfsWriterConfiguration hdfsConfiguration) {
+        this.hdfsConfiguration = hdfsConfiguration;
+    }
+
+    public void setRecordsPerFile(int recordsPerFile) {
+        this.recordsPerFile = recordsPerFile;
+    }
+
+    public int getTotalRecordsWritten() {
+        return totalRecordsWritten;
+    }
+
+    public List<Path> getWrittenFiles() {
+        return new ArrayList<Path>(writtenFiles);
+    }
+
+    @Override
+    public void prepare(Object configurationObject) {
+        Configuration conf = WebHdfsClient.newConfiguration();
+        try {
+            init(WebHdfsClient.connect(hdfsConfiguration, conf), conf);
+        } catch (Exception e) {
+            LOGGER.error("There was an error connecting to WebHDFS, please check your settings and try again");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets up writing to a file system.
+     */
+    void init(FileSystem client, Configuration conf) {
+        this.client = client;
+        this.conf = conf;
+        path = new Path(hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getWriterPath());
+        codec = WebHdfsPersistWriter.getCodec(hdfsConfiguration.getCompression(), conf);
+        if(codec == null)
+            codec = ReflectionUtils.newInstance(DefaultCodec.class, conf);
+        writtenFiles = new ArrayList<Path>();
+        key = new Text();
+        value = new StreamsDatumWritable();
+    }
+
+    @Override
+    public synchronized void write(StreamsDatum streamsDatum) {
+        try {
+            if(currentWriter == null || fileRecordCounter >= recordsPerFile)
+                resetFile();
+
+            key.set(streamsDatum.getSequenceid() != null ? streamsDatum.getSequenceid().toString() : "");
+            value.set(streamsDatum);
+            currentWriter.append(key, value);
+
+            fileRecordCounter++;
+            totalRecordsWritten++;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write datum {}: {}", streamsDatum.getId(), e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void resetFile() throws IOException
+    {
+        close();
+
+        // writers running in parallel can start files in the same millisecond
+        Path filePath = this.path.suffix("/" + hdfsConfiguration.getWriterFilePrefix() + "-" + new Date().getTime()
+                + "-" + UUID.randomUUID().toString().substring(0, 8) + ".seq");
+        if(client.exists(filePath))
+            throw new IOException("Unable to create file: " + filePath);
+
+        currentWriter = SequenceFile.createWriter(client, conf, filePath, Text.class, StreamsDatumWritable.class,
+                SequenceFile.CompressionType.BLOCK, codec);
+        fileRecordCounter = 0;
+        writtenFiles.add(filePath);
+
+        LOGGER.info("File Created: {}", filePath);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        if(currentWriter != null)
+        {
+            // write out the block being compressed, then push it to the datanodes
+            currentWriter.sync();
+            currentWriter.hflush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(currentWriter != null)
+        {
+            currentWriter.close();
+            currentWriter = null;
+            LOGGER.info("File Closed");
+        }
+    }
+
+    @Override
+    public void cleanUp() {
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close file: {}", e.getMessage());
+        }
+    }
+}
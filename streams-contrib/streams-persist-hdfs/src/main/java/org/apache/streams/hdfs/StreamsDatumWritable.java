@@ -0,0 +1,80 @@
+package org.apache.streams.hdfs;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.joda.time.DateTime;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+
+/**
+ * A datum as the value of a SequenceFile record: id, timestamp, metadata and document, with the metadata and document
+ * as json.  The sequence id is the record key.  Documents are read back as json strings.
+ */
+public class StreamsDatumWritable implements Writable {
+
+    private String id;
+    private long timestamp;
+    private String metadata;
+    private String document;
+
+    public StreamsDatumWritable() {
+    }
+
+    public StreamsDatumWritable(StreamsDatum datum) throws IOException {
+        set(datum);
+    }
+
+    public void set(StreamsDatum datum) throws IOException {
+        this.id = datum.getId();
+        this.timestamp = datum.getTimestamp() != null ? datum.getTimestamp().getMillis() : -1;
+        this.metadata = datum.getMetadata() != null && !datum.getMetadata().isEmpty()
+                ? JsonMapperRegistry.writer().writeValueAsString(datum.getMetadata()) : null;
+        this.document = datum.getDocument() instanceof String
+                ? (String) datum.getDocument() : JsonMapperRegistry.writer().writeValueAsString(datum.getDocument());
+    }
+
+    /**
+     * Rebuilds the datum.
+     * @param sequenceid the record key, may be null
+     */
+    @SuppressWarnings("unchecked")
+    public StreamsDatum toDatum(BigInteger sequenceid) throws IOException {
+        StreamsDatum datum = new StreamsDatum(document, id, timestamp >= 0 ? new DateTime(timestamp) : null, sequenceid);
+        if(metadata != null)
+            datum.setMetadata(JsonMapperRegistry.reader(HashMap.class).<HashMap>readValue(metadata));
+        return datum;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        writeNullableString(out, id);
+        WritableUtils.writeVLong(out, timestamp);
+        writeNullableString(out, metadata);
+        Text.writeString(out, document);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        id = readNullableString(in);
+        timestamp = WritableUtils.readVLong(in);
+        metadata = readNullableString(in);
+        document = Text.readString(in);
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null)
+            Text.writeString(out, value);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? Text.readString(in) : null;
+    }
+}
@@ -0,0 +1,55 @@
+package org.apache.streams.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.hdfs.web.WebHdfsFileSystem;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Connects to WebHDFS as the configured user.
+ */
+public class WebHdfsClient {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(WebHdfsClient.class);
+
+    public static URI getURI(HdfsConfiguration hdfsConfiguration) throws URISyntaxException {
+        return new URI(WebHdfsFileSystem.SCHEME + "://" + hdfsConfiguration.getHost() + ":" + hdfsConfiguration.getPort());
+    }
+
+    /**
+     * Creates the hadoop configuration used to talk to WebHDFS.
+     */
+    public static Configuration newConfiguration() {
+        Configuration conf = new Configuration();
+        conf.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_AUTHENTICATION, "kerberos");
+        return conf;
+    }
+
+    /**
+     * Gets the WebHDFS file system as the configured user.
+     * @param hdfsConfiguration
+     * @param conf hadoop configuration from {@link #newConfiguration()}
+     * @return the file system
+     */
+    public static FileSystem connect(final HdfsConfiguration hdfsConfiguration, final Configuration conf) throws Exception {
+        LOGGER.info("User : {}", hdfsConfiguration.getUser());
+        UserGroupInformation ugi = UserGroupInformation.createRemoteUser(hdfsConfiguration.getUser());
+        ugi.setAuthenticationMethod(UserGroupInformation.AuthenticationMethod.SIMPLE);
+
+        return ugi.doAs(new PrivilegedExceptionAction<FileSystem>() {
+            public FileSystem run() throws Exception {
+                LOGGER.info("WebURI : {}", getURI(hdfsConfiguration).toString());
+                FileSystem client = FileSystem.get(getURI(hdfsConfiguration), conf);
+                LOGGER.info("Connected to WebHDFS");
+                return client;
+            }
+        });
+    }
+}
@@ -1,30 +1,30 @@
 package org.apache.streams.hdfs;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
-import org.apache.hadoop.hdfs.web.WebHdfsFileSystem;
-import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistReader;
 import org.apache.streams.core.StreamsResultSet;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
@@ -42,19 +42,30 @@ public class WebHdfsPersistReader implements StreamsPersistReader {
     protected Path path;
     protected FileStatus[] status;
 
-    protected volatile Queue<StreamsDatum> persistQueue;
-
-    private ObjectMapper mapper = new ObjectMapper();
+    protected volatile BlockingQueue<StreamsDatum> persistQueue;
 
     private HdfsReaderConfiguration hdfsConfiguration;
 
+    private final static String NULL = "null";
+    private final static int DEFAULT_THREADS = 4;
+    private final static long DEFAULT_SPLIT_SIZE = 128l * 1024l * 1024l;
+    private final static int DEFAULT_QUEUE_SIZE = 10000;
+
     private ExecutorService executor;
 
+    private transient CompressionCodecFactory codecs;
+    transient DateTimeFormatter partitionFormatter;
+
+    // filters of the read in progress
+    private volatile BigInteger minSequence;
+    private volatile DateTime rangeStart;
+    private volatile DateTime rangeEnd;
+
     public WebHdfsPersistReader(HdfsReaderConfiguration hdfsConfiguration) {
         this.hdfsConfiguration = hdfsConfiguration;
     }
 
-    public URI getURI() throws URISyntaxException { return new URI(WebHdfsFileSystem.SCHEME + "://" + hdfsConfiguration.getHost() + ":" + hdfsConfiguration.getPort()); }
+    public URI getURI() throws URISyntaxException { return WebHdfsClient.getURI(hdfsConfiguration); }
     public boolean isConnected() 		                { return (client != null); }
 
     public final synchronized FileSystem getFileSystem()
@@ -69,39 +80,9 @@ public class WebHdfsPersistReader implements StreamsPersistReader {
     {
         try
         {
-            LOGGER.info("User : {}", this.hdfsConfiguration.getUser());
-            UserGroupInformation ugi = UserGroupInformation.createRemoteUser(this.hdfsConfiguration.getUser());
-            ugi.setAuthenticationMethod(UserGroupInformation.AuthenticationMethod.SIMPLE);
-
-            ugi.doAs(new PrivilegedExceptionAction<Void>() {
-                public Void run() throws Exception {
-                    Configuration conf = new Configuration();
-                    conf.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_AUTHENTICATION, "kerberos");
-                    LOGGER.info("WebURI : {}", getURI().toString());
-                    client = FileSystem.get(getURI(), conf);
-                    LOGGER.info("Connected to WebHDFS");
-
-                    /*
-                    * ************************************************************************************************
-                    * This code is an example of how you would work with HDFS and you weren't going over
-                    * the webHDFS protocol.
-                    *
-                    * Smashew: 2013-10-01
-                    * ************************************************************************************************
-                    conf.set("fs.defaultFS", "hdfs://hadoop.mdigitallife.com:8020/user/" + userName);
-                    conf.set("namenode.host","0.0.0.0");
-                    conf.set("hadoop.job.ugi", userName);
-                    conf.set(DFSConfigKeys.DFS_NAMENODE_USER_NAME_KEY, "runner");
-                    fileSystem.createNewFile(new Path("/user/"+ userName + "/test"));
-                    FileStatus[] status = fs.listStatus(new Path("/user/" + userName));
-                    for(int i=0;i<status.length;i++)
-                    {
-                        LOGGER.info("Directory: {}", status[i].getPath());
-                    }
-                    */
-                    return null;
-                }
-            });
+            Configuration conf = WebHdfsClient.newConfiguration();
+            codecs = new CompressionCodecFactory(conf);
+            client = WebHdfsClient.connect(hdfsConfiguration, conf);
         }
         catch (Exception e)
         {
@@ -115,30 +96,29 @@ public class WebHdfsPersistReader implements StreamsPersistReader {
         LOGGER.debug("Prepare");
         connectToWebHDFS();
         path = new Path(hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getReaderPath());
-        try {
-            status = client.listStatus(path);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        persistQueue = new ConcurrentLinkedQueue<StreamsDatum>();
-        executor = Executors.newSingleThreadExecutor();
+        if( hdfsConfiguration.getPartitionPattern() != null )
+            partitionFormatter = DateTimeFormat.forPattern(hdfsConfiguration.getPartitionPattern()).withZoneUTC();
+        int queueSize = hdfsConfiguration.getQueueSize() != null
+                ? hdfsConfiguration.getQueueSize().intValue() : DEFAULT_QUEUE_SIZE;
+        persistQueue = new LinkedBlockingQueue<StreamsDatum>(queueSize);
     }
 
     @Override
     public void cleanUp() {
-
+        if( executor != null )
+            executor.shutdownNow();
     }
 
     @Override
     public StreamsResultSet readAll() {
-        readSourceWritePersistQueue();
-        return new StreamsResultSet(persistQueue);
+        read(listFiles(), null, null, null);
+        return new HdfsResultSet(executor, persistQueue);
     }
 
     @Override
     public void startStream() {
         LOGGER.debug("startStream");
-        executor.submit(new WebHdfsPersistReaderTask(this));
+        read(listFiles(), null, null, null);
     }
 
     @Override
@@ -146,51 +126,178 @@ public class WebHdfsPersistReader implements StreamsPersistReader {
 
         LOGGER.debug("readCurrent: {}", persistQueue.size());
 
-        Collection<StreamsDatum> currentIterator = Lists.newArrayList();
-        Iterators.addAll(currentIterator, persistQueue.iterator());
+        Collection<StreamsDatum> current = Lists.newArrayList();
+        persistQueue.drainTo(current, persistQueue.size());
 
-        StreamsResultSet current = new StreamsResultSet(Queues.newConcurrentLinkedQueue(currentIterator));
-
-        persistQueue.clear();
-
-        return current;
+        return new StreamsResultSet(Queues.newConcurrentLinkedQueue(current));
     }
 
+    /**
+     * Reads the datums with a sequence id above the given one, from the files present now.
+     */
     @Override
     public StreamsResultSet readNew(BigInteger sequence) {
-        return null;
+        read(listFiles(), sequence, null, null);
+        return new HdfsResultSet(executor, persistQueue);
     }
 
+    /**
+     * Reads the datums with a timestamp in [start, end).  With a partitionPattern configured, only the partitions that
+     * can hold such datums are read.
+     */
     @Override
     public StreamsResultSet readRange(DateTime start, DateTime end) {
-        return null;
-    }
-
-    private void readSourceWritePersistQueue() {
-        for( FileStatus fileStatus : status ) {
-            BufferedReader reader;
-
-            if( fileStatus.isFile() && !fileStatus.getPath().getName().endsWith("_SUCCESS")) {
-                try {
-                    reader = new BufferedReader(new InputStreamReader(client.open(fileStatus.getPath())));
-
-                    String line;
-                    do{
-                        try {
-                            line = reader.readLine();
-                            if( line != null ) {
-                                String[] fields = line.split(Character.toString(DELIMITER));
-                                persistQueue.offer(new StreamsDatum(fields[3]));
-                            }
-                        } catch (IOException e) {
-                            break;
-                        }
-                    } while( line != null );
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
-                }
+        read(prune(listFiles(), start, end), null, start, end);
+        return new HdfsResultSet(executor, persistQueue);
+    }
+
+    public boolean isRunning() {
+        return executor != null && !executor.isTerminated();
+    }
+
+    /**
+     * Whether a datum passes the filters of the read in progress.
+     */
+    boolean accept(StreamsDatum datum) {
+        if( minSequence != null && (datum.getSequenceid() == null || datum.getSequenceid().compareTo(minSequence) <= 0) )
+            return false;
+        if( rangeStart != null && (datum.getTimestamp() == null || datum.getTimestamp().isBefore(rangeStart)) )
+            return false;
+        if( rangeEnd != null && (datum.getTimestamp() == null || !datum.getTimestamp().isBefore(rangeEnd)) )
+            return false;
+        return true;
+    }
+
+    /**
+     * Reads the files on a pool of readerThreads, cutting the ones that can be split into splitSize byte ranges.
+     */
+    private void read(FileStatus[] files, BigInteger sequence, DateTime start, DateTime end) {
+        if( executor != null )
+            executor.shutdownNow();
+
+        minSequence = sequence;
+        rangeStart = start;
+        rangeEnd = end;
+
+        long splitSize = hdfsConfiguration.getSplitSize() != null ? hdfsConfiguration.getSplitSize() : DEFAULT_SPLIT_SIZE;
+        List<HdfsSplit> splits = Lists.newArrayList();
+        for( FileStatus fileStatus : files ) {
+            // compressed streams can only be read from the start
+            boolean splittable = codecs == null || codecs.getCodec(fileStatus.getPath()) == null;
+            long length = fileStatus.getLen();
+            if( !splittable || length <= splitSize )
+                splits.add(new HdfsSplit(fileStatus.getPath(), 0, Long.MAX_VALUE));
+            else
+                for( long offset = 0; offset < length; offset += splitSize )
+                    splits.add(new HdfsSplit(fileStatus.getPath(), offset, Math.min(offset + splitSize, length)));
+        }
+        LOGGER.info("Reading {} splits of {} files", splits.size(), files.length);
+
+        int threads = hdfsConfiguration.getReaderThreads() != null
+                ? hdfsConfiguration.getReaderThreads().intValue() : DEFAULT_THREADS;
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, splits.size())));
+        for( HdfsSplit split : splits )
+            executor.submit(new WebHdfsPersistReaderTask(this, split));
+        executor.shutdown();
+    }
+
+    /**
+     * Lists the files below the reader path as they are now, so every read sees the files written since the last.
+     */
+    private FileStatus[] listFiles() {
+        try {
+            status = listFiles(path);
+        } catch (IOException e) {
+            LOGGER.error("Unable to list {}: {}", path, e.getMessage());
+            status = new FileStatus[0];
+        }
+        return status;
+    }
+
+    /**
+     * Lists the files below a directory, descending into partitions and skipping hidden and temporary files.
+     */
+    private FileStatus[] listFiles(Path directory) throws IOException {
+        List<FileStatus> files = Lists.newArrayList();
+        for( FileStatus fileStatus : client.listStatus(directory) ) {
+            String name = fileStatus.getPath().getName();
+            if( name.startsWith("_") || name.startsWith(".") )
+                continue;
+            if( fileStatus.isDirectory() )
+                files.addAll(Arrays.asList(listFiles(fileStatus.getPath())));
+            else
+                files.add(fileStatus);
+        }
+        return files.toArray(new FileStatus[files.size()]);
+    }
+
+    /**
+     * Drops the files in partitions that cannot hold datums in [start, end).  A partition holds the datums from the
+     * time its path names up to the next partition, so the one holding start is found by formatting start with the
+     * pattern.  Files whose path does not parse are kept.
+     */
+    FileStatus[] prune(FileStatus[] files, DateTime start, DateTime end) {
+        if( partitionFormatter == null )
+            return files;
+
+        DateTime first = start != null ? partitionFormatter.parseDateTime(partitionFormatter.print(start)) : null;
+        String root = path.toUri().getPath();
+        List<FileStatus> kept = Lists.newArrayList();
+        for( FileStatus fileStatus : files ) {
+            String directory = fileStatus.getPath().getParent().toUri().getPath();
+            if( directory.length() <= root.length() ) {
+                kept.add(fileStatus);
+                continue;
+            }
+            try {
+                DateTime partition = partitionFormatter.parseDateTime(directory.substring(root.length() + 1));
+                if( (first == null || !partition.isBefore(first)) && (end == null || partition.isBefore(end)) )
+                    kept.add(fileStatus);
+            } catch (IllegalArgumentException e) {
+                kept.add(fileStatus);
             }
         }
+        LOGGER.info("Reading {} of {} files for {} to {}", kept.size(), files.length, start, end);
+        return kept.toArray(new FileStatus[kept.size()]);
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if its suffix names a compression codec.
+     */
+    protected InputStream open(Path file) throws IOException {
+        InputStream in = client.open(file);
+        CompressionCodec codec = codecs != null ? codecs.getCodec(file) : null;
+        if( codec != null )
+            in = codec.createInputStream(in);
+        return in;
+    }
+
+    /**
+     * Parses a line written by {@link WebHdfsPersistWriter}: sequenceid, timestamp, metadata json and document json,
+     * tab delimited.  Documents are returned as json, except strings which are returned as they were written.
+     * @return the datum, or null if the line is malformed
+     */
+    @SuppressWarnings("unchecked")
+    StreamsDatum parse(String line) throws IOException {
+        int first = line.indexOf(DELIMITER);
+        int second = first < 0 ? -1 : line.indexOf(DELIMITER, first + 1);
+        int third = second < 0 ? -1 : line.indexOf(DELIMITER, second + 1);
+        if( third < 0 )
+            return null;
+
+        String sequence = line.substring(0, first);
+        String timestamp = line.substring(first + 1, second);
+        String metadata = line.substring(second + 1, third);
+        String document = line.substring(third + 1);
+
+        if( document.startsWith("\"") )
+            document = JsonMapperRegistry.reader(String.class).readValue(document);
+
+        StreamsDatum datum = new StreamsDatum(document,
+                NULL.equals(timestamp) ? null : new DateTime(timestamp),
+                NULL.equals(sequence) ? null : new BigInteger(sequence));
+        if( !NULL.equals(metadata) )
+            datum.setMetadata(JsonMapperRegistry.reader(HashMap.class).<HashMap>readValue(metadata));
+        return datum;
     }
 }
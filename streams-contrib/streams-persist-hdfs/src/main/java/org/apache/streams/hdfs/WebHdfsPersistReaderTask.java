@@ -1,54 +1,83 @@
 package org.apache.streams.hdfs;
 
-import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
 import org.apache.streams.core.StreamsDatum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Random;
+import java.io.InputStream;
 
+/**
+ * Reads the lines of one split of a file into the reader's queue.  A line belongs to the split it starts in, counting
+ * a line that starts exactly at a split's end, so a split that does not start a file skips its first, partial, line.
+ */
 public class WebHdfsPersistReaderTask implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(WebHdfsPersistReaderTask.class);
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private WebHdfsPersistReader reader;
+    private HdfsSplit split;
 
-    public WebHdfsPersistReaderTask(WebHdfsPersistReader reader) {
+    public WebHdfsPersistReaderTask(WebHdfsPersistReader reader, HdfsSplit split) {
         this.reader = reader;
+        this.split = split;
     }
 
     @Override
     public void run() {
 
-        for( FileStatus fileStatus : reader.status ) {
-            BufferedReader bufferedReader;
+        InputStream in = null;
+        try {
+            if( split.getStart() > 0 ) {
+                // only uncompressed files are split
+                FSDataInputStream raw = reader.client.open(split.getPath());
+                raw.seek(split.getStart());
+                in = raw;
+            } else {
+                in = reader.open(split.getPath());
+            }
+
+            LineReader lines = new LineReader(in, BUFFER_SIZE);
+            Text line = new Text();
+            long position = split.getStart();
+            if( split.getStart() > 0 )
+                position += lines.readLine(line);
+
+            while( position <= split.getEnd() && !Thread.currentThread().isInterrupted() ) {
+                int consumed = lines.readLine(line);
+                if( consumed == 0 )
+                    break;
+                position += consumed;
 
-            if( fileStatus.isFile() && !fileStatus.getPath().getName().endsWith("_SUCCESS")) {
+                StreamsDatum datum = null;
                 try {
-                    bufferedReader = new BufferedReader(new InputStreamReader(reader.client.open(fileStatus.getPath())));
-
-                    String line = "";
-                    do{
-                        try {
-                            line = bufferedReader.readLine();
-                            if( line != null ) {
-                                String[] fields = line.split(Character.toString(reader.DELIMITER));
-                                reader.persistQueue.offer(new StreamsDatum(fields[3]));
-                            }
-                        } catch (Exception e) {
-                            LOGGER.warn("Failed processing " + line);
-                        }
-                    } while( line != null );
+                    datum = reader.parse(line.toString());
+                } catch (Exception e) {
+                    LOGGER.debug("Unable to parse line: {}", e.getMessage());
+                }
+                if( datum == null )
+                    LOGGER.warn("Failed processing line at {} in {}", position - consumed, split.getPath());
+                else if( reader.accept(datum) )
+                    reader.persistQueue.put(datum);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {}: {}", split, e.getMessage());
+        } finally {
+            if( in != null ) {
+                try {
+                    in.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
-                    break;
+                    LOGGER.debug("Unable to close {}: {}", split.getPath(), e.getMessage());
                 }
             }
         }
-
     }
 
 }
@@ -1,32 +1,49 @@
 package org.apache.streams.hdfs;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.typesafe.config.Config;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hdfs.web.WebHdfsFileSystem;
-import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.streams.hdfs.HdfsConfiguration;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.PrivilegedExceptionAction;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Closeable
 {
@@ -37,33 +54,63 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
     private final static char DELIMITER = '\t';
     private final static int  DEFAULT_LINES_PER_FILE = 50000;
 
+    private final static long DEFAULT_MAX_FILE_BYTES = 256l * 1024l * 1024l;
+    private final static long DEFAULT_ROLL_SECONDS = 3600;
+    private final static int  MAX_OPEN_FILES = 16;
+    private final static String TEMPORARY_PREFIX = "_";
+    private final static String TEMPORARY_SUFFIX = ".tmp";
+
     private FileSystem client;
     private Path path;
     private String filePart = "default";
-    private int linesPerFile = 1000;
-    private int totalRecordsWritten = 0;
+    private int linesPerFile = DEFAULT_LINES_PER_FILE;
+    private volatile int totalRecordsWritten = 0;
     private final List<Path> writtenFiles = new ArrayList<Path>();
-    private int fileLineCounter = 0;
-    private OutputStreamWriter currentWriter = null;
 
-    private static final int  BYTES_IN_MB = 1024*1024;
-    private static final int  BYTES_BEFORE_FLUSH = 64 * BYTES_IN_MB;
+    private long maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private long rollMillis = TimeUnit.SECONDS.toMillis(DEFAULT_ROLL_SECONDS);
+    private transient DateTimeFormatter partitionFormatter;
+
+    // the file being written in each active partition, least recently written first, only written by the I/O thread
+    private final LinkedHashMap<String, PartitionFile> openFiles = new LinkedHashMap<String, PartitionFile>(16, 0.75f, true);
+
     private volatile int  totalByteCount = 0;
-    private volatile int  byteCount = 0;
+
+    private final static int  DEFAULT_WRITE_QUEUE_SIZE = 10000;
+    private final static int  DRAIN_BATCH = 1000;
+    private final static long DEFAULT_FLUSH_SECONDS = 10;
+    private final static long POLL_MILLIS = 100;
+
+    private long flushMillis = TimeUnit.SECONDS.toMillis(DEFAULT_FLUSH_SECONDS);
+
+    // write behind, created by prepare()
+    private transient BlockingQueue<Line> writeQueue;
+    private transient ThreadLocal<LineBuffer> lineBuffers;
+    private transient Thread ioThread;
+    private transient volatile boolean running;
+    private transient volatile boolean closed;
+    // held by writes while they queue a line, and briefly by close() so none is queued after the I/O thread has gone
+    private transient ReadWriteLock closeLock;
+    private transient volatile Throwable failure;
+    private final AtomicLong queuedLines = new AtomicLong();
+    private final AtomicLong writtenLines = new AtomicLong();
 
     public boolean terminate = false;
 
     protected volatile Queue<StreamsDatum> persistQueue;
 
-    private ObjectMapper mapper = new ObjectMapper();
-
     private HdfsWriterConfiguration hdfsConfiguration;
 
+    private final static int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private transient Configuration conf;
+    private transient CompressionCodec codec;
+
     public WebHdfsPersistWriter(HdfsWriterConfiguration hdfsConfiguration) {
         this.hdfsConfiguration = hdfsConfiguration;
     }
 
-    public URI getURI() throws URISyntaxException { return new URI(WebHdfsFileSystem.SCHEME + "://" + hdfsConfiguration.getHost() + ":" + hdfsConfiguration.getPort()); }
+    public URI getURI() throws URISyntaxException { return WebHdfsClient.getURI(hdfsConfiguration); }
     public boolean isConnected() 		                { return (client != null); }
 
     public final synchronized FileSystem getFileSystem()
@@ -78,39 +125,8 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
     {
         try
         {
-            LOGGER.info("User : {}", this.hdfsConfiguration.getUser());
-            UserGroupInformation ugi = UserGroupInformation.createRemoteUser(this.hdfsConfiguration.getUser());
-            ugi.setAuthenticationMethod(UserGroupInformation.AuthenticationMethod.SIMPLE);
-
-            ugi.doAs(new PrivilegedExceptionAction<Void>() {
-                public Void run() throws Exception {
-                    Configuration conf = new Configuration();
-                    conf.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_AUTHENTICATION, "kerberos");
-                    LOGGER.info("WebURI : {}", getURI().toString());
-                    client = FileSystem.get(getURI(), conf);
-                    LOGGER.info("Connected to WebHDFS");
-
-                    /*
-                    * ************************************************************************************************
-                    * This code is an example of how you would work with HDFS and you weren't going over
-                    * the webHDFS protocol.
-                    *
-                    * Smashew: 2013-10-01
-                    * ************************************************************************************************
-                    conf.set("fs.defaultFS", "hdfs://hadoop.mdigitallife.com:8020/user/" + userName);
-                    conf.set("namenode.host","0.0.0.0");
-                    conf.set("hadoop.job.ugi", userName);
-                    conf.set(DFSConfigKeys.DFS_NAMENODE_USER_NAME_KEY, "runner");
-                    fileSystem.createNewFile(new Path("/user/"+ userName + "/test"));
-                    FileStatus[] status = fs.listStatus(new Path("/user/" + userName));
-                    for(int i=0;i<status.length;i++)
-                    {
-                        LOGGER.info("Directory: {}", status[i].getPath());
-                    }
-                    */
-                    return null;
-                }
-            });
+            conf = WebHdfsClient.newConfiguration();
+            client = WebHdfsClient.connect(hdfsConfiguration, conf);
         }
         catch (Exception e)
         {
@@ -119,145 +135,505 @@ public class WebHdfsPersistWriter implements StreamsPersistWriter, Flushable, Cl
         }
     }
     
+    /**
+     * Sets the number of lines after which a file is closed and a new one started.
+     * @param linesPerFile
+     */
+    public void setLinesPerFile(int linesPerFile) {
+        this.linesPerFile = linesPerFile;
+    }
+
+    /**
+     * Sets the size in bytes, before compression, after which a file is closed and a new one started.
+     * @param maxFileBytes
+     */
+    public void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * Sets how long a file is written to before it is closed and a new one started.
+     * @param rollSeconds
+     */
+    public void setRollSeconds(long rollSeconds) {
+        this.rollMillis = TimeUnit.SECONDS.toMillis(rollSeconds);
+    }
+
+    public List<Path> getWrittenFiles() {
+        synchronized (openFiles) {
+            return new ArrayList<Path>(writtenFiles);
+        }
+    }
+
+    /**
+     * Encodes the datum on the calling thread and queues it for the I/O thread, waiting while the queue is full.
+     * Fails once the writer has been closed or the I/O thread has failed, rather than queueing a line that would never
+     * be written.
+     */
     @Override
     public void write(StreamsDatum streamsDatum) {
 
-        synchronized (this)
-        {
-            // Check to see if we need to reset the file that we are currently working with
-            if (this.currentWriter == null || (this.fileLineCounter > this.linesPerFile))
-                try {
-                    resetFile();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        Preconditions.checkState(writeQueue != null, "Writer has not been prepared");
+        checkWriting();
 
-            String line = convertResultToString(streamsDatum);
-            try {
-                this.currentWriter.write(line);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            int bytesInLine = line.getBytes().length;
+        byte[] line = encode(streamsDatum);
+        if(line == null)
+            return;
 
-            totalRecordsWritten++;
-            totalByteCount += bytesInLine;
-            byteCount += bytesInLine;
+        Line queued = new Line(getPartition(streamsDatum), line);
+        closeLock.readLock().lock();
+        try {
+            checkWriting();
+            while(!writeQueue.offer(queued, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                checkWriting();
+            queuedLines.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted waiting to write datum {}, it was dropped", streamsDatum.getId());
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
 
-            if(byteCount > BYTES_BEFORE_FLUSH)
-                try {
-                    flush();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    private void checkWriting() {
+        if(failure != null)
+            throw new RuntimeException("Writing to WebHDFS failed", failure);
+        if(closed || ioThread == null || !ioThread.isAlive())
+            throw new IllegalStateException("Writer is closed");
+    }
 
-            this.fileLineCounter++;
-        }
+    /**
+     * The directory below the writer path that a datum belongs in, from its timestamp in UTC, or from the current time
+     * if it has none.  Empty when no partitionPattern is configured.
+     */
+    public String getPartition(StreamsDatum streamsDatum) {
+        if(partitionFormatter == null)
+            return "";
+        DateTime timestamp = streamsDatum.getTimestamp();
+        return partitionFormatter.print(timestamp != null ? timestamp : new DateTime(DateTimeZone.UTC));
     }
 
-    public void flush() throws IOException
+    /**
+     * Gets the file being written for a partition, closing it and starting a new one if it is full.
+     */
+    private PartitionFile getFile(String partition) throws IOException
     {
-        if(this.currentWriter != null && byteCount > BYTES_BEFORE_FLUSH)
+        synchronized (openFiles)
         {
-            this.currentWriter.flush();
-            byteCount = 0;
+            PartitionFile file = openFiles.get(partition);
+            if(file != null && (file.lines >= linesPerFile || file.bytes >= maxFileBytes))
+            {
+                openFiles.remove(partition);
+                closeFile(file);
+                file = null;
+            }
+
+            if(file == null)
+            {
+                // the least recently written beyond the limit are closed out
+                Iterator<PartitionFile> files = openFiles.values().iterator();
+                while(files.hasNext() && openFiles.size() >= MAX_OPEN_FILES)
+                {
+                    PartitionFile open = files.next();
+                    files.remove();
+                    closeFile(open);
+                }
+
+                file = openFile(partition);
+                openFiles.put(partition, file);
+            }
+            return file;
         }
     }
 
-    private synchronized void resetFile() throws Exception
+    /**
+     * Closes the files that have been open for rollMillis, so partitions that have gone quiet are renamed to their
+     * final names without waiting for another write to them.
+     */
+    private void closeExpiredFiles() throws IOException
     {
-        // this will keep it thread safe, so we don't create too many files
-        if(this.fileLineCounter == 0 && this.currentWriter != null)
-            return;
-
-        // if there is a current writer, we must close it first.
-        if (this.currentWriter != null)
+        synchronized (openFiles)
         {
-            flush();
-            close();
+            long now = System.currentTimeMillis();
+            Iterator<PartitionFile> files = openFiles.values().iterator();
+            while(files.hasNext())
+            {
+                PartitionFile open = files.next();
+                if(now - open.openedAt >= rollMillis)
+                {
+                    files.remove();
+                    closeFile(open);
+                }
+            }
         }
+    }
 
-        this.fileLineCounter = 0;
+    /**
+     * Starts a file in a partition under a temporary name that readers skip.
+     */
+    private PartitionFile openFile(String partition) throws IOException
+    {
+        Path directory = partition.isEmpty() ? this.path : new Path(this.path, partition);
 
-        // Create the path for where the file is going to live.
-        Path filePath = this.path.suffix("/" + hdfsConfiguration.getWriterFilePrefix() + "-" + new Date().getTime() + ".tsv");
+        // the suffix tells readers how it is compressed
+        // writers running in parallel can start files in the same millisecond
+        String name = hdfsConfiguration.getWriterFilePrefix() + "-" + new Date().getTime() + "-" + UUID.randomUUID().toString().substring(0, 8) + ".tsv"
+                + (codec != null ? codec.getDefaultExtension() : "");
+        Path finalPath = new Path(directory, name);
+        Path temporaryPath = new Path(directory, TEMPORARY_PREFIX + name + TEMPORARY_SUFFIX);
 
         try
         {
             // Check to see if a file of the same name exists, if it does, then we are not going to be able to proceed.
-            if(client.exists(filePath))
-                throw new RuntimeException("Unable to create file: " + filePath);
+            if(client.exists(finalPath) || client.exists(temporaryPath))
+                throw new IOException("Unable to create file: " + finalPath);
 
-            this.currentWriter = new OutputStreamWriter(client.create(filePath));
+            FSDataOutputStream raw = hdfsConfiguration.getBlockSize() != null
+                    ? client.create(temporaryPath, false, WRITE_BUFFER_SIZE, client.getDefaultReplication(temporaryPath), hdfsConfiguration.getBlockSize())
+                    : client.create(temporaryPath, false, WRITE_BUFFER_SIZE);
 
-            // Add another file to the list of written files.
-            writtenFiles.add(filePath);
+            // write, and compress, whole buffers at a time rather than line by line
+            OutputStream out = new BufferedOutputStream(codec != null ? codec.createOutputStream(raw) : raw, WRITE_BUFFER_SIZE);
 
-            LOGGER.info("File Created: {}", filePath);
+            LOGGER.info("File Created: {}", temporaryPath);
+            return new PartitionFile(temporaryPath, finalPath, raw, out);
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            LOGGER.error("COULD NOT CreateFile: {}", filePath);
+            LOGGER.error("COULD NOT CreateFile: {}", finalPath);
             LOGGER.error(e.getMessage());
             throw e;
         }
     }
 
-    public synchronized void close() throws IOException
+    /**
+     * Closes a file and renames it to its final name, so readers only ever see complete files.
+     */
+    private void closeFile(PartitionFile file) throws IOException
+    {
+        file.out.flush();
+        file.out.close();
+        if(!client.rename(file.temporaryPath, file.finalPath))
+            throw new IOException("Unable to rename " + file.temporaryPath + " to " + file.finalPath);
+        writtenFiles.add(file.finalPath);
+        LOGGER.info("File Closed: {}", file.finalPath);
+    }
+
+    /**
+     * Runs on the I/O thread: writes batches of queued lines with large sequential writes, closes files that have
+     * been open for rollMillis, and pushes what has been written out to the datanodes every flushInterval.
+     */
+    private void writeQueuedLines()
     {
-        if(this.currentWriter != null)
+        List<Line> batch = new ArrayList<Line>(DRAIN_BATCH);
+        long lastFlush = System.currentTimeMillis();
+        while(running || !writeQueue.isEmpty())
         {
-            this.currentWriter.flush();
-            this.currentWriter.close();
-            this.currentWriter = null;
-            LOGGER.info("File Closed");
+            try
+            {
+                Line first = writeQueue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(first != null)
+                {
+                    batch.add(first);
+                    writeQueue.drainTo(batch, DRAIN_BATCH - 1);
+                    write(batch);
+                }
+                closeExpiredFiles();
+                if(System.currentTimeMillis() - lastFlush >= flushMillis)
+                {
+                    hflush();
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                // close() is waiting for the queue to be drained, keep going until it is
+                Thread.interrupted();
+            }
+            catch(Throwable e)
+            {
+                // anything else would end the thread silently and leave write() waiting on a full queue
+                LOGGER.error("Unable to write to WebHDFS: {}", e.getMessage());
+                failure = e;
+            }
+            finally
+            {
+                if(!batch.isEmpty())
+                {
+                    writtenLines.addAndGet(batch.size());
+                    batch.clear();
+                    synchronized (writtenLines)
+                    {
+                        writtenLines.notifyAll();
+                    }
+                }
+            }
         }
     }
 
-    private String convertResultToString(StreamsDatum entry)
+    private void write(List<Line> batch) throws IOException
     {
-        String metadata = null;
-        try {
-            metadata = mapper.writeValueAsString(entry.getMetadata());
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+        synchronized (openFiles)
+        {
+            for(Line line : batch)
+            {
+                PartitionFile file = getFile(line.partition);
+                file.out.write(line.bytes);
+                file.lines++;
+                file.bytes += line.bytes.length;
+
+                totalRecordsWritten++;
+                totalByteCount += line.bytes.length;
+            }
         }
+    }
 
-        String documentJson = null;
-        try {
-            documentJson = mapper.writeValueAsString(entry.getDocument());
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+    private void hflush() throws IOException
+    {
+        synchronized (openFiles)
+        {
+            for(PartitionFile file : openFiles.values())
+            {
+                file.out.flush();
+                file.raw.hflush();
+            }
         }
+    }
 
-        if(Strings.isNullOrEmpty(documentJson))
+    /**
+     * Waits until everything written so far has reached the files, and pushes it out to the datanodes.
+     */
+    public void flush() throws IOException
+    {
+        awaitWritten();
+        if(failure instanceof IOException)
+            throw (IOException) failure;
+        if(failure != null)
+            throw new IOException("Writing to WebHDFS failed", failure);
+        hflush();
+    }
+
+    private void awaitWritten()
+    {
+        long queued = queuedLines.get();
+        synchronized (writtenLines)
+        {
+            while(writtenLines.get() < queued && ioThread != null && ioThread.isAlive())
+            {
+                try {
+                    writtenLines.wait(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out everything queued, then closes every open file.
+     */
+    public void close() throws IOException
+    {
+        closed = true;
+        if(closeLock != null)
+        {
+            // wait out writes that got past the check, the lines they queue are written below
+            closeLock.writeLock().lock();
+            closeLock.writeLock().unlock();
+        }
+        running = false;
+        if(ioThread != null)
+        {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (openFiles)
+        {
+            IOException failure = null;
+            for(PartitionFile file : openFiles.values())
+            {
+                try {
+                    closeFile(file);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to close {}: {}", file.temporaryPath, e.getMessage());
+                    failure = e;
+                }
+            }
+            openFiles.clear();
+            if(failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * A line ready to be written.
+     */
+    private static class Line
+    {
+        private final String partition;
+        private final byte[] bytes;
+
+        private Line(String partition, byte[] bytes)
+        {
+            this.partition = partition;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A reusable buffer for encoding lines, one per calling thread.
+     */
+    private static class LineBuffer extends ByteArrayOutputStream
+    {
+        private LineBuffer()
+        {
+            super(4096);
+        }
+
+        private void write(String value)
+        {
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class PartitionFile
+    {
+        private final Path temporaryPath;
+        private final Path finalPath;
+        private final FSDataOutputStream raw;
+        private final OutputStream out;
+        private final long openedAt = System.currentTimeMillis();
+        private int lines = 0;
+        private long bytes = 0;
+
+        private PartitionFile(Path temporaryPath, Path finalPath, FSDataOutputStream raw, OutputStream out)
+        {
+            this.temporaryPath = temporaryPath;
+            this.finalPath = finalPath;
+            this.raw = raw;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Encodes a datum as a tab delimited line: sequenceid, timestamp, metadata json and document json.  The line is
+     * built in this thread's reusable buffer, so the only allocation is the copy handed to the I/O thread.
+     * @return the line, or null if the datum cannot be serialized
+     */
+    private byte[] encode(StreamsDatum entry)
+    {
+        LineBuffer buffer = lineBuffers.get();
+        buffer.reset();
+        try {
+            buffer.write(String.valueOf(entry.getSequenceid()));
+            buffer.write(DELIMITER);
+            buffer.write(String.valueOf(entry.getTimestamp()));
+            buffer.write(DELIMITER);
+            JsonMapperRegistry.writer().writeValue(buffer, entry.getMetadata());
+            buffer.write(DELIMITER);
+            JsonMapperRegistry.writer().writeValue(buffer, entry.getDocument());
+            buffer.write('\n');
+        } catch (IOException e) {
+            LOGGER.warn("Unable to serialize datum {}: {}", entry.getId(), e.getMessage());
             return null;
-        else
-            return new StringBuilder()
-                    .append(entry.getSequenceid())
-                    .append(DELIMITER)
-                    .append(entry.getTimestamp())
-                    .append(DELIMITER)
-                    .append(metadata)
-                    .append(DELIMITER)
-                    .append(documentJson)
-                    .append("\n")
-                    .toString();
+        }
+        return buffer.toByteArray();
     }
 
     @Override
     public void prepare(Object configurationObject) {
         connectToWebHDFS();
+        if(!isConnected())
+            throw new IllegalStateException("Unable to connect to WebHDFS at " + hdfsConfiguration.getHost() + ":" + hdfsConfiguration.getPort());
+        init(client, conf);
+    }
+
+    /**
+     * Sets up writing to a file system, and starts the I/O thread.
+     */
+    void init(FileSystem client, Configuration conf) {
+        this.client = client;
+        this.conf = conf;
         path = new Path(hdfsConfiguration.getPath() + "/" + hdfsConfiguration.getWriterPath());
+        codec = getCodec(hdfsConfiguration.getCompression(), conf);
+        if(hdfsConfiguration.getPartitionPattern() != null)
+            partitionFormatter = DateTimeFormat.forPattern(hdfsConfiguration.getPartitionPattern()).withZoneUTC();
+        if(hdfsConfiguration.getLinesPerFile() != null)
+            setLinesPerFile(hdfsConfiguration.getLinesPerFile().intValue());
+        if(hdfsConfiguration.getMaxFileBytes() != null)
+            setMaxFileBytes(hdfsConfiguration.getMaxFileBytes());
+        if(hdfsConfiguration.getRollSeconds() != null)
+            setRollSeconds(hdfsConfiguration.getRollSeconds());
+        if(hdfsConfiguration.getFlushSeconds() != null)
+            flushMillis = TimeUnit.SECONDS.toMillis(hdfsConfiguration.getFlushSeconds());
+
+        int queueSize = hdfsConfiguration.getWriteQueueSize() != null
+                ? hdfsConfiguration.getWriteQueueSize().intValue() : DEFAULT_WRITE_QUEUE_SIZE;
+        writeQueue = new ArrayBlockingQueue<Line>(queueSize);
+        lineBuffers = new ThreadLocal<LineBuffer>() {
+            @Override
+            protected LineBuffer initialValue() {
+                return new LineBuffer();
+            }
+        };
+        closeLock = new ReentrantReadWriteLock();
+        closed = false;
+        running = true;
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueuedLines();
+            }
+        }, STREAMS_ID + "-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Finds the codec for a compression setting: none, gzip, deflate, bzip2, snappy, lz4, or the class name of any
+     * hadoop CompressionCodec.  Snappy and lz4 need the hadoop native libraries.
+     * @param compression the setting, null or none for no compression
+     * @param conf configuration the codec is created with
+     * @return the codec, null for no compression
+     */
+    public static CompressionCodec getCodec(String compression, Configuration conf)
+    {
+        if(Strings.isNullOrEmpty(compression) || compression.equalsIgnoreCase("none"))
+            return null;
+
+        Class<? extends CompressionCodec> codecClass;
+        if(compression.equalsIgnoreCase("gzip"))
+            codecClass = GzipCodec.class;
+        else if(compression.equalsIgnoreCase("deflate"))
+            codecClass = DefaultCodec.class;
+        else if(compression.equalsIgnoreCase("bzip2"))
+            codecClass = BZip2Codec.class;
+        else if(compression.equalsIgnoreCase("snappy"))
+            codecClass = SnappyCodec.class;
+        else if(compression.equalsIgnoreCase("lz4"))
+            codecClass = Lz4Codec.class;
+        else
+        {
+            try
+            {
+                codecClass = conf.getClassByName(compression).asSubclass(CompressionCodec.class);
+            }
+            catch(Exception e)
+            {
+                throw new IllegalArgumentException("Unknown compression: " + compression, e);
+            }
+        }
+        return ReflectionUtils.newInstance(codecClass, conf);
     }
 
     @Override
     public void cleanUp() {
-        try {
-            flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         try {
             close();
         } catch (IOException e) {
@@ -0,0 +1,120 @@
+package org.apache.streams.hdfs;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.streams.core.StreamsDatum;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes SequenceFiles on the local file system with {@link SequenceFilePersistWriter} and reads them back as many
+ * splits with {@link SequenceFilePersistReader}.
+ */
+public class SequenceFilePersistReaderTest {
+
+    private static final int RECORDS = 5000;
+    private static final long START = 1393670400000L;
+
+    private File directory;
+    private FileSystem fileSystem;
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        conf = new Configuration();
+        // small compressed blocks, so each file has many sync markers to split at
+        conf.setInt("io.seqfile.compress.blocksize", 1024);
+        fileSystem = FileSystem.getLocal(conf);
+
+        HdfsWriterConfiguration config = new HdfsWriterConfiguration();
+        config.setPath(directory.getAbsolutePath());
+        config.setWriterPath("seq");
+        config.setWriterFilePrefix("test");
+        SequenceFilePersistWriter writer = new SequenceFilePersistWriter(config);
+        writer.init(fileSystem, conf);
+        writer.setRecordsPerFile(RECORDS / 2);
+        for(int i = 0; i < RECORDS; i++)
+            writer.write(new StreamsDatum("{\"n\":" + i + "}", "id-" + i, new DateTime(START + i * 1000L), BigInteger.valueOf(i)));
+        writer.close();
+        assertEquals(2, writer.getWrittenFiles().size());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.delete(new Path(directory.getAbsolutePath()), true);
+    }
+
+    @Test
+    public void testSplitsReadEveryRecordOnce() throws Exception {
+        for(long splitSize : new long[] {100, 777, 4096, 1024 * 1024}) {
+            SequenceFilePersistReader reader = reader(splitSize);
+            Set<BigInteger> read = Sets.newHashSet();
+            for(StreamsDatum datum : reader.readAll())
+                assertTrue("read twice: " + datum.getSequenceid() + " with splits of " + splitSize, read.add(datum.getSequenceid()));
+            assertEquals(RECORDS, read.size());
+        }
+        assertTrue(reader(777).splits.size() > 2);
+    }
+
+    @Test
+    public void testReadNew() throws Exception {
+        Set<BigInteger> read = Sets.newHashSet();
+        for(StreamsDatum datum : reader(4096).readNew(BigInteger.valueOf(RECORDS - 100)))
+            read.add(datum.getSequenceid());
+        assertEquals(99, read.size());
+        assertTrue(read.contains(BigInteger.valueOf(RECORDS - 1)));
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        Set<BigInteger> read = Sets.newHashSet();
+        for(StreamsDatum datum : reader(4096).readRange(new DateTime(START + 1000 * 1000L), new DateTime(START + 1500 * 1000L)))
+            read.add(datum.getSequenceid());
+        assertEquals(500, read.size());
+        assertTrue(read.contains(BigInteger.valueOf(1000)));
+        assertTrue(read.contains(BigInteger.valueOf(1499)));
+    }
+
+    @Test
+    public void testQueueSize() throws Exception {
+        HdfsReaderConfiguration config = config(4096);
+        config.setQueueSize(16L);
+        SequenceFilePersistReader reader = new SequenceFilePersistReader(config);
+        reader.init(fileSystem, conf);
+        assertEquals(16, reader.persistQueue.remainingCapacity());
+
+        // the threads wait on the small queue rather than dropping datums
+        Set<BigInteger> read = Sets.newHashSet();
+        for(StreamsDatum datum : reader.readAll())
+            read.add(datum.getSequenceid());
+        assertEquals(RECORDS, read.size());
+    }
+
+    private SequenceFilePersistReader reader(long splitSize) {
+        SequenceFilePersistReader reader = new SequenceFilePersistReader(config(splitSize));
+        reader.init(fileSystem, conf);
+        return reader;
+    }
+
+    private HdfsReaderConfiguration config(long splitSize) {
+        HdfsReaderConfiguration config = new HdfsReaderConfiguration();
+        config.setPath(directory.getAbsolutePath());
+        config.setReaderPath("seq");
+        config.setSplitSize(splitSize);
+        config.setReaderThreads(4L);
+        return config;
+    }
+}
@@ -0,0 +1,88 @@
+package org.apache.streams.hdfs;
+
+import com.google.common.collect.Maps;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.streams.core.StreamsDatum;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes datums with {@link StreamsDatumWritable} and reads them back.
+ */
+public class StreamsDatumWritableTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Object> metadata = Maps.newHashMap();
+        metadata.put("source", "test");
+        DateTime timestamp = new DateTime(1393670400000L);
+        StreamsDatum datum = new StreamsDatum("{\"text\":\"caf\u00e9\"}", "id-1", timestamp, BigInteger.TEN);
+        datum.setMetadata(metadata);
+
+        StreamsDatum read = roundTrip(datum, BigInteger.TEN);
+        assertEquals("id-1", read.getId());
+        assertEquals(timestamp.getMillis(), read.getTimestamp().getMillis());
+        assertEquals(BigInteger.TEN, read.getSequenceid());
+        assertEquals("test", read.getMetadata().get("source"));
+        assertEquals("{\"text\":\"caf\u00e9\"}", read.getDocument());
+    }
+
+    @Test
+    public void testNulls() throws Exception {
+        StreamsDatum read = roundTrip(new StreamsDatum("document"), null);
+        assertNull(read.getId());
+        assertNull(read.getTimestamp());
+        assertNull(read.getSequenceid());
+        assertTrue(read.getMetadata() == null || read.getMetadata().isEmpty());
+        assertEquals("document", read.getDocument());
+    }
+
+    @Test
+    public void testObjectDocument() throws Exception {
+        Map<String, Object> document = Maps.newHashMap();
+        document.put("n", 1);
+        StreamsDatum read = roundTrip(new StreamsDatum(document, "id-2"), null);
+        assertEquals("{\"n\":1}", read.getDocument());
+    }
+
+    @Test
+    public void testReused() throws Exception {
+        // a reader reuses one value for every record, so nothing may carry over between them
+        StreamsDatum first = new StreamsDatum("one", "id-1", new DateTime(1000L), null);
+        first.getMetadata().put("a", "b");
+        DataOutputBuffer out = new DataOutputBuffer();
+        new StreamsDatumWritable(first).write(out);
+        new StreamsDatumWritable(new StreamsDatum("two")).write(out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        StreamsDatumWritable value = new StreamsDatumWritable();
+        value.readFields(in);
+        assertEquals("one", value.toDatum(null).getDocument());
+        value.readFields(in);
+        StreamsDatum second = value.toDatum(null);
+        assertEquals("two", second.getDocument());
+        assertNull(second.getId());
+        assertNull(second.getTimestamp());
+        assertTrue(second.getMetadata() == null || second.getMetadata().isEmpty());
+    }
+
+    private static StreamsDatum roundTrip(StreamsDatum datum, BigInteger sequenceid) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new StreamsDatumWritable(datum).write(out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        StreamsDatumWritable value = new StreamsDatumWritable();
+        value.readFields(in);
+        return value.toDatum(sequenceid);
+    }
+}
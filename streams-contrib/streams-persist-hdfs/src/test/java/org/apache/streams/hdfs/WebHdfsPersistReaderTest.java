@@ -0,0 +1,205 @@
+package org.apache.streams.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.streams.core.StreamsDatum;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads files on the local file system with {@link WebHdfsPersistReaderTask}s, and checks how
+ * {@link WebHdfsPersistReader} parses lines and prunes partitions.
+ */
+public class WebHdfsPersistReaderTest {
+
+    private static final int LINES = 200;
+
+    private File directory;
+    private FileSystem fileSystem;
+    private WebHdfsPersistReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        fileSystem = FileSystem.getLocal(new Configuration());
+        reader = new WebHdfsPersistReader(new HdfsReaderConfiguration());
+        reader.client = fileSystem;
+        reader.persistQueue = new LinkedBlockingQueue<StreamsDatum>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.delete(new Path(directory.getAbsolutePath()), true);
+    }
+
+    @Test
+    public void testSplitsReadEveryLineOnce() throws Exception {
+        List<Long> lineStarts = Lists.newArrayList();
+        Path file = writeLines(lineStarts);
+        long length = fileSystem.getFileStatus(file).getLen();
+
+        // every split size from one that cuts each line several times to one that holds many lines
+        for(long splitSize = 7; splitSize < 400; splitSize += 13)
+            assertReadOnce(file, splitsOf(file, length, splitSize));
+    }
+
+    @Test
+    public void testSplitOnLineStart() throws Exception {
+        List<Long> lineStarts = Lists.newArrayList();
+        Path file = writeLines(lineStarts);
+        long length = fileSystem.getFileStatus(file).getLen();
+
+        // the line starting exactly on the boundary belongs to the first split only
+        long boundary = lineStarts.get(LINES / 2);
+        List<HdfsSplit> splits = Lists.newArrayList(
+                new HdfsSplit(file, 0, boundary),
+                new HdfsSplit(file, boundary, length));
+        assertReadOnce(file, splits);
+
+        new WebHdfsPersistReaderTask(reader, splits.get(0)).run();
+        Set<BigInteger> first = Sets.newHashSet();
+        for(StreamsDatum datum : reader.persistQueue)
+            first.add(datum.getSequenceid());
+        reader.persistQueue.clear();
+        assertEquals(LINES / 2 + 1, first.size());
+        assertTrue(first.contains(BigInteger.valueOf(LINES / 2)));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        StreamsDatum datum = reader.parse("12\t2014-03-01T10:30:00.000Z\t{\"id\":\"a\"}\t{\"text\":\"one\\ttwo\"}");
+        assertEquals(BigInteger.valueOf(12), datum.getSequenceid());
+        assertEquals(new DateTime("2014-03-01T10:30:00.000Z").getMillis(), datum.getTimestamp().getMillis());
+        assertEquals("a", datum.getMetadata().get("id"));
+        assertEquals("{\"text\":\"one\\ttwo\"}", datum.getDocument());
+
+        // strings are unquoted, and tabs after the third delimiter are part of the document
+        datum = reader.parse("null\tnull\tnull\t\"one\\ttwo\"");
+        assertNull(datum.getSequenceid());
+        assertNull(datum.getTimestamp());
+        assertEquals("one\ttwo", datum.getDocument());
+
+        assertEquals("{\"a\":1}\t{\"b\":2}", reader.parse("1\tnull\tnull\t{\"a\":1}\t{\"b\":2}").getDocument());
+
+        assertNull(reader.parse("1\tnull\t{}"));
+    }
+
+    @Test
+    public void testPruneStraddlingPartitions() throws Exception {
+        reader.path = new Path("/data/streams");
+        reader.partitionFormatter = DateTimeFormat.forPattern("yyyy/MM/dd/HH").withZoneUTC();
+
+        FileStatus[] files = new FileStatus[] {
+                status("/data/streams/2014/03/01/09/a.tsv"),
+                status("/data/streams/2014/03/01/10/a.tsv"),
+                status("/data/streams/2014/03/01/11/a.tsv"),
+                status("/data/streams/2014/03/01/12/a.tsv"),
+                status("/data/streams/2014/03/01/13/a.tsv"),
+                status("/data/streams/a.tsv"),
+                status("/data/streams/other/a.tsv")
+        };
+
+        // starts part way into the 10:00 partition and ends part way into the 12:00 one
+        DateTime start = new DateTime(2014, 3, 1, 10, 30, DateTimeZone.UTC);
+        DateTime end = new DateTime(2014, 3, 1, 12, 15, DateTimeZone.UTC);
+
+        Set<String> kept = Sets.newHashSet();
+        for(FileStatus file : reader.prune(files, start, end))
+            kept.add(file.getPath().toUri().getPath());
+
+        assertEquals(Sets.newHashSet(
+                "/data/streams/2014/03/01/10/a.tsv",
+                "/data/streams/2014/03/01/11/a.tsv",
+                "/data/streams/2014/03/01/12/a.tsv",
+                "/data/streams/a.tsv",
+                "/data/streams/other/a.tsv"), kept);
+    }
+
+    private Path writeLines(List<Long> lineStarts) throws Exception {
+        return writeLines("lines.tsv", 0, lineStarts);
+    }
+
+    @Test
+    public void testReadNewSeesFilesWrittenSincePrepare() throws Exception {
+        reader.path = new Path(directory.getAbsolutePath());
+        writeLines("first.tsv", 0, Lists.<Long>newArrayList());
+        assertEquals(LINES, sequences(reader.readNew(BigInteger.valueOf(-1))).size());
+
+        writeLines("second.tsv", LINES, Lists.<Long>newArrayList());
+        Set<BigInteger> read = sequences(reader.readNew(BigInteger.valueOf(LINES - 1)));
+        assertEquals(LINES, read.size());
+        assertTrue(read.contains(BigInteger.valueOf(LINES)));
+        assertTrue(read.contains(BigInteger.valueOf(2 * LINES - 1)));
+    }
+
+    private static Set<BigInteger> sequences(Iterable<StreamsDatum> datums) {
+        Set<BigInteger> sequences = Sets.newHashSet();
+        for(StreamsDatum datum : datums)
+            sequences.add(datum.getSequenceid());
+        return sequences;
+    }
+
+    /**
+     * Writes lines of varying length the way {@link WebHdfsPersistWriter} does, recording where each one starts.
+     */
+    private Path writeLines(String name, int first, List<Long> lineStarts) throws Exception {
+        Path file = new Path(directory.getAbsolutePath(), name);
+        FSDataOutputStream out = fileSystem.create(file, true);
+        long position = 0;
+        for(int i = first; i < first + LINES; i++) {
+            StringBuilder padding = new StringBuilder();
+            for(int j = 0; j < i % 17; j++)
+                padding.append('x');
+            byte[] line = (i + "\tnull\tnull\t{\"n\":" + i + ",\"pad\":\"" + padding + "\"}\n").getBytes(Charsets.UTF_8);
+            lineStarts.add(position);
+            out.write(line);
+            position += line.length;
+        }
+        out.close();
+        return file;
+    }
+
+    private List<HdfsSplit> splitsOf(Path file, long length, long splitSize) {
+        List<HdfsSplit> splits = Lists.newArrayList();
+        for(long offset = 0; offset < length; offset += splitSize)
+            splits.add(new HdfsSplit(file, offset, Math.min(offset + splitSize, length)));
+        return splits;
+    }
+
+    private void assertReadOnce(Path file, List<HdfsSplit> splits) {
+        for(HdfsSplit split : splits)
+            new WebHdfsPersistReaderTask(reader, split).run();
+
+        Set<BigInteger> sequences = Sets.newHashSet();
+        for(StreamsDatum datum : reader.persistQueue)
+            assertTrue("read twice: " + datum.getSequenceid() + " with " + splits.size() + " splits of " + file,
+                    sequences.add(datum.getSequenceid()));
+        assertEquals(LINES, sequences.size());
+        reader.persistQueue.clear();
+    }
+
+    private static FileStatus status(String path) {
+        return new FileStatus(100, false, 1, 1024, 0, new Path(path));
+    }
+}
@@ -0,0 +1,283 @@
+package org.apache.streams.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.streams.core.StreamsDatum;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes files on the local file system with {@link WebHdfsPersistWriter}, and checks how they are rolled, partitioned
+ * and renamed, and how the write behind queue hands lines to the I/O thread.
+ */
+public class WebHdfsPersistWriterTest {
+
+    private static final long START = 1393632000000L;
+    private static final long HOUR = 3600 * 1000L;
+
+    private File directory;
+    private FileSystem fileSystem;
+    private Configuration conf;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        conf = new Configuration();
+        // the raw file system, so flushed lines reach the file without waiting for a checksum chunk to fill
+        fileSystem = FileSystem.getLocal(conf).getRawFileSystem();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.delete(new Path(directory.getAbsolutePath()), true);
+    }
+
+    @Test
+    public void testRollsByLines() throws Exception {
+        HdfsWriterConfiguration config = config();
+        config.setLinesPerFile(10L);
+        WebHdfsPersistWriter writer = writer(config);
+        write(writer, 0, 25, 0);
+        writer.close();
+
+        List<Path> files = writer.getWrittenFiles();
+        assertEquals(3, files.size());
+        assertEquals(10, lines(files.get(0)).size());
+        assertEquals(10, lines(files.get(1)).size());
+        assertEquals(5, lines(files.get(2)).size());
+        assertEquals("0", lines(files.get(0)).get(0).split("\t")[0]);
+        assertEquals("24", lines(files.get(2)).get(4).split("\t")[0]);
+    }
+
+    @Test
+    public void testRollsByBytes() throws Exception {
+        HdfsWriterConfiguration config = config();
+        // every line fills a file
+        config.setMaxFileBytes(1L);
+        WebHdfsPersistWriter writer = writer(config);
+        write(writer, 0, 5, 0);
+        writer.close();
+
+        List<Path> files = writer.getWrittenFiles();
+        assertEquals(5, files.size());
+        for(Path file : files)
+            assertEquals(1, lines(file).size());
+    }
+
+    @Test
+    public void testRollsByAge() throws Exception {
+        HdfsWriterConfiguration config = config();
+        config.setRollSeconds(1L);
+        WebHdfsPersistWriter writer = writer(config);
+        write(writer, 0, 3, 0);
+        writer.flush();
+        assertEquals(1, temporaryFiles(directory).size());
+
+        // closed by the I/O thread once it is old enough, without another write or close
+        long deadline = System.currentTimeMillis() + 10000;
+        while(writer.getWrittenFiles().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(100);
+        assertEquals(1, writer.getWrittenFiles().size());
+        assertEquals(0, temporaryFiles(directory).size());
+        assertEquals(3, lines(writer.getWrittenFiles().get(0)).size());
+        writer.close();
+    }
+
+    @Test
+    public void testRenamesTemporaryFilesOnClose() throws Exception {
+        WebHdfsPersistWriter writer = writer(config());
+        write(writer, 0, 10, 0);
+        writer.flush();
+
+        // readers skip the file while it is written
+        List<File> temporary = temporaryFiles(directory);
+        assertEquals(1, temporary.size());
+        assertTrue(temporary.get(0).getName().startsWith("_test-"));
+        assertEquals(10, Files.readLines(temporary.get(0), Charsets.UTF_8).size());
+        assertTrue(writer.getWrittenFiles().isEmpty());
+
+        writer.close();
+        assertEquals(0, temporaryFiles(directory).size());
+        List<Path> files = writer.getWrittenFiles();
+        assertEquals(1, files.size());
+        assertTrue(files.get(0).getName().startsWith("test-"));
+        assertTrue(files.get(0).getName().endsWith(".tsv"));
+        assertEquals(10, lines(files.get(0)).size());
+    }
+
+    @Test
+    public void testKeepsAtMostSixteenFilesOpen() throws Exception {
+        HdfsWriterConfiguration config = config();
+        config.setPartitionPattern("yyyy/MM/dd/HH");
+        WebHdfsPersistWriter writer = writer(config);
+        // one line an hour, each in its own partition
+        write(writer, 0, 20, HOUR);
+        writer.flush();
+
+        // the least recently written partitions were closed out
+        List<Path> closed = writer.getWrittenFiles();
+        assertEquals(4, closed.size());
+        for(int i = 0; i < 4; i++)
+            assertEquals(String.format("%02d", i), closed.get(i).getParent().getName());
+        assertEquals(16, temporaryFiles(directory).size());
+
+        writer.close();
+        assertEquals(20, writer.getWrittenFiles().size());
+        assertEquals(0, temporaryFiles(directory).size());
+        assertEquals("2014/03/01/19", relative(writer.getWrittenFiles().get(19).getParent()));
+    }
+
+    @Test
+    public void testFlushWaitsForQueuedLines() throws Exception {
+        WebHdfsPersistWriter writer = writer(config());
+        write(writer, 0, 1000, 0);
+        writer.flush();
+        assertEquals(1000, Files.readLines(temporaryFiles(directory).get(0), Charsets.UTF_8).size());
+        writer.close();
+    }
+
+    @Test
+    public void testWritesBlockWhileTheQueueIsFull() throws Exception {
+        HdfsWriterConfiguration config = config();
+        config.setWriteQueueSize(2L);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WebHdfsPersistWriter writer = new WebHdfsPersistWriter(config);
+        // the I/O thread is held up opening the first file
+        writer.init(new FilterFileSystem(fileSystem) {
+            @Override
+            public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                                             short replication, long blockSize, Progressable progress) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+            }
+        }, conf);
+
+        // one line taken by the I/O thread, two filling the queue
+        write(writer, 0, 3, 0);
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                write(writer, 3, 1, 0);
+            }
+        };
+        blocked.start();
+        blocked.join(500);
+        assertTrue(blocked.isAlive());
+
+        release.countDown();
+        blocked.join(10000);
+        assertFalse(blocked.isAlive());
+        writer.close();
+        assertEquals(4, lines(writer.getWrittenFiles().get(0)).size());
+    }
+
+    @Test
+    public void testFailuresSurfaceFromWrite() throws Exception {
+        WebHdfsPersistWriter writer = new WebHdfsPersistWriter(config());
+        writer.init(new FilterFileSystem(fileSystem) {
+            @Override
+            public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                                             short replication, long blockSize, Progressable progress) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, conf);
+
+        write(writer, 0, 1, 0);
+        try {
+            writer.flush();
+            fail("flush should fail");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        try {
+            write(writer, 1, 1, 0);
+            fail("write should fail");
+        } catch (RuntimeException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testClosedWriterRejectsWrites() throws Exception {
+        WebHdfsPersistWriter writer = writer(config());
+        write(writer, 0, 5, 0);
+        writer.close();
+        assertEquals(5, lines(writer.getWrittenFiles().get(0)).size());
+        try {
+            write(writer, 5, 1, 0);
+            fail("write should fail once closed");
+        } catch (IllegalStateException e) {
+            assertEquals("Writer is closed", e.getMessage());
+        }
+    }
+
+    private HdfsWriterConfiguration config() {
+        HdfsWriterConfiguration config = new HdfsWriterConfiguration();
+        config.setPath(directory.getAbsolutePath());
+        config.setWriterPath("tsv");
+        config.setWriterFilePrefix("test");
+        return config;
+    }
+
+    private WebHdfsPersistWriter writer(HdfsWriterConfiguration config) {
+        WebHdfsPersistWriter writer = new WebHdfsPersistWriter(config);
+        writer.init(fileSystem, conf);
+        return writer;
+    }
+
+    /**
+     * Writes count datums with sequence ids from first, interval apart starting at START.
+     */
+    private static void write(WebHdfsPersistWriter writer, int first, int count, long interval) {
+        for(int i = first; i < first + count; i++)
+            writer.write(new StreamsDatum("{\"n\":" + i + "}", "id-" + i, new DateTime(START + (i - first) * interval), BigInteger.valueOf(i)));
+    }
+
+    private static List<String> lines(Path file) throws Exception {
+        return Files.readLines(new File(file.toUri().getPath()), Charsets.UTF_8);
+    }
+
+    private static List<File> temporaryFiles(File directory) {
+        List<File> found = Lists.newArrayList();
+        File[] files = directory.listFiles();
+        if(files == null)
+            return found;
+        for(File file : files) {
+            if(file.isDirectory())
+                found.addAll(temporaryFiles(file));
+            else if(file.getName().startsWith("_") && file.getName().endsWith(".tmp"))
+                found.add(file);
+        }
+        return found;
+    }
+
+    private String relative(Path path) {
+        return new File(directory, "tsv").toURI().relativize(new File(path.toUri().getPath()).toURI()).getPath().replaceAll("/$", "");
+    }
+}
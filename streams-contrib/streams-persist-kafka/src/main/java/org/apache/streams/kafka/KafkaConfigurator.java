@@ -25,6 +25,22 @@ public class KafkaConfigurator {
         kafkaConfiguration.setTopic(topic);
         kafkaConfiguration.setGroupId(groupId);
 
+        Config config = StreamsConfigurator.config;
+        if(config.hasPath("kafka.compression.codec"))
+            kafkaConfiguration.setCompressionCodec(config.getString("kafka.compression.codec"));
+        if(config.hasPath("kafka.batch.num.messages"))
+            kafkaConfiguration.setBatchSize(config.getLong("kafka.batch.num.messages"));
+        if(config.hasPath("kafka.queue.buffering.max.ms"))
+            kafkaConfiguration.setLingerMillis(config.getLong("kafka.queue.buffering.max.ms"));
+        if(config.hasPath("kafka.queue.buffering.max.messages"))
+            kafkaConfiguration.setBufferSize(config.getLong("kafka.queue.buffering.max.messages"));
+        if(config.hasPath("kafka.consumer.streams"))
+            kafkaConfiguration.setConsumerStreams(config.getLong("kafka.consumer.streams"));
+        if(config.hasPath("kafka.consumer.queue.size"))
+            kafkaConfiguration.setQueueSize(config.getLong("kafka.consumer.queue.size"));
+        if(config.hasPath("kafka.consumer.commit.interval.ms"))
+            kafkaConfiguration.setCommitIntervalMillis(config.getLong("kafka.consumer.commit.interval.ms"));
+
         return kafkaConfiguration;
     }
 
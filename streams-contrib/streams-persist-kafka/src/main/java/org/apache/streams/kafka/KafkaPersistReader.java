@@ -1,6 +1,8 @@
 package org.apache.streams.kafka;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 import kafka.consumer.Consumer;
 import kafka.consumer.ConsumerConfig;
@@ -17,45 +19,60 @@ import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.apache.streams.kafka.KafkaConfiguration;
-
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.List;
 import java.util.Properties;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads documents from a kafka topic.
+ *
+ * The topic is consumed as consumerStreams streams, each iterated by its own {@link KafkaPersistReaderTask}, which
+ * hands messages to readCurrent through a queue of at most queueSize documents; the tasks wait while it is full.
+ *
+ * Offsets are not committed on a timer.  A batch returned by readCurrent counts as processed once readCurrent is
+ * called again, since the caller has handed it downstream by then.  Every commitIntervalMillis the tasks are paused,
+ * the queue is drained, and the offsets are committed as soon as every message taken from kafka has been returned
+ * and handed on.  After a failure, consumption resumes from the last commit, so messages may be read more than once
+ * but none are lost.
+ */
 public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
+    public final static String STREAMS_ID = "KafkaPersistReader";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistReader.class);
 
-    protected volatile Queue<StreamsDatum> persistQueue;
+    public final static long DEFAULT_CONSUMER_STREAMS = 1;
+    public final static long DEFAULT_QUEUE_SIZE = 10000;
+    public final static long DEFAULT_COMMIT_INTERVAL_MILLIS = 5000;
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private final static int BATCH_SIZE = 1000;
+    private final static long POLL_MILLIS = 100;
 
     private KafkaConfiguration config;
 
-    private ConsumerConfig consumerConfig;
-    private ConsumerConnector consumerConnector;
-
-    public List<KafkaStream<String, String>> inStreams;
-
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private transient ConsumerConnector consumerConnector;
+    private transient ExecutorService executor;
+    private transient BlockingQueue<StreamsDatum> queue;
+    // messages taken from kafka that are not in the queue yet
+    private transient AtomicInteger inFlight;
+    private transient volatile boolean paused;
+    private transient long lastCommit;
 
     public KafkaPersistReader() {
         Config config = StreamsConfigurator.config.getConfig("kafka");
         this.config = KafkaConfigurator.detectConfiguration(config);
-        this.persistQueue  = new ConcurrentLinkedQueue<StreamsDatum>();
     }
 
-    public KafkaPersistReader(Queue<StreamsDatum> persistQueue) {
-        Config config = StreamsConfigurator.config.getConfig("kafka");
-        this.config = KafkaConfigurator.detectConfiguration(config);
-        this.persistQueue = persistQueue;
+    public KafkaPersistReader(KafkaConfiguration config) {
+        this.config = config;
     }
 
     public void setConfig(KafkaConfiguration config) {
@@ -64,23 +81,26 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
     @Override
     public void startStream() {
+        Preconditions.checkNotNull(config);
+        Preconditions.checkNotNull(config.getTopic());
 
-        Properties props = new Properties();
-        props.setProperty("serializer.encoding", "UTF8");
-
-        consumerConfig = new ConsumerConfig(props);
+        int streams = (int) (config.getConsumerStreams() != null ? config.getConsumerStreams() : DEFAULT_CONSUMER_STREAMS);
+        int queueSize = (int) (config.getQueueSize() != null ? config.getQueueSize() : DEFAULT_QUEUE_SIZE);
 
-        consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
+        init(queueSize);
 
-        Whitelist topics = new Whitelist(config.getTopic());
-        VerifiableProperties vprops = new VerifiableProperties(props);
+        consumerConnector = Consumer.createJavaConsumerConnector(createConsumerConfig(config.getZkconnect(), config.getGroupId()));
 
-        inStreams = consumerConnector.createMessageStreamsByFilter(topics, 1, new StringDecoder(vprops), new StringDecoder(vprops));
+        VerifiableProperties vprops = new VerifiableProperties(new Properties());
+        List<KafkaStream<String, String>> inStreams = consumerConnector.createMessageStreamsByFilter(
+                new Whitelist(config.getTopic()), streams, new StringDecoder(vprops), new StringDecoder(vprops));
 
-        for (final KafkaStream stream : inStreams) {
+        executor = Executors.newFixedThreadPool(inStreams.size(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(STREAMS_ID + "-%d").build());
+        for (KafkaStream<String, String> stream : inStreams) {
             executor.submit(new KafkaPersistReaderTask(this, stream));
         }
-
+        LOGGER.info("Reading {} with {} streams", config.getTopic(), inStreams.size());
     }
 
     @Override
@@ -90,17 +110,80 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
     @Override
     public StreamsResultSet readCurrent() {
-        return null;
+        if(queue == null)
+            startStream();
+
+        commitIfDue();
+
+        Queue<StreamsDatum> batch = Queues.newArrayDeque();
+        try {
+            StreamsDatum first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if(first != null) {
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new StreamsResultSet(batch);
     }
 
+    /**
+     * Kafka offsets are not sequence ids, so there is nothing to read by sequence.
+     * @return an empty result set
+     */
     @Override
     public StreamsResultSet readNew(BigInteger bigInteger) {
-        return null;
+        return new StreamsResultSet(Queues.<StreamsDatum>newArrayDeque());
     }
 
+    /**
+     * Messages are not indexed by time, so there is nothing to read by range.
+     * @return an empty result set
+     */
     @Override
     public StreamsResultSet readRange(DateTime dateTime, DateTime dateTime2) {
-        return null;
+        return new StreamsResultSet(Queues.<StreamsDatum>newArrayDeque());
+    }
+
+    /**
+     * Sets up the hand-off between the tasks and readCurrent.
+     */
+    void init(int queueSize) {
+        queue = new LinkedBlockingQueue<StreamsDatum>(queueSize);
+        inFlight = new AtomicInteger();
+        paused = false;
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Pauses the tasks once the commit interval has passed, and commits once every message they took has been
+     * returned by an earlier call.
+     * @return true if offsets were committed
+     */
+    boolean commitIfDue() {
+        long commitInterval = config.getCommitIntervalMillis() != null ? config.getCommitIntervalMillis() : DEFAULT_COMMIT_INTERVAL_MILLIS;
+        if(!paused) {
+            if(System.currentTimeMillis() - lastCommit >= commitInterval)
+                paused = true;
+            return false;
+        }
+        // paused is written before inFlight is read, and tasks do the reverse, so no task can slip past both checks
+        if(inFlight.get() == 0 && queue.isEmpty()) {
+            try {
+                commitOffsets();
+            } catch (Exception e) {
+                LOGGER.warn("Unable to commit offsets: {}", e.getMessage());
+            }
+            lastCommit = System.currentTimeMillis();
+            paused = false;
+            return true;
+        }
+        return false;
+    }
+
+    void commitOffsets() {
+        consumerConnector.commitOffsets();
     }
 
     private static ConsumerConfig createConsumerConfig(String a_zookeeper, String a_groupId) {
@@ -109,10 +192,25 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
         props.put("group.id", a_groupId);
         props.put("zookeeper.session.timeout.ms", "400");
         props.put("zookeeper.sync.time.ms", "200");
-        props.put("auto.commit.interval.ms", "1000");
+        // offsets are committed by readCurrent once messages have been handed on
+        props.put("auto.commit.enable", "false");
+        // lets the tasks check for pauses and shutdown while a stream is idle
+        props.put("consumer.timeout.ms", String.valueOf(POLL_MILLIS));
         return new ConsumerConfig(props);
     }
 
+    BlockingQueue<StreamsDatum> getQueue() {
+        return queue;
+    }
+
+    AtomicInteger getInFlight() {
+        return inFlight;
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
     @Override
     public void prepare(Object configurationObject) {
 
@@ -120,11 +218,18 @@ public class KafkaPersistReader implements StreamsPersistReader, Serializable {
 
     @Override
     public void cleanUp() {
-        consumerConnector.shutdown();
-        while( !executor.isTerminated()) {
+        if(executor != null)
+            executor.shutdownNow();
+        if(consumerConnector != null)
+            consumerConnector.shutdown();
+        if(executor != null) {
             try {
                 executor.awaitTermination(5, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {}
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        // anything read since the last commit is read again by the next consumer in the group
+        queue = null;
     }
 }
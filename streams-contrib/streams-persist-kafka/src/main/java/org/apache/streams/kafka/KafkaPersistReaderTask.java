@@ -1,44 +1,70 @@
 package org.apache.streams.kafka;
 
-import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
 import kafka.consumer.KafkaStream;
 import kafka.message.MessageAndMetadata;
 import org.apache.streams.core.StreamsDatum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Random;
+import java.util.Iterator;
 
+/**
+ * Iterates one stream of a {@link KafkaPersistReader}, putting each message on the reader's queue.  Waits while the
+ * queue is full, and stops taking messages while the reader is paused to commit offsets.
+ */
 public class KafkaPersistReaderTask implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistReaderTask.class);
 
+    private static final long PAUSE_MILLIS = 10;
+
     private KafkaPersistReader reader;
     private KafkaStream<String,String> stream;
+    private Iterator<MessageAndMetadata<String,String>> it;
 
     public KafkaPersistReaderTask(KafkaPersistReader reader, KafkaStream<String,String> stream) {
         this.reader = reader;
         this.stream = stream;
     }
 
-
+    KafkaPersistReaderTask(KafkaPersistReader reader, Iterator<MessageAndMetadata<String,String>> it) {
+        this.reader = reader;
+        this.it = it;
+    }
 
     @Override
     public void run() {
 
-        MessageAndMetadata<String,String> item;
-        while(true) {
-
-            ConsumerIterator<String, String> it = stream.iterator();
-            while (it.hasNext()) {
-                item = it.next();
-                reader.persistQueue.add(new StreamsDatum(item.message()));
+        if(it == null)
+            it = stream.iterator();
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                // wait out a pause without counting as in flight, or the commit could never happen
+                if(reader.isPaused()) {
+                    Thread.sleep(PAUSE_MILLIS);
+                    continue;
+                }
+                reader.getInFlight().incrementAndGet();
+                try {
+                    // checked again now that we count, in case the pause began in between
+                    if(reader.isPaused())
+                        continue;
+                    if(!it.hasNext())
+                        break;
+                    MessageAndMetadata<String,String> item = it.next();
+                    reader.getQueue().put(new StreamsDatum(item.message(), item.key()));
+                } catch (ConsumerTimeoutException e) {
+                    // nothing arrived, check for a pause or shutdown
+                } finally {
+                    reader.getInFlight().decrementAndGet();
+                }
             }
-            try {
-                Thread.sleep(new Random().nextInt(100));
-            } catch (InterruptedException e) {}
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Stopped reading stream: {}", e.getMessage());
         }
-
     }
 
 }
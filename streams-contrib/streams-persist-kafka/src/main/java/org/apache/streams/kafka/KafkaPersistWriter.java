@@ -1,7 +1,7 @@
 package org.apache.streams.kafka;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
 import com.typesafe.config.Config;
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
@@ -9,37 +9,43 @@ import kafka.producer.ProducerConfig;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
-import org.apache.streams.util.GuidUtils;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.Properties;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, Runnable {
+/**
+ * Writes documents to a kafka topic.
+ *
+ * Documents are handed to an async producer from write(), which batches them, compresses each batch and sends it once
+ * it is full or has waited lingerMillis.  write() blocks while bufferSize messages are waiting to be sent.  Messages are
+ * keyed by the datum id, and {@link StreamsPartitioner} places all messages with the same id on the same partition, so
+ * they are consumed in the order they were written.
+ */
+public class KafkaPersistWriter implements StreamsPersistWriter, Serializable {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistWriter.class);
+    public final static String STREAMS_ID = "KafkaPersistWriter";
 
-    protected volatile Queue<StreamsDatum> persistQueue;
+    private static final Logger LOGGER = LoggerFactory.getLogger(KafkaPersistWriter.class);
 
-    private ObjectMapper mapper = new ObjectMapper();
+    public final static String DEFAULT_COMPRESSION_CODEC = "snappy";
+    public final static long DEFAULT_BATCH_SIZE = 200;
+    public final static long DEFAULT_LINGER_MILLIS = 100;
+    public final static long DEFAULT_BUFFER_SIZE = 10000;
 
     private KafkaConfiguration config;
 
-    private Producer<String, String> producer;
+    private transient Producer<String, String> producer;
 
     public KafkaPersistWriter() {
         Config config = StreamsConfigurator.config.getConfig("kafka");
         this.config = KafkaConfigurator.detectConfiguration(config);
-        this.persistQueue  = new ConcurrentLinkedQueue<StreamsDatum>();
     }
 
-    public KafkaPersistWriter(Queue<StreamsDatum> persistQueue) {
-        Config config = StreamsConfigurator.config.getConfig("kafka");
-        this.config = KafkaConfigurator.detectConfiguration(config);
-        this.persistQueue = persistQueue;
+    public KafkaPersistWriter(KafkaConfiguration config) {
+        this.config = config;
     }
 
     public void setConfig(KafkaConfiguration config) {
@@ -47,54 +53,53 @@ public class KafkaPersistWriter implements StreamsPersistWriter, Serializable, R
     }
 
     public void start() {
+        Preconditions.checkNotNull(config);
+        Preconditions.checkNotNull(config.getTopic());
+
         Properties props = new Properties();
 
         props.put("metadata.broker.list", config.getBrokerlist());
         props.put("serializer.class", "kafka.serializer.StringEncoder");
-        props.put("partitioner.class", "org.apache.streams.kafka.StreamsPartitioner");
+        props.put("partitioner.class", StreamsPartitioner.class.getName());
         props.put("request.required.acks", "1");
 
-        ProducerConfig config = new ProducerConfig(props);
-
-        producer = new Producer<String, String>(config);
+        props.put("producer.type", "async");
+        props.put("compression.codec", config.getCompressionCodec() != null ? config.getCompressionCodec() : DEFAULT_COMPRESSION_CODEC);
+        props.put("batch.num.messages", String.valueOf(config.getBatchSize() != null ? config.getBatchSize() : DEFAULT_BATCH_SIZE));
+        props.put("queue.buffering.max.ms", String.valueOf(config.getLingerMillis() != null ? config.getLingerMillis() : DEFAULT_LINGER_MILLIS));
+        props.put("queue.buffering.max.messages", String.valueOf(config.getBufferSize() != null ? config.getBufferSize() : DEFAULT_BUFFER_SIZE));
+        // block rather than drop messages when the producer falls behind
+        props.put("queue.enqueue.timeout.ms", "-1");
 
-        new Thread(new KafkaPersistWriterTask(this)).start();
+        producer = new Producer<String, String>(new ProducerConfig(props));
     }
 
+    /**
+     * Sends everything still buffered and releases the producer.
+     */
     public void stop() {
-        producer.close();
-    }
-
-    public void setPersistQueue(Queue<StreamsDatum> persistQueue) {
-        this.persistQueue = persistQueue;
-    }
-
-    public Queue<StreamsDatum> getPersistQueue() {
-        return this.persistQueue;
+        if(producer != null) {
+            producer.close();
+            producer = null;
+        }
     }
 
     @Override
     public void write(StreamsDatum entry) {
+        Preconditions.checkState(producer != null, "write called before prepare");
 
+        String text;
         try {
-            String text = mapper.writeValueAsString(entry);
-
-            String hash = GuidUtils.generateGuid(text);
-
-            KeyedMessage<String, String> data = new KeyedMessage<String, String>(config.getTopic(), hash, text);
-
-            producer.send(data);
-
+            text = entry.getDocument() instanceof String
+                    ? (String) entry.getDocument()
+                    : JsonMapperRegistry.writer().writeValueAsString(entry.getDocument());
         } catch (JsonProcessingException e) {
-            LOGGER.warn("save: {}", e);
-        }// put
-    }
-
-    @Override
-    public void run() {
-        start();
+            LOGGER.warn("Unable to serialize document {}: {}", entry.getId(), e.getMessage());
+            return;
+        }
 
-        // stop();
+        // messages without an id are spread over the partitions by the producer
+        producer.send(new KeyedMessage<String, String>(config.getTopic(), entry.getId(), text));
     }
 
     @Override
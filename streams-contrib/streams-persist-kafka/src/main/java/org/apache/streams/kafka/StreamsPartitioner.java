@@ -3,21 +3,27 @@ package org.apache.streams.kafka;
 /**
  * Created by sblackmon on 12/15/13.
  */
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import kafka.producer.Partitioner;
 import kafka.utils.VerifiableProperties;
 
+/**
+ * Places messages on partitions by a consistent hash of their key, the datum id.  Every partition receives a share of
+ * the keys, messages with the same key always go to the same partition, and adding partitions moves as few keys as
+ * possible.
+ */
 public class StreamsPartitioner implements Partitioner<String> {
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
     public StreamsPartitioner (VerifiableProperties props) {
 
     }
 
     public int partition(String key, int a_numPartitions) {
-        int partition = 0;
-        int offset = key.lastIndexOf('.');
-        if (offset > 0) {
-            partition = Integer.parseInt( key.substring(offset+1)) % a_numPartitions;
-        }
-        return partition;
+        return Hashing.consistentHash(HASH.hashString(key, Charsets.UTF_8), a_numPartitions);
     }
 
 }
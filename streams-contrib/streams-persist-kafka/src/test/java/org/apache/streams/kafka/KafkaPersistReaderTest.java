@@ -0,0 +1,155 @@
+package org.apache.streams.kafka;
+
+import kafka.consumer.ConsumerTimeoutException;
+import kafka.message.MessageAndMetadata;
+import org.apache.streams.core.StreamsDatum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link KafkaPersistReaderTask}s over stub streams and checks that reading carries on across offset commits,
+ * and that offsets are only committed once everything taken from the streams has been returned.
+ */
+public class KafkaPersistReaderTest {
+
+    private static final int STREAMS = 3;
+    private static final int MESSAGES = 2000;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(STREAMS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testReadsAcrossCommits() throws Exception {
+        final AtomicInteger taken = new AtomicInteger();
+        final AtomicInteger returned = new AtomicInteger();
+        final List<Integer> takenAtCommit = new CopyOnWriteArrayList<Integer>();
+        final List<Integer> returnedAtCommit = new CopyOnWriteArrayList<Integer>();
+
+        KafkaConfiguration config = new KafkaConfiguration();
+        config.setTopic("test");
+        config.setCommitIntervalMillis(1L);
+        KafkaPersistReader reader = new KafkaPersistReader(config) {
+            @Override
+            void commitOffsets() {
+                takenAtCommit.add(taken.get());
+                returnedAtCommit.add(returned.get());
+            }
+        };
+        // smaller than the number of messages, so the tasks have to wait on it
+        reader.init(100);
+
+        for(int stream = 0; stream < STREAMS; stream++)
+            executor.submit(new KafkaPersistReaderTask(reader, new StubIterator(stream, MESSAGES, taken)));
+
+        Set<String> ids = new HashSet<String>();
+        long deadline = System.currentTimeMillis() + 30000;
+        while(ids.size() < STREAMS * MESSAGES && System.currentTimeMillis() < deadline) {
+            for(StreamsDatum datum : reader.readCurrent()) {
+                assertTrue("read twice: " + datum.getId(), ids.add(datum.getId()));
+                returned.incrementAndGet();
+            }
+        }
+
+        assertEquals(STREAMS * MESSAGES, ids.size());
+        // a few more calls let the last pause end in a commit
+        for(int i = 0; i < 10; i++)
+            assertFalse(reader.readCurrent().iterator().hasNext());
+
+        assertTrue("no commits", takenAtCommit.size() > 1);
+        for(int i = 0; i < takenAtCommit.size(); i++)
+            assertEquals(takenAtCommit.get(i), returnedAtCommit.get(i));
+        assertEquals(STREAMS * MESSAGES, (int) takenAtCommit.get(takenAtCommit.size() - 1));
+    }
+
+    @Test
+    public void testCommitWaitsForQueue() throws Exception {
+        KafkaConfiguration config = new KafkaConfiguration();
+        config.setTopic("test");
+        config.setCommitIntervalMillis(0L);
+        final AtomicInteger commits = new AtomicInteger();
+        KafkaPersistReader reader = new KafkaPersistReader(config) {
+            @Override
+            void commitOffsets() {
+                commits.incrementAndGet();
+            }
+        };
+        reader.init(10);
+
+        reader.getQueue().put(new StreamsDatum("{}", "1"));
+        // pauses, then cannot commit while a message is waiting to be returned
+        assertFalse(reader.commitIfDue());
+        assertTrue(reader.isPaused());
+        assertFalse(reader.commitIfDue());
+
+        reader.getQueue().take();
+        assertTrue(reader.commitIfDue());
+        assertFalse(reader.isPaused());
+        assertEquals(1, commits.get());
+    }
+
+    /**
+     * Hands out a fixed number of messages, then times out the way a consumer with consumer.timeout.ms does.
+     */
+    private static class StubIterator implements Iterator<MessageAndMetadata<String, String>> {
+
+        private final int stream;
+        private final int messages;
+        private final AtomicInteger taken;
+        private int next = 0;
+
+        StubIterator(int stream, int messages, AtomicInteger taken) {
+            this.stream = stream;
+            this.messages = messages;
+            this.taken = taken;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(next < messages)
+                return true;
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new ConsumerTimeoutException();
+        }
+
+        @Override
+        public MessageAndMetadata<String, String> next() {
+            int offset = next++;
+            taken.incrementAndGet();
+            return new MessageAndMetadata<String, String>(stream + ":" + offset, "{}", "test", stream, offset);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.apache.streams.mongo;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes json straight from a token stream into a BSON document, without building a tree, a String or a DBObject.
+ *
+ * Anything jackson can read as tokens can be encoded: a parser over raw json, JsonNode.traverse() for trees, or a
+ * TokenBuffer a pojo was serialized into.  Numbers become int32, int64 or double as JSON.parse would make them, and
+ * binary values become generic binary.  Every document gets an _id: a top level _id in the json is kept, with
+ * {"$oid": ...} read as an ObjectId, otherwise, or when it is null, a new ObjectId is added.
+ *
+ * Instances keep their buffers between documents and are not thread safe.
+ */
+public class JsonBsonWriter {
+
+    private static final String ID = "_id";
+    private static final String OID = "$oid";
+
+    private static final byte DOUBLE = 0x01;
+    private static final byte STRING = 0x02;
+    private static final byte DOCUMENT = 0x03;
+    private static final byte ARRAY = 0x04;
+    private static final byte BINARY = 0x05;
+    private static final byte OBJECT_ID = 0x07;
+    private static final byte BOOLEAN = 0x08;
+    private static final byte NULL = 0x0A;
+    private static final byte INT32 = 0x10;
+    private static final byte INT64 = 0x12;
+
+    private static final String[] INDEXES = new String[1024];
+
+    static {
+        for(int i = 0; i < INDEXES.length; i++)
+            INDEXES[i] = Integer.toString(i);
+    }
+
+    private byte[] bytes = new byte[16 * 1024];
+    private int size;
+
+    private boolean hasId;
+
+    /**
+     * Encodes the json object the parser is positioned before.
+     * @param parser parser whose next token starts a json object
+     * @return the BSON document
+     * @throws IOException if the json cannot be read, or is not an object
+     */
+    public byte[] encode(JsonParser parser) throws IOException {
+        size = 0;
+        hasId = false;
+
+        if(parser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Document is not a json object");
+
+        int start = size;
+        writeInt(0);
+        writeFields(parser, true);
+        if(!hasId) {
+            writeByte(OBJECT_ID);
+            writeCString(ID);
+            writeBytes(ObjectId.get().toByteArray());
+        }
+        writeByte(0);
+        writeInt(start, size - start);
+
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void writeDocument(JsonParser parser) throws IOException {
+        int start = size;
+        writeInt(0);
+        writeFields(parser, false);
+        writeByte(0);
+        writeInt(start, size - start);
+    }
+
+    private void writeFields(JsonParser parser, boolean topLevel) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if(topLevel && ID.equals(name)) {
+                // a null _id is left out, so one is generated as if it were missing
+                if(token == JsonToken.VALUE_NULL)
+                    continue;
+                hasId = true;
+                if(token == JsonToken.START_OBJECT) {
+                    writeObjectId(parser);
+                    continue;
+                }
+            }
+            writeValue(parser, token, name);
+        }
+    }
+
+    private void writeArray(JsonParser parser) throws IOException {
+        int start = size;
+        writeInt(0);
+        int index = 0;
+        JsonToken token;
+        while((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            writeValue(parser, token, index < INDEXES.length ? INDEXES[index] : Integer.toString(index));
+            index++;
+        }
+        writeByte(0);
+        writeInt(start, size - start);
+    }
+
+    private void writeValue(JsonParser parser, JsonToken token, String name) throws IOException {
+        switch(token) {
+            case START_OBJECT:
+                writeByte(DOCUMENT);
+                writeCString(name);
+                writeDocument(parser);
+                break;
+            case START_ARRAY:
+                writeByte(ARRAY);
+                writeCString(name);
+                writeArray(parser);
+                break;
+            case VALUE_STRING:
+                writeByte(STRING);
+                writeCString(name);
+                writeString(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                break;
+            case VALUE_NUMBER_INT:
+                switch(parser.getNumberType()) {
+                    case INT:
+                        writeByte(INT32);
+                        writeCString(name);
+                        writeInt(parser.getIntValue());
+                        break;
+                    case LONG:
+                        writeByte(INT64);
+                        writeCString(name);
+                        writeLong(parser.getLongValue());
+                        break;
+                    default:
+                        // too big for an int64
+                        writeByte(DOUBLE);
+                        writeCString(name);
+                        writeLong(Double.doubleToRawLongBits(parser.getDoubleValue()));
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                writeByte(DOUBLE);
+                writeCString(name);
+                writeLong(Double.doubleToRawLongBits(parser.getDoubleValue()));
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                writeByte(BOOLEAN);
+                writeCString(name);
+                writeByte(token == JsonToken.VALUE_TRUE ? 1 : 0);
+                break;
+            case VALUE_NULL:
+                writeByte(NULL);
+                writeCString(name);
+                break;
+            case VALUE_EMBEDDED_OBJECT:
+                writeEmbedded(parser.getEmbeddedObject(), name);
+                break;
+            default:
+                throw new IOException("Unexpected " + token + " in field " + name);
+        }
+    }
+
+    private void writeEmbedded(Object value, String name) throws IOException {
+        if(value == null) {
+            writeByte(NULL);
+            writeCString(name);
+        } else if(value instanceof byte[]) {
+            byte[] data = (byte[]) value;
+            writeByte(BINARY);
+            writeCString(name);
+            writeInt(data.length);
+            writeByte(0);
+            writeBytes(data);
+        } else {
+            char[] chars = value.toString().toCharArray();
+            writeByte(STRING);
+            writeCString(name);
+            writeString(chars, 0, chars.length);
+        }
+    }
+
+    /**
+     * Writes an _id of the form {"$oid": "..."} as an ObjectId.  The parser is positioned on the START_OBJECT.
+     * Other objects cannot be told apart without buffering them, and are not supported as _id.
+     */
+    private void writeObjectId(JsonParser parser) throws IOException {
+        if(parser.nextToken() != JsonToken.FIELD_NAME || !OID.equals(parser.getCurrentName()))
+            throw new IOException("Only {\"$oid\": ...} objects are supported as _id");
+        if(parser.nextToken() != JsonToken.VALUE_STRING)
+            throw new IOException("$oid is not a string");
+        ObjectId id = new ObjectId(parser.getText());
+        if(parser.nextToken() != JsonToken.END_OBJECT)
+            throw new IOException("$oid has other fields");
+        writeByte(OBJECT_ID);
+        writeCString(ID);
+        writeBytes(id.toByteArray());
+    }
+
+    private void writeString(char[] chars, int offset, int length) {
+        int start = size;
+        writeInt(0);
+        writeUtf8(chars, offset, length);
+        writeByte(0);
+        writeInt(start, size - start - 4);
+    }
+
+    private void writeCString(String name) {
+        ensure(name.length() * 3 + 1);
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(c < 0x80)
+                bytes[size++] = (byte) c;
+            else
+                i = writeChar(c, i, name.length(), name, null);
+        }
+        bytes[size++] = 0;
+    }
+
+    private void writeUtf8(char[] chars, int offset, int length) {
+        ensure(length * 3);
+        int end = offset + length;
+        for(int i = offset; i < end; i++) {
+            char c = chars[i];
+            if(c < 0x80)
+                bytes[size++] = (byte) c;
+            else
+                i = writeChar(c, i, end, null, chars);
+        }
+    }
+
+    /**
+     * Writes a char above ascii, reading the low surrogate from either the string or the array when it is the high.
+     * @return index of the last char used
+     */
+    private int writeChar(char c, int i, int end, String string, char[] chars) {
+        if(c < 0x800) {
+            bytes[size++] = (byte) (0xC0 | (c >> 6));
+            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if(Character.isHighSurrogate(c) && i + 1 < end
+                && Character.isLowSurrogate(string != null ? string.charAt(i + 1) : chars[i + 1])) {
+            int codePoint = Character.toCodePoint(c, string != null ? string.charAt(i + 1) : chars[i + 1]);
+            bytes[size++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            return i + 1;
+        } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            // unpaired, replaced the way String.getBytes does
+            bytes[size++] = '?';
+        } else {
+            bytes[size++] = (byte) (0xE0 | (c >> 12));
+            bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        bytes[size++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] data) {
+        ensure(data.length);
+        System.arraycopy(data, 0, bytes, size, data.length);
+        size += data.length;
+    }
+
+    private void writeInt(int value) {
+        ensure(4);
+        writeInt(size, value);
+        size += 4;
+    }
+
+    private void writeInt(int position, int value) {
+        bytes[position] = (byte) value;
+        bytes[position + 1] = (byte) (value >> 8);
+        bytes[position + 2] = (byte) (value >> 16);
+        bytes[position + 3] = (byte) (value >> 24);
+    }
+
+    private void writeLong(long value) {
+        ensure(8);
+        writeInt(size, (int) value);
+        writeInt(size + 4, (int) (value >> 32));
+        size += 8;
+    }
+
+    private void ensure(int more) {
+        if(size + more > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+    }
+}
@@ -25,6 +25,12 @@ public class MongoConfigurator {
             mongoConfiguration.setUser(mongo.getString("user"));
         if( mongo.hasPath("password"))
             mongoConfiguration.setPassword(mongo.getString("password"));
+        if( mongo.hasPath("batchSize"))
+            mongoConfiguration.setBatchSize(mongo.getLong("batchSize"));
+        if( mongo.hasPath("lingerMillis"))
+            mongoConfiguration.setLingerMillis(mongo.getLong("lingerMillis"));
+        if( mongo.hasPath("writeConcern"))
+            mongoConfiguration.setWriteConcern(mongo.getString("writeConcern"));
         return mongoConfiguration;
     }
 
@@ -1,21 +1,38 @@
 package org.apache.streams.mongo;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
-import com.mongodb.DBAddress;
 import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
 import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBEncoder;
+import com.mongodb.LazyDBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.util.JSON;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.typesafe.config.Config;
 import org.apache.streams.config.StreamsConfigurator;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.bson.BSON;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -23,22 +40,60 @@ import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class MongoPersistWriter implements StreamsPersistWriter, Runnable
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts documents into a mongo collection in unordered bulk writes.
+ *
+ * Documents are collected into a batch of at most batchSize, which is taken and inserted by the thread that fills it,
+ * or by a background thread once its oldest document has waited lingerMillis.  Batches are inserted outside the lock,
+ * so the threads sharing a writer, and the writers of parallel tasks, each have their own batch in flight.  A failed
+ * document does not stop the rest of its batch from being inserted.
+ *
+ * Documents are encoded to BSON as they are written, streamed by {@link JsonBsonWriter} from the json tokens of a
+ * String, a JsonNode or a pojo such as an Activity, and are sent to the server without being encoded again.
+ */
+public class MongoPersistWriter implements StreamsPersistWriter, Flushable, Closeable, Runnable
 {
+    public final static String STREAMS_ID = "MongoPersistWriter";
+
     private final static Logger LOGGER = LoggerFactory.getLogger(MongoPersistWriter.class);
 
-    protected volatile Queue<StreamsDatum> persistQueue;
+    public final static long DEFAULT_BATCH_SIZE = 1000;
+    public final static long DEFAULT_LINGER_MILLIS = 1000;
+
+    private static final ThreadLocal<JsonBsonWriter> BSON_WRITERS = new ThreadLocal<JsonBsonWriter>() {
+        @Override
+        protected JsonBsonWriter initialValue() {
+            return new JsonBsonWriter();
+        }
+    };
+
+    // documents arrive already encoded, so they are copied to the wire as they are
+    private static final DBEncoderFactory ENCODER_FACTORY = new DBEncoderFactory() {
+        @Override
+        public DBEncoder create() {
+            return new LazyDBEncoder();
+        }
+    };
 
-    private ObjectMapper mapper = new ObjectMapper();
+    protected volatile Queue<StreamsDatum> persistQueue;
 
     private MongoConfiguration config;
 
+    protected transient MongoClient mongoClient;
     protected DB client;
-    protected DBAddress dbaddress;
     protected DBCollection collection;
+    protected WriteConcern writeConcern;
+    private transient LazyDBCallback callback;
 
-    protected List<DBObject> insertBatch = new ArrayList<DBObject>();
+    private transient Object batchLock;
+    protected List<DBObject> insertBatch;
+    private long batchStarted;
+
+    private transient ScheduledExecutorService lingerFlusher;
 
     public MongoPersistWriter() {
         Config config = StreamsConfigurator.config.getConfig("mongo");
@@ -52,16 +107,29 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable
         this.persistQueue = persistQueue;
     }
 
+    public MongoPersistWriter(MongoConfiguration config) {
+        this.config = config;
+        this.persistQueue  = new ConcurrentLinkedQueue<StreamsDatum>();
+    }
+
+    private int getBatchSize() {
+        return (int) (config.getBatchSize() != null ? config.getBatchSize() : DEFAULT_BATCH_SIZE);
+    }
+
+    private long getLingerMillis() {
+        return config.getLingerMillis() != null ? config.getLingerMillis() : DEFAULT_LINGER_MILLIS;
+    }
+
     private synchronized void connectToMongo()
     {
         try {
-            dbaddress = new DBAddress(config.getHost(), config.getPort().intValue(), config.getDb());
+            mongoClient = new MongoClient(config.getHost(), config.getPort().intValue());
         } catch (UnknownHostException e) {
-            e.printStackTrace();
+            LOGGER.error("Unable to connect to {}:{}: {}", config.getHost(), config.getPort(), e.getMessage());
             return;
         }
 
-        client = MongoClient.connect(dbaddress);
+        client = mongoClient.getDB(config.getDb());
 
         if( !Strings.isNullOrEmpty(config.getUser()) && !Strings.isNullOrEmpty(config.getPassword()))
             client.authenticate(config.getUser(), config.getPassword().toCharArray());
@@ -71,50 +139,178 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable
         };
 
         collection = client.getCollection(config.getCollection());
+        collection.setDBEncoderFactory(ENCODER_FACTORY);
+        callback = new LazyDBCallback(collection);
     }
-    
+
     @Override
     public void write(StreamsDatum streamsDatum) {
 
         DBObject dbObject;
-        if( streamsDatum.getDocument() instanceof String ) {
-            dbObject = (DBObject) JSON.parse((String)streamsDatum.getDocument());
-        } else {
-            try {
-                ObjectNode node = mapper.valueToTree(streamsDatum.getDocument());
-                dbObject = (DBObject) JSON.parse(node.toString());
-            } catch (Exception e) {
-                e.printStackTrace();
-                LOGGER.warn("Unsupported type: " + streamsDatum.getDocument().getClass());
-                return;
-            }
+        try {
+            dbObject = new LazyDBObject(encode(streamsDatum.getDocument()), callback);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to encode document {}: {}", streamsDatum.getId(), e.getMessage());
+            return;
         }
 
-        insertBatch.add(dbObject);
+        List<DBObject> full = null;
+        synchronized (batchLock) {
+            if( insertBatch.isEmpty() )
+                batchStarted = System.currentTimeMillis();
+            insertBatch.add(dbObject);
+            if( insertBatch.size() >= getBatchSize() )
+                full = takeBatch();
+        }
 
-        if( insertBatch.size() % 100 == 0)
-            try {
-                flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
+        if( full != null )
+            insert(full);
+    }
+
+    /**
+     * Encodes a document to BSON in a single pass over its json tokens.
+     * @param document json String, JsonNode, DBObject, or a pojo jackson can serialize
+     * @return BSON document with an _id
+     * @throws IOException if the document is not a json object
+     */
+    byte[] encode(Object document) throws IOException {
+        if( document instanceof DBObject ) {
+            DBObject dbObject = (DBObject) document;
+            if( dbObject.get("_id") == null ) {
+                // the datum's document is left as it was
+                dbObject = new BasicDBObject(dbObject.toMap());
+                dbObject.put("_id", ObjectId.get());
             }
+            return BSON.encode(dbObject);
+        }
+
+        JsonParser parser;
+        if( document instanceof String ) {
+            parser = JsonMapperRegistry.getFactory().createParser((String) document);
+        } else if( document instanceof JsonNode ) {
+            parser = ((JsonNode) document).traverse();
+        } else {
+            // the pojo is serialized into tokens, not a tree or a string
+            ObjectMapper mapper = JsonMapperRegistry.getMapper();
+            TokenBuffer tokens = new TokenBuffer(mapper);
+            mapper.writeValue(tokens, document);
+            parser = tokens.asParser();
+        }
+        try {
+            return BSON_WRITERS.get().encode(parser);
+        } finally {
+            parser.close();
+        }
     }
 
+    /**
+     * Inserts the documents collected so far.
+     */
+    @Override
     public void flush() throws IOException
     {
-        collection.insert(insertBatch);
+        List<DBObject> batch;
+        synchronized (batchLock) {
+            batch = takeBatch();
+        }
+        insert(batch);
     }
 
+    private List<DBObject> takeBatch() {
+        List<DBObject> batch = insertBatch;
+        insertBatch = new ArrayList<DBObject>(getBatchSize());
+        return batch;
+    }
+
+    /**
+     * Inserts a batch taken from the writer, in a single unordered bulk write.
+     */
+    void insert(List<DBObject> batch) {
+        if( batch.isEmpty() )
+            return;
+
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for( DBObject dbObject : batch )
+            bulk.insert(dbObject);
+
+        try {
+            bulk.execute(writeConcern);
+            LOGGER.debug("Inserted {} documents", batch.size());
+        } catch (BulkWriteException e) {
+            LOGGER.warn("{} of {} documents failed to insert, first error: {}", e.getWriteErrors().size(), batch.size(),
+                    e.getWriteErrors().isEmpty() ? e.getMessage() : e.getWriteErrors().get(0).getMessage());
+        } catch (MongoException e) {
+            LOGGER.error("Unable to insert {} documents: {}", batch.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Inserts the partial batch once its oldest document has waited lingerMillis.
+     */
+    private void flushLingering() {
+        List<DBObject> batch = null;
+        synchronized (batchLock) {
+            if( !insertBatch.isEmpty() && System.currentTimeMillis() - batchStarted >= getLingerMillis() )
+                batch = takeBatch();
+        }
+        if( batch != null )
+            insert(batch);
+    }
+
+    @Override
     public synchronized void close() throws IOException
     {
-        client.cleanCursors(true);
+        if( lingerFlusher != null ) {
+            lingerFlusher.shutdown();
+            try {
+                // let an insert already under way finish before the connection goes
+                lingerFlusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lingerFlusher = null;
+        }
+        if( mongoClient != null ) {
+            mongoClient.close();
+            mongoClient = null;
+        }
     }
 
     public void start() {
 
+        Preconditions.checkNotNull(config);
+
+        writeConcern = !Strings.isNullOrEmpty(config.getWriteConcern())
+                ? WriteConcern.valueOf(config.getWriteConcern().toUpperCase())
+                : WriteConcern.ACKNOWLEDGED;
+        Preconditions.checkArgument(writeConcern != null, "Unknown write concern " + config.getWriteConcern());
+
         connectToMongo();
+        Preconditions.checkState(collection != null, "Unable to connect to mongo");
+
+        init();
+    }
 
+    /**
+     * Starts batching, with the lingering batch flushed in the background, once the collection is ready.
+     */
+    void init() {
+        batchLock = new Object();
+        insertBatch = new ArrayList<DBObject>(getBatchSize());
+
+        long lingerMillis = getLingerMillis();
+        lingerFlusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(STREAMS_ID + "-linger-%d").build());
+        lingerFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushLingering();
+                } catch (Exception e) {
+                    LOGGER.error("Unable to insert lingering documents: {}", e.getMessage());
+                }
+            }
+        }, lingerMillis, Math.max(1, lingerMillis / 2), TimeUnit.MILLISECONDS);
     }
 
     public void stop() {
@@ -122,12 +318,12 @@ public class MongoPersistWriter implements StreamsPersistWriter, Runnable
         try {
             flush();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOGGER.error("Unable to insert remaining documents: {}", e.getMessage());
         }
         try {
             close();
         } catch (IOException e) {
-            e.printStackTrace();
+            LOGGER.error("Unable to close connection: {}", e.getMessage());
         }
     }
 
@@ -0,0 +1,101 @@
+package org.apache.streams.mongo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes what {@link JsonBsonWriter} encodes and checks it against the json.
+ */
+public class JsonBsonWriterTest {
+
+    private static final String JSON = "{\"id\":\"tag:twitter.com,2013:1\",\"count\":3,\"big\":12345678901," +
+            "\"score\":1.5,\"ok\":true,\"missing\":null,\"text\":\"caf\u00e9 \ud83d\ude00\"," +
+            "\"actor\":{\"id\":\"id:twitter:2\",\"tags\":[\"a\",1,{\"b\":false}]}}";
+
+    @Test
+    public void testTypes() throws IOException {
+        BSONObject decoded = encode(JSON);
+
+        assertEquals("tag:twitter.com,2013:1", decoded.get("id"));
+        assertEquals(3, decoded.get("count"));
+        assertEquals(12345678901L, decoded.get("big"));
+        assertEquals(1.5, decoded.get("score"));
+        assertEquals(true, decoded.get("ok"));
+        assertTrue(decoded.containsField("missing"));
+        assertNull(decoded.get("missing"));
+        assertEquals("caf\u00e9 \ud83d\ude00", decoded.get("text"));
+
+        BSONObject actor = (BSONObject) decoded.get("actor");
+        assertEquals("id:twitter:2", actor.get("id"));
+        List tags = (List) actor.get("tags");
+        assertEquals(3, tags.size());
+        assertEquals("a", tags.get(0));
+        assertEquals(1, tags.get(1));
+        assertEquals(false, ((BSONObject) tags.get(2)).get("b"));
+    }
+
+    @Test
+    public void testSameAsTree() throws IOException {
+        ObjectNode node = (ObjectNode) JsonMapperRegistry.getMapper().readTree(JSON);
+        BSONObject fromString = encode(JSON);
+        BSONObject fromTree = BSON.decode(new JsonBsonWriter().encode(node.traverse()));
+        fromTree.removeField("_id");
+        fromString.removeField("_id");
+        assertEquals(fromString.toMap(), fromTree.toMap());
+    }
+
+    @Test
+    public void testGeneratedId() throws IOException {
+        assertTrue(encode("{\"a\":1}").get("_id") instanceof ObjectId);
+    }
+
+    @Test
+    public void testGeneratesNullId() throws IOException {
+        BSONObject decoded = encode("{\"_id\":null,\"a\":1}");
+        assertTrue(decoded.get("_id") instanceof ObjectId);
+        assertEquals(1, decoded.get("a"));
+        assertEquals(2, decoded.keySet().size());
+    }
+
+    @Test
+    public void testKeepsId() throws IOException {
+        assertEquals("mine", encode("{\"_id\":\"mine\",\"a\":1}").get("_id"));
+
+        ObjectId id = ObjectId.get();
+        assertEquals(id, encode("{\"a\":1,\"_id\":{\"$oid\":\"" + id.toString() + "\"}}").get("_id"));
+    }
+
+    @Test
+    public void testBinary() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        TokenBuffer tokens = new TokenBuffer(mapper);
+        tokens.writeStartObject();
+        tokens.writeBinaryField("data", new byte[] {1, 2, 3});
+        tokens.writeEndObject();
+        BSONObject decoded = BSON.decode(new JsonBsonWriter().encode(tokens.asParser()));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) decoded.get("data"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnObject() throws IOException {
+        encode("[1,2]");
+    }
+
+    private static BSONObject encode(String json) throws IOException {
+        return BSON.decode(new JsonBsonWriter().encode(JsonMapperRegistry.getFactory().createParser(json)));
+    }
+}
@@ -0,0 +1,84 @@
+package org.apache.streams.mongo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.apache.streams.pojo.json.Activity;
+import org.bson.BSON;
+
+/**
+ * Compares encoding documents to BSON the way MongoPersistWriter used to, through a tree, a String and a DBObject
+ * parsed by JSON.parse, to streaming them with {@link JsonBsonWriter}.  Runs on one thread, so the rates are per core.
+ *
+ * Run with: java org.apache.streams.mongo.MongoEncodingBenchmark [documents]
+ */
+public class MongoEncodingBenchmark {
+
+    private static final String DOCUMENT = "{\"id\":\"tag:twitter.com,2013:12345\",\"verb\":\"post\"," +
+            "\"actor\":{\"id\":\"id:twitter:67890\",\"displayName\":\"someone\",\"url\":\"http://twitter.com/someone\"}," +
+            "\"object\":{\"id\":\"id:twitter:12345\",\"objectType\":\"note\"," +
+            "\"content\":\"a short message that is about as long as a tweet usually is, with a link http://t.co/abcdefg\"}," +
+            "\"provider\":{\"id\":\"id:providers:twitter\",\"displayName\":\"Twitter\"}," +
+            "\"links\":[\"http://t.co/abcdefg\",\"http://example.com/a/longer/link\"]}";
+
+    // keeps the results from being optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode node = (ObjectNode) mapper.readTree(DOCUMENT);
+        Activity activity = mapper.readValue(DOCUMENT, Activity.class);
+        JsonBsonWriter writer = new JsonBsonWriter();
+
+        for(int round = 0; round < 3; round++) {
+            long started = System.nanoTime();
+            for(int i = 0; i < documents; i++) {
+                DBObject dbObject = (DBObject) JSON.parse(DOCUMENT);
+                sink += BSON.encode(dbObject).length;
+            }
+            report("string, JSON.parse", documents, started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < documents; i++)
+                sink += writer.encode(mapper.getFactory().createParser(DOCUMENT)).length;
+            report("string, streamed", documents, started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < documents; i++) {
+                DBObject dbObject = (DBObject) JSON.parse(node.toString());
+                sink += BSON.encode(dbObject).length;
+            }
+            report("tree, JSON.parse", documents, started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < documents; i++)
+                sink += writer.encode(node.traverse()).length;
+            report("tree, streamed", documents, started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < documents; i++) {
+                ObjectNode tree = mapper.valueToTree(activity);
+                DBObject dbObject = (DBObject) JSON.parse(tree.toString());
+                sink += BSON.encode(dbObject).length;
+            }
+            report("activity, JSON.parse", documents, started);
+
+            started = System.nanoTime();
+            for(int i = 0; i < documents; i++) {
+                TokenBuffer tokens = new TokenBuffer(mapper);
+                mapper.writeValue(tokens, activity);
+                sink += writer.encode(tokens.asParser()).length;
+            }
+            report("activity, streamed", documents, started);
+        }
+    }
+
+    private static void report(String name, int count, long started) {
+        long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+        System.out.println(String.format("%-22s %,d documents in %,d ms, %,d per second", name, count, millis, count * 1000L / millis));
+    }
+}
@@ -0,0 +1,142 @@
+package org.apache.streams.mongo;
+
+import com.google.common.collect.Lists;
+import com.mongodb.DBObject;
+import org.apache.streams.core.StreamsDatum;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batches documents with {@link MongoPersistWriter}, recording the batches it would insert instead of sending them to
+ * a collection.
+ */
+public class MongoPersistWriterTest {
+
+    private RecordingWriter writer;
+
+    @After
+    public void tearDown() throws Exception {
+        if(writer != null)
+            writer.close();
+    }
+
+    @Test
+    public void testFullBatchIsInserted() throws Exception {
+        writer = writer(3L, 60000L);
+        write(writer, 0, 7);
+
+        assertEquals(2, writer.batches.size());
+        assertEquals(3, writer.batches.get(0).size());
+        assertEquals(3, writer.batches.get(1).size());
+        // the batch taken for insert is replaced, not cleared, and the next one starts empty
+        assertEquals(1, writer.insertBatch.size());
+
+        writer.flush();
+        assertEquals(3, writer.batches.size());
+        assertEquals(1, writer.batches.get(2).size());
+        assertTrue(writer.insertBatch.isEmpty());
+
+        // nothing left to insert
+        writer.flush();
+        assertEquals(3, writer.batches.size());
+    }
+
+    @Test
+    public void testFullBatchIsTakenOnce() throws Exception {
+        final int threads = 8;
+        final int perThread = 1000;
+        writer = writer(10L, 60000L);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = Lists.newArrayList();
+        for(int t = 0; t < threads; t++) {
+            final int first = t * perThread;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    write(writer, first, perThread);
+                }
+            };
+            thread.start();
+            writers.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : writers)
+            thread.join();
+        writer.flush();
+
+        // every batch inserted once and at most full, every document in exactly one of them
+        Map<List<DBObject>, Boolean> seen = new IdentityHashMap<List<DBObject>, Boolean>();
+        Map<DBObject, Boolean> documents = new IdentityHashMap<DBObject, Boolean>();
+        for(List<DBObject> batch : writer.batches) {
+            assertNull("batch inserted twice", seen.put(batch, true));
+            assertTrue(batch.size() <= 10);
+            for(DBObject document : batch)
+                assertNull("document inserted twice", documents.put(document, true));
+        }
+        assertEquals(threads * perThread, documents.size());
+        assertEquals(threads * perThread / 10, writer.batches.size());
+    }
+
+    @Test
+    public void testLingeringBatchIsInserted() throws Exception {
+        writer = writer(1000L, 50L);
+        write(writer, 0, 5);
+        assertTrue(writer.batches.isEmpty());
+
+        // inserted in the background, without a full batch or a flush
+        long deadline = System.currentTimeMillis() + 10000;
+        while(writer.batches.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, writer.batches.size());
+        assertEquals(5, writer.batches.get(0).size());
+        assertTrue(writer.insertBatch.isEmpty());
+    }
+
+    private static RecordingWriter writer(long batchSize, long lingerMillis) {
+        MongoConfiguration config = new MongoConfiguration();
+        config.setBatchSize(batchSize);
+        config.setLingerMillis(lingerMillis);
+        RecordingWriter writer = new RecordingWriter(config);
+        writer.init();
+        return writer;
+    }
+
+    private static void write(MongoPersistWriter writer, int first, int count) {
+        for(int i = first; i < first + count; i++)
+            writer.write(new StreamsDatum("{\"n\":" + i + "}", "id-" + i));
+    }
+
+    /**
+     * Records each batch it is given, and keeps it, so a batch the writer went on filling would show.
+     */
+    private static class RecordingWriter extends MongoPersistWriter {
+
+        final List<List<DBObject>> batches = Collections.synchronizedList(Lists.<List<DBObject>>newArrayList());
+
+        RecordingWriter(MongoConfiguration config) {
+            super(config);
+        }
+
+        @Override
+        void insert(List<DBObject> batch) {
+            if(!batch.isEmpty())
+                batches.add(batch);
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package com.gplus.api;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.streams.data.ActivitySerializer;
 import org.apache.streams.data.util.ActivityUtil;
@@ -30,10 +30,9 @@ public class GPlusActivitySerializer implements ActivitySerializer<String> {
 
     @Override
     public String serialize(Activity deserialized) {
-        ObjectMapper jsonMapper = new ObjectMapper();
         String jsonString = new String();
         try{
-            jsonString = jsonMapper.writeValueAsString(deserialized);
+            jsonString = JsonMapperRegistry.writer().writeValueAsString(deserialized);
         }catch(Exception e){
             LOGGER.error("Exception serializing Activity Object: " + e);
         }
@@ -42,7 +41,6 @@ public class GPlusActivitySerializer implements ActivitySerializer<String> {
 
     @Override
     public Activity deserialize(String serialized) {
-        ObjectMapper jsonMapper = new ObjectMapper();
         JSONObject jsonObject = new JSONObject();
         JSONObject fixedObject = new JSONObject();
 
@@ -55,7 +53,7 @@ public class GPlusActivitySerializer implements ActivitySerializer<String> {
 
         Activity activity = new Activity();
         try {
-            activity = jsonMapper.readValue(fixedObject.toString(), Activity.class);
+            activity = JsonMapperRegistry.reader(Activity.class).readValue(fixedObject.toString());
             Map<String, Object> extension = ActivityUtil.ensureExtensions(activity);
             extension.put("likes", fixedObject.getJSONObject("object").getJSONObject("plusoners").get("totalItems"));
             extension.put("rebroadcast", fixedObject.getJSONObject("object").getJSONObject("resharers").get("totalItems"));
@@ -1,6 +1,6 @@
 package com.reddit.api;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.streams.data.ActivitySerializer;
 import org.apache.streams.data.util.ActivityUtil;
@@ -35,10 +35,9 @@ public class RedditActivitySerializer implements ActivitySerializer<String> {
 
     @Override
     public String serialize(Activity deserialized) {
-        ObjectMapper jsonMapper = new ObjectMapper();
         String jsonString = new String();
         try{
-            jsonString = jsonMapper.writeValueAsString(deserialized);
+            jsonString = JsonMapperRegistry.writer().writeValueAsString(deserialized);
         }catch(Exception e){
             LOGGER.error("Exception serializing Activity Object: " + e);
         }
@@ -47,7 +46,6 @@ public class RedditActivitySerializer implements ActivitySerializer<String> {
 
     @Override
     public Activity deserialize(String serialized) {
-        ObjectMapper jsonMapper = new ObjectMapper();
         JSONObject jsonObject = new JSONObject();
         JSONObject fixedObject = new JSONObject();
 
@@ -63,7 +61,7 @@ public class RedditActivitySerializer implements ActivitySerializer<String> {
 
         Activity activity = new Activity();
         try {
-            activity = jsonMapper.readValue(fixedObject.toString(), Activity.class);
+            activity = JsonMapperRegistry.reader(Activity.class).readValue(fixedObject.toString());
             Map<String, Object> extension = ActivityUtil.ensureExtensions(activity);
             if (fixedObject.names().toString().contains("object")){
                 if (fixedObject.getJSONObject("object").names().toString().contains("statistics")){
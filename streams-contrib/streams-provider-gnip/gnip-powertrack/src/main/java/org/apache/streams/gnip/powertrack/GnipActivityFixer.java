@@ -22,6 +22,7 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import org.apache.commons.lang.StringUtils;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -106,9 +107,7 @@ public class GnipActivityFixer {
     }
 
     public static Activity fix(Activity activity) throws Exception {
-        ObjectMapper mapper = new ObjectMapper();
-
-        String des = mapper.writeValueAsString(activity);
+        String des = JsonMapperRegistry.writer().writeValueAsString(activity);
         JSONObject json = new JSONObject(des);
 
         HashMap<ArrayList<String>, JSONObject> nullContents = new HashMap<ArrayList<String>, JSONObject>();
@@ -124,7 +123,7 @@ public class GnipActivityFixer {
         StringReader str = new StringReader(json.toString());
         Activity testAct = null;
         try {
-            testAct = mapper.readValue(str, Activity.class);
+            testAct = JsonMapperRegistry.reader(Activity.class).readValue(str);
         } catch (Exception e) {
             LOGGER.error("Exception creating activity.", e);
             LOGGER.error("JSON : {}"+json.toString());
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import com.moreover.api.Article;
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.data.util.MoreoverUtils;
 import org.apache.streams.pojo.json.Activity;
 
@@ -17,6 +18,9 @@ import java.util.List;
  * Deserializes Moreover JSON format into Activities
  */
 public class MoreoverJsonActivitySerializer implements ActivitySerializer<String> {
+
+    private static final ObjectMapper MAPPER = createMapper();
+
     @Override
     public String serializationFormat() {
         return "application/json+vnd.moreover.com.v1";
@@ -33,18 +37,9 @@ public class MoreoverJsonActivitySerializer implements ActivitySerializer<String
 
         System.out.println(serialized);
 
-        ObjectMapper mapper = new ObjectMapper();
-        AnnotationIntrospector introspector = new JaxbAnnotationIntrospector(mapper.getTypeFactory());
-        mapper.setAnnotationIntrospector(introspector);
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, Boolean.FALSE);
-        mapper.configure(DeserializationFeature.FAIL_ON_INVALID_SUBTYPE, Boolean.FALSE);
-        mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, Boolean.TRUE);
-        mapper.configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, Boolean.TRUE);
-        mapper.configure(DeserializationFeature.WRAP_EXCEPTIONS, Boolean.TRUE);
-
         Article article;
         try {
-            ObjectNode node = (ObjectNode)mapper.readTree(serialized);
+            ObjectNode node = (ObjectNode)MAPPER.readTree(serialized);
             node.remove("tags");
             node.remove("locations");
             node.remove("companies");
@@ -55,7 +50,7 @@ public class MoreoverJsonActivitySerializer implements ActivitySerializer<String
             jsonNodes.remove("editorialTopics");
             jsonNodes.remove("tags");
             jsonNodes.remove("autoTopics");
-            article = mapper.convertValue(node, Article.class);
+            article = MAPPER.convertValue(node, Article.class);
         } catch (IOException e) {
             throw new IllegalArgumentException("Unable to deserialize", e);
         }
@@ -67,5 +62,21 @@ public class MoreoverJsonActivitySerializer implements ActivitySerializer<String
         throw new NotImplementedException("Not currently implemented");
     }
 
+    /**
+     * The JAXB annotated Moreover classes need their own introspector, so this mapper cannot come from
+     * {@link org.apache.streams.data.util.JsonMapperRegistry}.  It is built once and shared by all instances.
+     */
+    private static ObjectMapper createMapper() {
+        ObjectMapper mapper = JsonMapperRegistry.getMapper().copy();
+        AnnotationIntrospector introspector = new JaxbAnnotationIntrospector(mapper.getTypeFactory());
+        mapper.setAnnotationIntrospector(introspector);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, Boolean.FALSE);
+        mapper.configure(DeserializationFeature.FAIL_ON_INVALID_SUBTYPE, Boolean.FALSE);
+        mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, Boolean.TRUE);
+        mapper.configure(DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT, Boolean.TRUE);
+        mapper.configure(DeserializationFeature.WRAP_EXCEPTIONS, Boolean.TRUE);
+        return mapper;
+    }
+
 
 }
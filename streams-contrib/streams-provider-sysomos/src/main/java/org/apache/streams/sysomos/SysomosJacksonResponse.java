@@ -1,9 +1,9 @@
 package org.apache.streams.sysomos;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sysomos.xml.BeatApi;
 import com.sysomos.xml.BeatApi.BeatResponse.Beat;
 import com.sysomos.xml.ObjectFactory;
+import org.apache.streams.data.util.JsonMapperRegistry;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.Unmarshaller;
@@ -24,7 +24,6 @@ public class SysomosJacksonResponse implements SysomosResponse {
     private boolean hasError = false;
     private String xmlString;
     private int index;
-    private ObjectMapper mapper;
     private String errorMessage;
 
     public SysomosJacksonResponse(String xmlString) {
@@ -41,7 +40,6 @@ public class SysomosJacksonResponse implements SysomosResponse {
             if(this.hasError) {
                 this.errorMessage = xmlString.substring(xmlString.lastIndexOf("<errorMessage>"), xmlString.lastIndexOf("</errorMessage>"));
             }
-            this.mapper = new ObjectMapper();
 //            System.out.println(mapper.writeValueAsString(beatApi));
         } catch (Exception e) {
             this.hasError = true;
@@ -77,7 +75,7 @@ public class SysomosJacksonResponse implements SysomosResponse {
     @Override
     public String next() {
         try {
-            return this.mapper.writeValueAsString(this.beats.get(index++));
+            return JsonMapperRegistry.writer().writeValueAsString(this.beats.get(index++));
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Lists;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsProcessor;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
 import org.apache.streams.twitter.pojo.Delete;
 import org.apache.streams.twitter.pojo.Retweet;
@@ -141,8 +142,7 @@ public class TwitterEventProcessor implements StreamsProcessor, Runnable {
     public boolean isValidJSON(final String json) {
         boolean valid = false;
         try {
-            final JsonParser parser = new ObjectMapper().getJsonFactory()
-                    .createJsonParser(json);
+            final JsonParser parser = JsonMapperRegistry.getFactory().createParser(json);
             while (parser.nextToken() != null) {
             }
             valid = true;
@@ -163,14 +163,12 @@ public class TwitterEventProcessor implements StreamsProcessor, Runnable {
 
         LOGGER.debug("{} processing {}", STREAMS_ID, node.getClass());
 
-        String json = node.asText();
-
         // since data is coming from outside provider, we don't know what type the events are
-        Class inClass = TwitterEventClassifier.detectClass(json);
+        Class inClass = TwitterEventClassifier.detectClass(node);
 
         // if the target is string, just pass-through
         if( java.lang.String.class.equals(outClass))
-            return Lists.newArrayList(new StreamsDatum(json));
+            return Lists.newArrayList(new StreamsDatum(node.toString()));
         else {
             // convert to desired format
             Object out = convert(node, inClass, outClass);
@@ -12,6 +12,7 @@ import org.apache.streams.twitter.provider.TwitterEventClassifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Queue;
 import java.util.Random;
@@ -60,29 +61,27 @@ public class TwitterProfileProcessor implements StreamsProcessor, Runnable {
     public List<StreamsDatum> process(StreamsDatum entry) {
 
         List<StreamsDatum> result = Lists.newArrayList();
-        String item;
         try {
-            // first check for valid json
             // since data is coming from outside provider, we don't know what type the events are
-            if( entry.getDocument() instanceof String) {
-                item = (String) entry.getDocument();
+            Object document = entry.getDocument();
+            Class inClass;
+            if( document instanceof String ) {
+                inClass = TwitterEventClassifier.detectClass((String) document);
             } else {
-                item = mapper.writeValueAsString((ObjectNode)entry.getDocument());
+                inClass = TwitterEventClassifier.detectClass((ObjectNode) document);
             }
 
-            Class inClass = TwitterEventClassifier.detectClass(item);
-
             User user;
 
             if ( inClass.equals( Tweet.class )) {
                 LOGGER.debug("TWEET");
-                Tweet tweet = mapper.readValue(item, Tweet.class);
+                Tweet tweet = toPojo(document, Tweet.class);
                 user = tweet.getUser();
                 result.add(new StreamsDatum(user));
             }
             else if ( inClass.equals( Retweet.class )) {
                 LOGGER.debug("RETWEET");
-                Retweet retweet = mapper.readValue(item, Retweet.class);
+                Retweet retweet = toPojo(document, Retweet.class);
                 user = retweet.getRetweetedStatus().getUser();
                 result.add(new StreamsDatum(user));
             } else {
@@ -97,6 +96,13 @@ public class TwitterProfileProcessor implements StreamsProcessor, Runnable {
         }
     }
 
+    private <T> T toPojo(Object document, Class<T> klass) throws IOException {
+        if( document instanceof String )
+            return mapper.readValue((String) document, klass);
+        else
+            return mapper.treeToValue((ObjectNode) document, klass);
+    }
+
     @Override
     public void prepare(Object o) {
 
@@ -7,6 +7,7 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Lists;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsProcessor;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
 import org.apache.streams.twitter.pojo.Delete;
 import org.apache.streams.twitter.pojo.Retweet;
@@ -114,8 +115,7 @@ public class TwitterTypeConverter implements StreamsProcessor {
     public boolean isValidJSON(final String json) {
         boolean valid = false;
         try {
-            final JsonParser parser = new ObjectMapper().getJsonFactory()
-                    .createJsonParser(json);
+            final JsonParser parser = JsonMapperRegistry.getFactory().createParser(json);
             while (parser.nextToken() != null) {
             }
             valid = true;
@@ -151,7 +151,7 @@ public class TwitterTypeConverter implements StreamsProcessor {
                     node = (ObjectNode)mapper.readTree((String)item);
 
                     // since data is coming from outside provider, we don't know what type the events are
-                    Class inClass = TwitterEventClassifier.detectClass((String) item);
+                    Class inClass = TwitterEventClassifier.detectClass(node);
 
                     Object out = convert(node, inClass, outClass);
 
@@ -161,11 +161,10 @@ public class TwitterTypeConverter implements StreamsProcessor {
 
             } else if( item instanceof ObjectNode ) {
 
-                // first check for valid json
-                node = (ObjectNode)mapper.valueToTree(item);
+                node = (ObjectNode) item;
 
                 // since data is coming from outside provider, we don't know what type the events are
-                Class inClass = TwitterEventClassifier.detectClass((String)item);
+                Class inClass = TwitterEventClassifier.detectClass(node);
 
                 Object out = convert(node, inClass, outClass);
 
@@ -1,29 +1,132 @@
 package org.apache.streams.twitter.provider;
 
-import com.jayway.jsonassert.JsonAssert;
-import org.apache.streams.twitter.pojo.Delete;
-import org.apache.streams.twitter.pojo.Retweet;
-import org.apache.streams.twitter.pojo.Tweet;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Detects the type of twitter messages from their top level fields.
+ *
+ * Raw json is classified in a single pass over the token stream, without building a tree, and stops early only when
+ * the field of highest precedence is seen.  Already parsed messages are classified with direct field lookups.  Both
+ * give a message carrying several deciding fields the type of the one of highest precedence, wherever it appears.
+ *
  * Created by sblackmon on 12/13/13.
  */
 public class TwitterEventClassifier {
 
+    private final static Logger LOGGER = LoggerFactory.getLogger(TwitterEventClassifier.class);
+
+    /**
+     * Top level fields that identify a message type when present and not null, in order of precedence.
+     */
+    private static final Map<String, TwitterEventType> FIELD_TYPES = new LinkedHashMap<String, TwitterEventType>();
+
+    static {
+        FIELD_TYPES.put("delete", TwitterEventType.DELETE);
+        FIELD_TYPES.put("retweeted_status", TwitterEventType.RETWEET);
+        FIELD_TYPES.put("limit", TwitterEventType.LIMIT);
+        FIELD_TYPES.put("scrub_geo", TwitterEventType.SCRUB_GEO);
+        FIELD_TYPES.put("friends", TwitterEventType.FRIENDS);
+        FIELD_TYPES.put("friends_str", TwitterEventType.FRIENDS);
+        FIELD_TYPES.put("status_withheld", TwitterEventType.STATUS_WITHHELD);
+        FIELD_TYPES.put("user_withheld", TwitterEventType.USER_WITHHELD);
+        FIELD_TYPES.put("disconnect", TwitterEventType.DISCONNECT);
+        FIELD_TYPES.put("warning", TwitterEventType.WARNING);
+        FIELD_TYPES.put("event", TwitterEventType.EVENT);
+    }
+
+    private static final Map<String, Integer> FIELD_RANKS = new HashMap<String, Integer>();
+
+    static {
+        int rank = 0;
+        for( String field : FIELD_TYPES.keySet() )
+            FIELD_RANKS.put(field, rank++);
+    }
+
+    /**
+     * Detects the pojo class of a raw json message.
+     * @param json raw message
+     * @return the pojo class, or ObjectNode.class for messages that have no pojo
+     */
     public static Class detectClass( String json ) {
+        return toClass(detectType(json));
+    }
+
+    /**
+     * Detects the pojo class of a parsed message.
+     * @param node parsed message
+     * @return the pojo class, or ObjectNode.class for messages that have no pojo
+     */
+    public static Class detectClass( ObjectNode node ) {
+        return toClass(detectType(node));
+    }
 
+    /**
+     * Detects the type of a raw json message, reading only as far as needed to decide.
+     * @param json raw message
+     * @return the type of the message, UNKNOWN if it is not a json object
+     */
+    public static TwitterEventType detectType( String json ) {
+        JsonParser parser = null;
         try {
-            JsonAssert.with(json).assertNull("$.delete");
-        } catch( AssertionError ae ) {
-            return Delete.class;
+            parser = JsonMapperRegistry.getFactory().createParser(json);
+            if( parser.nextToken() != JsonToken.START_OBJECT )
+                return TwitterEventType.UNKNOWN;
+            String found = null;
+            int foundRank = Integer.MAX_VALUE;
+            while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+                String field = parser.getCurrentName();
+                Integer rank = FIELD_RANKS.get(field);
+                JsonToken value = parser.nextToken();
+                if( rank != null && rank < foundRank && value != JsonToken.VALUE_NULL ) {
+                    found = field;
+                    foundRank = rank;
+                    // nothing can outrank it
+                    if( rank == 0 )
+                        break;
+                }
+                parser.skipChildren();
+            }
+            return found != null ? FIELD_TYPES.get(found) : TwitterEventType.TWEET;
+        } catch( IOException e ) {
+            LOGGER.debug("Unable to classify message: {}", e.getMessage());
+            return TwitterEventType.UNKNOWN;
+        } finally {
+            if( parser != null ) {
+                try {
+                    parser.close();
+                } catch( IOException e ) {
+                    // nothing to release for a string source
+                }
+            }
         }
+    }
 
-        try {
-            JsonAssert.with(json).assertNull("$.retweeted_status");
-        } catch( AssertionError ae ) {
-            return Retweet.class;
+    /**
+     * Detects the type of a parsed message.
+     * @param node parsed message
+     * @return the type of the message
+     */
+    public static TwitterEventType detectType( ObjectNode node ) {
+        for( Map.Entry<String, TwitterEventType> entry : FIELD_TYPES.entrySet() ) {
+            JsonNode value = node.get(entry.getKey());
+            if( value != null && !value.isNull() )
+                return entry.getValue();
         }
+        return TwitterEventType.TWEET;
+    }
 
-        return Tweet.class;
+    private static Class toClass( TwitterEventType type ) {
+        return type.getPojoClass() != null ? type.getPojoClass() : ObjectNode.class;
     }
 }
@@ -0,0 +1,51 @@
+package org.apache.streams.twitter.provider;
+
+import org.apache.streams.twitter.pojo.Delete;
+import org.apache.streams.twitter.pojo.Retweet;
+import org.apache.streams.twitter.pojo.Tweet;
+
+/**
+ * Kinds of messages delivered on the twitter streaming and REST APIs, as detected by
+ * {@link org.apache.streams.twitter.provider.TwitterEventClassifier}.
+ */
+public enum TwitterEventType {
+
+    TWEET(Tweet.class),
+    RETWEET(Retweet.class),
+    DELETE(Delete.class),
+    /** Notice of how many matching tweets were not delivered because of rate limiting */
+    LIMIT(null),
+    /** Request to remove geo information from a range of a user's tweets */
+    SCRUB_GEO(null),
+    /** List of followed user ids sent at the start of a user stream */
+    FRIENDS(null),
+    STATUS_WITHHELD(null),
+    USER_WITHHELD(null),
+    DISCONNECT(null),
+    WARNING(null),
+    /** User stream event such as favorite or follow */
+    EVENT(null),
+    UNKNOWN(null);
+
+    private final Class pojoClass;
+
+    private TwitterEventType(Class pojoClass) {
+        this.pojoClass = pojoClass;
+    }
+
+    /**
+     * The generated pojo class for this type of message, or null if there is none.
+     * @return pojo class or null
+     */
+    public Class getPojoClass() {
+        return this.pojoClass;
+    }
+
+    /**
+     * Whether the message is a status (tweet or retweet) rather than a control or notification message.
+     * @return true for statuses
+     */
+    public boolean isStatus() {
+        return this == TWEET || this == RETWEET;
+    }
+}
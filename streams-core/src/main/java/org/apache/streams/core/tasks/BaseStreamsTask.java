@@ -1,8 +1,9 @@
 package org.apache.streams.core.tasks;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.streams.data.util.JsonMapperRegistry;
 import org.apache.streams.pojo.json.Activity;
 import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.tracing.DatumTrace;
 import org.apache.streams.util.SerializationUtil;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
@@ -12,6 +13,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 /**
@@ -24,12 +26,7 @@ public abstract class BaseStreamsTask implements StreamsTask {
     private List<Queue<StreamsDatum>> inQueues = new ArrayList<Queue<StreamsDatum>>();
     private List<Queue<StreamsDatum>> outQueues = new LinkedList<Queue<StreamsDatum>>();
     private int inIndex = 0;
-    private ObjectMapper mapper;
-
-    public BaseStreamsTask() {
-        this.mapper = new ObjectMapper();
-        this.mapper.registerSubtypes(Activity.class);
-    }
+    private boolean tracing = false;
 
 
     @Override
@@ -75,6 +72,10 @@ public abstract class BaseStreamsTask implements StreamsTask {
      * @param datum
      */
     protected void addToOutgoingQueue(StreamsDatum datum) {
+        DatumTrace trace = this.tracing ? DatumTrace.get(datum) : null;
+        if(trace != null) {
+            trace.enqueued(getOperationName());
+        }
         if(this.outQueues.size() == 1) {
             this.outQueues.get(0).offer(datum);
         }
@@ -83,8 +84,11 @@ public abstract class BaseStreamsTask implements StreamsTask {
             for(Queue<StreamsDatum> queue : this.outQueues) {
                 try {
                     newDatum = cloneStreamsDatum(datum);
-                    if(newDatum != null)
+                    if(newDatum != null) {
+                        if(trace != null)
+                            DatumTrace.attach(newDatum, trace.copy());
                         queue.offer(newDatum);
+                    }
                 } catch (RuntimeException e) {
                     LOGGER.debug("Failed to add StreamsDatum to outgoing queue : {}", datum);
                     LOGGER.error("Exception while offering StreamsDatum to outgoing queue: {}", e);
@@ -104,7 +108,7 @@ public abstract class BaseStreamsTask implements StreamsTask {
      * compatiable across multiple frame works, this hack is in place.
      *
      * If datum.document is Serializable, we use serialization to clone a new copy.  If it is not Serializable we attempt
-     * different methods using an com.fasterxml.jackson.databind.ObjectMapper to copy/clone the StreamsDatum. If the object
+     * different methods using the shared Jackson readers and writers to copy/clone the StreamsDatum. If the object
      * is not clonable by these methods, an error is reported to the logging and a NULL object is returned.
      *
      * @param datum
@@ -118,7 +122,8 @@ public abstract class BaseStreamsTask implements StreamsTask {
             }
             else if(datum.document instanceof Activity) {
 
-                return new StreamsDatum(this.mapper.readValue(this.mapper.writeValueAsString(datum.document), Activity.class),
+                byte[] bytes = JsonMapperRegistry.writer().writeValueAsBytes(datum.document);
+                return new StreamsDatum(JsonMapperRegistry.reader(Activity.class).<Activity>readValue(bytes),
                                         datum.timestamp,
                                         datum.sequenceid);
             }
@@ -138,6 +143,36 @@ public abstract class BaseStreamsTask implements StreamsTask {
         return null;
     }
 
+    /**
+     * Enables tracing when the stream configuration sets a {@link org.apache.streams.core.tracing.DatumTrace#SAMPLE_RATE_CONFIG}
+     * greater than 0.  When tracing is disabled, tasks do not look at datum metadata at all.
+     * @param config stream configuration
+     */
+    protected void configureTracing(Map<String, Object> config) {
+        this.tracing = DatumTrace.getSampleRate(config) > 0.0;
+    }
+
+    /**
+     * Name used for this task in the path of traced datums.
+     * @return name of the operation run by this task
+     */
+    protected String getOperationName() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * Records that a datum was taken off an inbound queue.
+     * @param datum datum that was polled
+     * @return the trace of the datum, or null if the datum is not traced
+     */
+    protected DatumTrace traceDequeued(StreamsDatum datum) {
+        DatumTrace trace = this.tracing ? DatumTrace.get(datum) : null;
+        if(trace != null) {
+            trace.dequeued();
+        }
+        return trace;
+    }
+
     private int getNextInputQueueIndex() {
         ++this.inIndex;
         if(this.inIndex >= this.inQueues.size()) {
@@ -2,6 +2,8 @@ package org.apache.streams.core.tasks;
 
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
+import org.apache.streams.core.tracing.DatumTrace;
+import org.apache.streams.core.tracing.LatencyTracker;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +48,7 @@ public class StreamsPersistWriterTask extends BaseStreamsTask {
     @Override
     public void setStreamConfig(Map<String, Object> config) {
         this.streamConfig = config;
+        configureTracing(config);
     }
 
     @Override
@@ -58,6 +61,11 @@ public class StreamsPersistWriterTask extends BaseStreamsTask {
         return this.isRunning.get();
     }
 
+    @Override
+    protected String getOperationName() {
+        return this.writer.getClass().getSimpleName();
+    }
+
     @Override
     public void run() {
         try {
@@ -65,7 +73,15 @@ public class StreamsPersistWriterTask extends BaseStreamsTask {
             StreamsDatum datum = this.inQueue.poll();
             while(datum != null || this.keepRunning.get()) {
                 if(datum != null) {
+                    DatumTrace trace = traceDequeued(datum);
+                    if(trace != null) {
+                        // writers persist the metadata, the trace is only needed here
+                        DatumTrace.detach(datum);
+                    }
                     this.writer.write(datum);
+                    if(trace != null) {
+                        LatencyTracker.record(trace, getOperationName());
+                    }
                 }
                 else {
                     try {
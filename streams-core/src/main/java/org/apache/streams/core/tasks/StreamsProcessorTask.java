@@ -3,6 +3,7 @@ package org.apache.streams.core.tasks;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsPersistWriter;
 import org.apache.streams.core.StreamsProcessor;
+import org.apache.streams.core.tracing.DatumTrace;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -51,6 +52,7 @@ public class StreamsProcessorTask extends BaseStreamsTask {
     @Override
     public void setStreamConfig(Map<String, Object> config) {
         this.streamConfig = config;
+        configureTracing(config);
     }
 
     @Override
@@ -63,6 +65,11 @@ public class StreamsProcessorTask extends BaseStreamsTask {
         return this.isRunning.get();
     }
 
+    @Override
+    protected String getOperationName() {
+        return this.processor.getClass().getSimpleName();
+    }
+
     @Override
     public void run() {
         try {
@@ -70,9 +77,13 @@ public class StreamsProcessorTask extends BaseStreamsTask {
             StreamsDatum datum = this.inQueue.poll();
             while(datum != null || this.keepRunning.get()) {
                 if(datum != null) {
+                    DatumTrace trace = traceDequeued(datum);
                     List<StreamsDatum> output = this.processor.process(datum);
                     if(output != null) {
                         for(StreamsDatum outDatum : output) {
+                            if(trace != null && outDatum != datum && DatumTrace.get(outDatum) == null) {
+                                DatumTrace.attach(outDatum, trace.copy());
+                            }
                             super.addToOutgoingQueue(outDatum);
                         }
                     }
@@ -3,6 +3,7 @@ package org.apache.streams.core.tasks;
 import org.apache.streams.core.StreamsDatum;
 import org.apache.streams.core.StreamsProvider;
 import org.apache.streams.core.StreamsResultSet;
+import org.apache.streams.core.tracing.DatumTrace;
 import org.joda.time.DateTime;
 
 import java.math.BigInteger;
@@ -32,6 +33,8 @@ public class StreamsProviderTask extends BaseStreamsTask {
     private DateTime[] dateRange;
     private Map<String, Object> config;
     private AtomicBoolean isRunning;
+    private long sampleInterval = 0;
+    private long provided = 0;
 
     /**
      * Constructor for a StreamsProvider to execute {@link org.apache.streams.core.StreamsProvider:readCurrent()}
@@ -89,6 +92,9 @@ public class StreamsProviderTask extends BaseStreamsTask {
     @Override
     public void setStreamConfig(Map<String, Object> config) {
         this.config = config;
+        configureTracing(config);
+        double sampleRate = DatumTrace.getSampleRate(config);
+        this.sampleInterval = sampleRate > 0.0 ? Math.max(1, Math.round(1.0 / sampleRate)) : 0;
     }
 
     @Override
@@ -134,13 +140,22 @@ public class StreamsProviderTask extends BaseStreamsTask {
         return this.isRunning.get();
     }
 
+    @Override
+    protected String getOperationName() {
+        return this.provider.getClass().getSimpleName();
+    }
+
     public void flushResults(StreamsResultSet resultSet) {
         for(StreamsDatum datum : resultSet) {
             if(!this.keepRunning.get()) {
                 break;
             }
-            if(datum != null)
+            if(datum != null) {
+                if(this.sampleInterval > 0 && ++this.provided % this.sampleInterval == 0) {
+                    DatumTrace.attach(datum, new DatumTrace());
+                }
                 super.addToOutgoingQueue(datum);
+            }
             else {
                 try {
                     Thread.sleep(DEFAULT_SLEEP_TIME_MS);
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.core.tracing;
+
+import org.apache.streams.core.StreamsDatum;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Per hop timing information for a sampled {@link org.apache.streams.core.StreamsDatum}.  A trace is attached to the
+ * datum metadata by the provider task when the datum is ingested, every task that passes the datum on records when it
+ * was put on and taken off a queue, and the writer task records the end to end latency for the path the datum took.
+ *
+ * Times are {@link System#nanoTime()} values, so traces are only meaningful within a single JVM.
+ */
+public class DatumTrace implements Serializable {
+
+    /**
+     * Key of the trace in {@link org.apache.streams.core.StreamsDatum#getMetadata()}
+     */
+    public static final String METADATA_KEY = "streams.trace";
+
+    /**
+     * Stream configuration key for the fraction of datums to trace, between 0.0 (off) and 1.0 (every datum).
+     */
+    public static final String SAMPLE_RATE_CONFIG = "trace.sampleRate";
+
+    private static final String PATH_SEPARATOR = "->";
+    private static final int INITIAL_HOPS = 4;
+
+    private final long ingestNanos;
+    private String[] hops;
+    private long[] enqueueNanos;
+    private long[] dequeueNanos;
+    private int size;
+
+    public DatumTrace() {
+        this(System.nanoTime());
+    }
+
+    public DatumTrace(long ingestNanos) {
+        this.ingestNanos = ingestNanos;
+        this.hops = new String[INITIAL_HOPS];
+        this.enqueueNanos = new long[INITIAL_HOPS];
+        this.dequeueNanos = new long[INITIAL_HOPS];
+        this.size = 0;
+    }
+
+    private DatumTrace(DatumTrace trace) {
+        this.ingestNanos = trace.ingestNanos;
+        this.hops = Arrays.copyOf(trace.hops, trace.hops.length);
+        this.enqueueNanos = Arrays.copyOf(trace.enqueueNanos, trace.enqueueNanos.length);
+        this.dequeueNanos = Arrays.copyOf(trace.dequeueNanos, trace.dequeueNanos.length);
+        this.size = trace.size;
+    }
+
+    /**
+     * Records that the component named hop put the datum on an outbound queue.
+     * @param hop name of the component
+     */
+    public void enqueued(String hop) {
+        enqueued(hop, System.nanoTime());
+    }
+
+    /**
+     * Records that the datum was taken off the queue it was last put on.
+     */
+    public void dequeued() {
+        if(this.size > 0) {
+            this.dequeueNanos[this.size - 1] = System.nanoTime();
+        }
+    }
+
+    public long getIngestNanos() {
+        return this.ingestNanos;
+    }
+
+    public int getHopCount() {
+        return this.size;
+    }
+
+    public String getHop(int index) {
+        return this.hops[index];
+    }
+
+    /**
+     * Time the datum spent on the queue after the given hop, or -1 if it has not been dequeued yet.
+     * @param index hop index
+     * @return nanoseconds spent waiting on the queue
+     */
+    public long getQueueNanos(int index) {
+        long dequeued = this.dequeueNanos[index];
+        return dequeued == 0 ? -1 : dequeued - this.enqueueNanos[index];
+    }
+
+    /**
+     * The path the datum took through the stream ending in the given sink, ie. Provider->Processor->Writer
+     * @param sink name of the last component
+     * @return path of the datum
+     */
+    public String getPath(String sink) {
+        StringBuilder path = new StringBuilder();
+        for(int i = 0; i < this.size; ++i) {
+            path.append(this.hops[i]).append(PATH_SEPARATOR);
+        }
+        return path.append(sink).toString();
+    }
+
+    public long getLatencyNanos() {
+        return System.nanoTime() - this.ingestNanos;
+    }
+
+    public DatumTrace copy() {
+        return new DatumTrace(this);
+    }
+
+    private void enqueued(String hop, long nanos) {
+        if(this.size == this.hops.length) {
+            int capacity = this.hops.length * 2;
+            this.hops = Arrays.copyOf(this.hops, capacity);
+            this.enqueueNanos = Arrays.copyOf(this.enqueueNanos, capacity);
+            this.dequeueNanos = Arrays.copyOf(this.dequeueNanos, capacity);
+        }
+        this.hops[this.size] = hop;
+        this.enqueueNanos[this.size] = nanos;
+        this.dequeueNanos[this.size] = 0;
+        ++this.size;
+    }
+
+    /**
+     * Returns the trace attached to the datum, or null if the datum is not being traced.
+     * @param datum
+     * @return the trace or null
+     */
+    public static DatumTrace get(StreamsDatum datum) {
+        Map<String, Object> metadata = datum.getMetadata();
+        if(metadata == null) {
+            return null;
+        }
+        Object trace = metadata.get(METADATA_KEY);
+        return trace instanceof DatumTrace ? (DatumTrace) trace : null;
+    }
+
+    /**
+     * Removes the trace from the datum, so it is not persisted along with the metadata.  Metadata under the same key
+     * that is not a trace is left alone.
+     * @param datum
+     * @return the trace that was removed, or null
+     */
+    public static DatumTrace detach(StreamsDatum datum) {
+        DatumTrace trace = get(datum);
+        if(trace != null) {
+            datum.getMetadata().remove(METADATA_KEY);
+        }
+        return trace;
+    }
+
+    public static void attach(StreamsDatum datum, DatumTrace trace) {
+        if(datum.getMetadata() != null) {
+            datum.getMetadata().put(METADATA_KEY, trace);
+        }
+    }
+
+    /**
+     * Reads the sample rate from a stream configuration.
+     * @param config stream configuration, may be null
+     * @return the sample rate, 0.0 when tracing is disabled
+     */
+    public static double getSampleRate(Map<String, Object> config) {
+        if(config == null || config.get(SAMPLE_RATE_CONFIG) == null) {
+            return 0.0;
+        }
+        try {
+            double rate = Double.parseDouble(config.get(SAMPLE_RATE_CONFIG).toString());
+            return Math.min(Math.max(rate, 0.0), 1.0);
+        } catch (NumberFormatException nfe) {
+            return 0.0;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.core.tracing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory, thread safe histogram of latency values using the HDR (high dynamic range) bucketing scheme.  Values
+ * are kept to a configurable number of significant decimal digits across the whole trackable range, so recording is a
+ * couple of shifts and an atomic increment regardless of the magnitude of the value.
+ */
+public class LatencyHistogram {
+
+    public static final long DEFAULT_HIGHEST_TRACKABLE_VALUE = 3600L * 1000L * 1000L * 1000L; // one hour in nanos
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+
+    private final long highestTrackableValue;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_HIGHEST_TRACKABLE_VALUE, DEFAULT_SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     *
+     * @param highestTrackableValue largest value that can be recorded, larger values are clamped to it
+     * @param significantDigits number of significant decimal digits to keep, between 1 and 5
+     */
+    public LatencyHistogram(long highestTrackableValue, int significantDigits) {
+        if(highestTrackableValue < 2) {
+            throw new IllegalArgumentException("highestTrackableValue must be >= 2");
+        }
+        if(significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be between 1 and 5");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        int subBucketCount = 1 << subBucketCountMagnitude;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+
+        int bucketCount = 1;
+        long smallestUntrackableValue = subBucketCount;
+        while(smallestUntrackableValue <= highestTrackableValue) {
+            if(smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                ++bucketCount;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            ++bucketCount;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * this.subBucketHalfCount);
+    }
+
+    /**
+     * Records a single value.  Negative values are recorded as 0 and values above the highest trackable value are
+     * recorded as the highest trackable value.
+     * @param value value to record
+     */
+    public void recordValue(long value) {
+        if(value < 0) {
+            value = 0;
+        } else if(value > this.highestTrackableValue) {
+            value = this.highestTrackableValue;
+        }
+        this.counts.incrementAndGet(countsIndexFor(value));
+        this.totalCount.incrementAndGet();
+        this.totalValue.addAndGet(value);
+        long max = this.maxValue.get();
+        while(value > max && !this.maxValue.compareAndSet(max, value)) {
+            max = this.maxValue.get();
+        }
+    }
+
+    public long getTotalCount() {
+        return this.totalCount.get();
+    }
+
+    public long getMaxValue() {
+        return this.maxValue.get();
+    }
+
+    public double getMean() {
+        long count = this.totalCount.get();
+        return count == 0 ? 0.0 : (double) this.totalValue.get() / count;
+    }
+
+    /**
+     * Returns the value that the given percentage of recorded values are less than or equal to, within the precision
+     * of the histogram.
+     * @param percentile percentile between 0 and 100
+     * @return the value at the percentile, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = this.totalCount.get();
+        if(count == 0) {
+            return 0;
+        }
+        double requested = Math.min(Math.max(percentile, 0.0), 100.0);
+        long countAtPercentile = Math.max(1, (long) ((requested / 100.0) * count + 0.5));
+        long seen = 0;
+        for(int i = 0; i < this.counts.length(); ++i) {
+            seen += this.counts.get(i);
+            if(seen >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(i), this.maxValue.get());
+            }
+        }
+        return this.maxValue.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for(int i = 0; i < this.counts.length(); ++i) {
+            this.counts.set(i, 0);
+        }
+        this.totalCount.set(0);
+        this.totalValue.set(0);
+        this.maxValue.set(0);
+    }
+
+    private int countsIndexFor(long value) {
+        int pow2Ceiling = 64 - Long.numberOfLeadingZeros(value | this.subBucketMask);
+        int bucketIndex = pow2Ceiling - (this.subBucketHalfCountMagnitude + 1);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << this.subBucketHalfCountMagnitude) + (subBucketIndex - this.subBucketHalfCount);
+    }
+
+    private long highestEquivalentValue(int index) {
+        int bucketIndex = (index >> this.subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (this.subBucketHalfCount - 1)) + this.subBucketHalfCount;
+        if(bucketIndex < 0) {
+            subBucketIndex -= this.subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        long lowestEquivalentValue = ((long) subBucketIndex) << bucketIndex;
+        return lowestEquivalentValue + (1L << bucketIndex) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getTotalCount() +
+                "\tmean=" + (long) getMean() +
+                "\tp50=" + getValueAtPercentile(50.0) +
+                "\tp99=" + getValueAtPercentile(99.0) +
+                "\tp99.9=" + getValueAtPercentile(99.9) +
+                "\tmax=" + getMaxValue();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.core.tracing;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JVM wide registry of end to end latency histograms, one per pipeline path.  Writer tasks record into it when they
+ * have persisted a traced datum.
+ */
+public class LatencyTracker {
+
+    private static final ConcurrentMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private LatencyTracker() {}
+
+    /**
+     * Records the end to end latency of a traced datum that has reached the given sink.
+     * @param trace trace of the datum
+     * @param sink name of the component that completed the datum
+     */
+    public static void record(DatumTrace trace, String sink) {
+        getHistogram(trace.getPath(sink)).recordValue(trace.getLatencyNanos());
+    }
+
+    /**
+     * Returns the histogram for a path, creating it if it does not exist yet.
+     * @param path pipeline path
+     * @return histogram of end to end latency in nanoseconds
+     */
+    public static LatencyHistogram getHistogram(String path) {
+        LatencyHistogram histogram = HISTOGRAMS.get(path);
+        if(histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = HISTOGRAMS.putIfAbsent(path, histogram);
+            if(existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(HISTOGRAMS);
+    }
+
+    public static void reset() {
+        HISTOGRAMS.clear();
+    }
+}
@@ -0,0 +1,128 @@
+package org.apache.streams.core.tracing;
+
+import org.apache.streams.core.StreamsDatum;
+import org.apache.streams.core.tasks.StreamsPersistWriterTask;
+import org.apache.streams.core.tasks.StreamsProviderTask;
+import org.apache.streams.core.test.providers.NumericMessageProvider;
+import org.apache.streams.core.test.writer.DatumCounterWriter;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link org.apache.streams.core.tracing.DatumTrace} and datum tracing in the local tasks.
+ */
+public class DatumTraceTest {
+
+    @Test
+    public void testSampledDatumsAreTraced() {
+        int numMessages = 100;
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(DatumTrace.SAMPLE_RATE_CONFIG, 0.1);
+        StreamsProviderTask providerTask = new StreamsProviderTask(new NumericMessageProvider(numMessages), false);
+        providerTask.setStreamConfig(config);
+        Queue<StreamsDatum> queue = new ConcurrentLinkedQueue<StreamsDatum>();
+        providerTask.addOutputQueue(queue);
+        providerTask.run();
+        assertEquals(numMessages, queue.size());
+        int traced = 0;
+        for(StreamsDatum datum : queue) {
+            DatumTrace trace = DatumTrace.get(datum);
+            if(trace != null) {
+                ++traced;
+                assertEquals(1, trace.getHopCount());
+                assertEquals("NumericMessageProvider", trace.getHop(0));
+            }
+        }
+        assertEquals(10, traced);
+
+        LatencyTracker.reset();
+        StreamsPersistWriterTask writerTask = new StreamsPersistWriterTask(new DatumCounterWriter(), 10);
+        writerTask.setStreamConfig(config);
+        writerTask.addInputQueue(queue);
+        writerTask.stopTask();
+        writerTask.run();
+        LatencyHistogram histogram = LatencyTracker.getHistograms().get("NumericMessageProvider->DatumCounterWriter");
+        assertNotNull(histogram);
+        assertEquals(10, histogram.getTotalCount());
+    }
+
+    @Test
+    public void testTraceIsNotWritten() {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(DatumTrace.SAMPLE_RATE_CONFIG, 1.0);
+        StreamsProviderTask providerTask = new StreamsProviderTask(new NumericMessageProvider(10), false);
+        providerTask.setStreamConfig(config);
+        Queue<StreamsDatum> queue = new ConcurrentLinkedQueue<StreamsDatum>();
+        providerTask.addOutputQueue(queue);
+        providerTask.run();
+
+        LatencyTracker.reset();
+        TraceCheckingWriter writer = new TraceCheckingWriter();
+        StreamsPersistWriterTask writerTask = new StreamsPersistWriterTask(writer, 10);
+        writerTask.setStreamConfig(config);
+        writerTask.addInputQueue(queue);
+        writerTask.stopTask();
+        writerTask.run();
+        assertEquals(10, writer.getDatumsCounted());
+        assertEquals(0, writer.traced);
+        // still recorded, from the trace the task kept aside
+        assertEquals(10, LatencyTracker.getHistograms().get("NumericMessageProvider->TraceCheckingWriter").getTotalCount());
+    }
+
+    @Test
+    public void testMetadataIsUntouchedWhenTracingIsOff() {
+        Queue<StreamsDatum> queue = new ConcurrentLinkedQueue<StreamsDatum>();
+        for(int i = 0; i < 10; ++i) {
+            StreamsDatum datum = new StreamsDatum(i);
+            datum.getMetadata().put("trace", "user value");
+            datum.getMetadata().put(DatumTrace.METADATA_KEY, "not a trace");
+            queue.add(datum);
+        }
+
+        TraceCheckingWriter writer = new TraceCheckingWriter();
+        StreamsPersistWriterTask writerTask = new StreamsPersistWriterTask(writer, 10);
+        writerTask.setStreamConfig(new HashMap<String, Object>());
+        writerTask.addInputQueue(queue);
+        writerTask.stopTask();
+        writerTask.run();
+        assertEquals(10, writer.getDatumsCounted());
+        assertEquals(10, writer.userTraced);
+        assertEquals(10, writer.traced);
+    }
+
+    @Test
+    public void testDetachOnlyRemovesTraces() {
+        StreamsDatum datum = new StreamsDatum("document");
+        datum.getMetadata().put(DatumTrace.METADATA_KEY, "not a trace");
+        assertNull(DatumTrace.detach(datum));
+        assertEquals("not a trace", datum.getMetadata().get(DatumTrace.METADATA_KEY));
+
+        DatumTrace trace = new DatumTrace();
+        DatumTrace.attach(datum, trace);
+        assertSame(trace, DatumTrace.detach(datum));
+        assertFalse(datum.getMetadata().containsKey(DatumTrace.METADATA_KEY));
+    }
+
+    private static class TraceCheckingWriter extends DatumCounterWriter {
+
+        private int traced = 0;
+        private int userTraced = 0;
+
+        @Override
+        public void write(StreamsDatum entry) {
+            super.write(entry);
+            if(entry.getMetadata().containsKey(DatumTrace.METADATA_KEY)) {
+                ++this.traced;
+            }
+            if("user value".equals(entry.getMetadata().get("trace"))) {
+                ++this.userTraced;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.apache.streams.core.tracing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link org.apache.streams.core.tracing.LatencyHistogram}
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long i = 1; i <= 100000; ++i) {
+            histogram.recordValue(i * 1000);
+        }
+        assertEquals(100000, histogram.getTotalCount());
+        assertEquals(100000000, histogram.getMaxValue());
+        assertEquals(50000000, histogram.getValueAtPercentile(50.0), 50000000 * 0.01);
+        assertEquals(99000000, histogram.getValueAtPercentile(99.0), 99000000 * 0.01);
+        assertEquals(50000500, histogram.getMean(), 1.0);
+    }
+
+    @Test
+    public void testClampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram(1000, 2);
+        histogram.recordValue(-5);
+        histogram.recordValue(5000);
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(0.0));
+        assertEquals(1000, histogram.getMaxValue());
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99.0));
+    }
+}
@@ -26,10 +26,16 @@ import org.apache.streams.osgi.components.activityconsumer.ActivityConsumer;
 import org.apache.streams.osgi.components.activityconsumer.impl.PushActivityConsumer;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 
 
 public class ActivityPublisherRegistrationProcessor implements Processor{
     private static final transient Log LOG = LogFactory.getLog(ActivityStreamsSubscriberRegistrationProcessor.class);
+
+    // the registration types are bound with jackson 1 annotations, so they get a reader of their own, built once
+    private static final ObjectReader READER = new ObjectMapper()
+            .configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .reader(ActivityConsumer.class);
     public void process(Exchange exchange){
         //add the necessary headers to the message so that the activity registration component
         //can do a lookup to either make a new processor and endpoint, or pass the message to the right one
@@ -45,13 +51,11 @@ public class ActivityPublisherRegistrationProcessor implements Processor{
             // authentication, all that good stuff...happens in the registration module
 
             String body = exchange.getIn().getBody(String.class);
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES,false);
 
             try {
 
                 // read from file, convert it to user class
-                ActivityConsumer configuration = mapper.readValue(body, ActivityConsumer.class);
+                ActivityConsumer configuration = READER.readValue(body);
                 if (configuration.getSrc()==null){
                    LOG.info("configuration src is null");
                    throw new Exception();
@@ -27,10 +27,16 @@ import org.apache.streams.messaging.service.impl.CassandraSubscriptionService;
 import org.apache.streams.osgi.components.activitysubscriber.ActivityStreamsSubscription;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 
 
 public class ActivityStreamsSubscriberRegistrationProcessor implements Processor{
     private static final transient Log LOG = LogFactory.getLog(ActivityStreamsSubscriberRegistrationProcessor.class);
+
+    // the registration types are bound with jackson 1 annotations, so they get a reader of their own, built once
+    private static final ObjectReader READER = new ObjectMapper()
+            .configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .reader(ActivityStreamsSubscription.class);
     private SubscriptionService subscriptionService;
 
     public ActivityStreamsSubscriberRegistrationProcessor(SubscriptionService subscriptionService){
@@ -59,13 +65,11 @@ public class ActivityStreamsSubscriberRegistrationProcessor implements Processor
             //OAuth token? What does subscriber post to init a subscription URL?
             //maybe its a list of URLs to subscribe to subscriptions=1,2,3,4&auth_token=XXXX
 
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES,false);
 
             try {
 
                 // read from file, convert it to user class
-                ActivityStreamsSubscription configuration = mapper.readValue(body, ActivityStreamsSubscription.class);
+                ActivityStreamsSubscription configuration = READER.readValue(body);
                 if(configuration.getFilters() == null){
                     configuration.setFilters(subscriptionService.getFilters(configuration.getAuthToken()));
                 }else{
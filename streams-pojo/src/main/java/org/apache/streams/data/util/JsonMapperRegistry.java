@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.data.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JVM wide cache of Jackson readers and writers.
+ *
+ * Building an ObjectMapper and warming its serializer and deserializer caches is far more expensive than reading or
+ * writing a typical document, so serializers and utilities should get their readers and writers from here instead of
+ * creating mappers per call.  ObjectReader and ObjectWriter instances are immutable and safe to share between threads.
+ * The shared mapper must not be reconfigured by callers.
+ */
+public class JsonMapperRegistry {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    private static final ConcurrentMap<List<Object>, ObjectReader> READERS = new ConcurrentHashMap<List<Object>, ObjectReader>();
+    private static final ConcurrentMap<List<Object>, ObjectWriter> WRITERS = new ConcurrentHashMap<List<Object>, ObjectWriter>();
+
+    private JsonMapperRegistry() {}
+
+    /**
+     * The shared, default configured mapper.  Use for tree model operations such as convertValue and valueToTree.
+     * @return the shared mapper
+     */
+    public static ObjectMapper getMapper() {
+        return MAPPER;
+    }
+
+    public static JsonFactory getFactory() {
+        return MAPPER.getFactory();
+    }
+
+    /**
+     * Gets a reader that binds to the given type with the default features.
+     * @param type target type
+     * @return cached reader
+     */
+    public static ObjectReader reader(Class<?> type) {
+        return reader(type, EnumSet.noneOf(DeserializationFeature.class), EnumSet.noneOf(DeserializationFeature.class));
+    }
+
+    /**
+     * Gets a reader that binds to the given type with additional deserialization features enabled.
+     * @param type target type
+     * @param first feature to enable
+     * @param others more features to enable
+     * @return cached reader
+     */
+    public static ObjectReader reader(Class<?> type, DeserializationFeature first, DeserializationFeature... others) {
+        return reader(type, EnumSet.of(first, others), EnumSet.noneOf(DeserializationFeature.class));
+    }
+
+    /**
+     * Gets a reader that binds to the given type, ignores unknown properties and accepts single values and empty
+     * strings where arrays and objects are expected.  Suitable for loosely structured provider data.
+     * @param type target type
+     * @return cached reader
+     */
+    public static ObjectReader lenientReader(Class<?> type) {
+        return reader(type,
+                EnumSet.of(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT),
+                EnumSet.of(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES));
+    }
+
+    /**
+     * Gets the writer with the default features.
+     * @return shared writer
+     */
+    public static ObjectWriter writer() {
+        return WRITER;
+    }
+
+    /**
+     * Gets a writer that serializes values as the given type with additional serialization features enabled.
+     * @param type root type to serialize as
+     * @param features features to enable
+     * @return cached writer
+     */
+    public static ObjectWriter writer(Class<?> type, SerializationFeature... features) {
+        EnumSet<SerializationFeature> enabled = EnumSet.noneOf(SerializationFeature.class);
+        enabled.addAll(Arrays.asList(features));
+        List<Object> key = Arrays.<Object>asList(type, enabled);
+        ObjectWriter writer = WRITERS.get(key);
+        if(writer == null) {
+            writer = MAPPER.writerWithType(type);
+            for(SerializationFeature feature : enabled) {
+                writer = writer.with(feature);
+            }
+            ObjectWriter existing = WRITERS.putIfAbsent(key, writer);
+            if(existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+
+    private static ObjectReader reader(Class<?> type, EnumSet<DeserializationFeature> enabled, EnumSet<DeserializationFeature> disabled) {
+        List<Object> key = Arrays.<Object>asList(type, enabled, disabled);
+        ObjectReader reader = READERS.get(key);
+        if(reader == null) {
+            reader = MAPPER.reader(type);
+            for(DeserializationFeature feature : enabled) {
+                reader = reader.with(feature);
+            }
+            for(DeserializationFeature feature : disabled) {
+                reader = reader.without(feature);
+            }
+            ObjectReader existing = READERS.putIfAbsent(key, reader);
+            if(existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+}
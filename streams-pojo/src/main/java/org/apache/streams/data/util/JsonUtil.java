@@ -18,12 +18,9 @@
 
 package org.apache.streams.data.util;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
 import java.util.List;
@@ -36,56 +33,44 @@ public class JsonUtil {
     private JsonUtil() {}
 
     public static JsonNode jsonToJsonNode(String json) {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonFactory factory = mapper.getFactory();
-
-        JsonNode node;
         try {
-            JsonParser jp = factory.createJsonParser(json);
-            node = mapper.readTree(jp);
+            return JsonMapperRegistry.getMapper().readTree(json);
         } catch (IOException e) {
             throw new RuntimeException("IO exception while reading JSON", e);
         }
-        return node;
     }
 
     public static String jsonNodeToJson(JsonNode node) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.writeValueAsString(node);
+            return JsonMapperRegistry.writer().writeValueAsString(node);
         } catch (JsonProcessingException e) {
             throw new RuntimeException("IO exception while writing JSON", e);
         }
     }
 
     public static <T> T jsonToObject(String json, Class<T> clazz) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.readValue(json, clazz);
+            return JsonMapperRegistry.reader(clazz).readValue(json);
         } catch (IOException e) {
             throw new RuntimeException("Could not map to object");
         }
     }
 
     public static <T> T jsonNodeToObject(JsonNode node, Class<T> clazz) {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.convertValue(node, clazz);
+        return JsonMapperRegistry.getMapper().convertValue(node, clazz);
     }
 
     public static <T> JsonNode objectToJsonNode(T obj) {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.valueToTree(obj);
+        return JsonMapperRegistry.getMapper().valueToTree(obj);
     }
 
     public static <T> List<T> jsoNodeToList(JsonNode node, Class<T> clazz) {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.convertValue(node, new TypeReference<List<T>>() {});
+        return JsonMapperRegistry.getMapper().convertValue(node, new TypeReference<List<T>>() {});
     }
 
     public static <T> String objectToJson(T object) {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return mapper.writeValueAsString(object);
+            return JsonMapperRegistry.writer().writeValueAsString(object);
         } catch (IOException e) {
             throw new RuntimeException("Could not map to object");
         }
@@ -96,14 +81,10 @@ public class JsonUtil {
     }
 
     public static JsonNode getFromFile(String filePath) {
-        ObjectMapper mapper = new ObjectMapper();
-        JsonFactory factory = mapper.getFactory(); // since 2.1 use mapper.getFactory() instead
-
         JsonNode node = null;
         try {
             InputStream stream = getStreamForLocation(filePath);
-            JsonParser jp = factory.createParser(stream);
-            node = mapper.readTree(jp);
+            node = JsonMapperRegistry.getMapper().readTree(stream);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.streams.data.data.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.streams.data.util.JsonMapperRegistry;
+import org.apache.streams.pojo.json.Activity;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonMapperRegistryTest {
+
+    @Test
+    public void testReadersAndWritersAreCached() {
+        assertSame(JsonMapperRegistry.reader(Activity.class), JsonMapperRegistry.reader(Activity.class));
+        assertSame(JsonMapperRegistry.lenientReader(Activity.class), JsonMapperRegistry.lenientReader(Activity.class));
+        assertNotSame(JsonMapperRegistry.reader(Activity.class), JsonMapperRegistry.lenientReader(Activity.class));
+        assertSame(JsonMapperRegistry.reader(Activity.class, DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY),
+                JsonMapperRegistry.reader(Activity.class, DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY));
+        assertSame(JsonMapperRegistry.writer(Activity.class, SerializationFeature.INDENT_OUTPUT),
+                JsonMapperRegistry.writer(Activity.class, SerializationFeature.INDENT_OUTPUT));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Activity activity = new Activity();
+        activity.setId("id:test:activities:1");
+        activity.setVerb("post");
+        String json = JsonMapperRegistry.writer().writeValueAsString(activity);
+        Activity read = JsonMapperRegistry.reader(Activity.class).readValue(json);
+        assertEquals(activity.getId(), read.getId());
+        assertEquals(activity.getVerb(), read.getVerb());
+    }
+
+    @Test
+    public void testLenientReaderIgnoresUnknownProperties() throws Exception {
+        Activity read = JsonMapperRegistry.lenientReader(Activity.class).readValue("{\"id\":\"1\",\"verb\":\"post\",\"notAField\":{\"a\":1}}");
+        assertEquals("1", read.getId());
+    }
+}
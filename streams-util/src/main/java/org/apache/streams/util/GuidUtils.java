@@ -20,29 +20,173 @@ package org.apache.streams.util;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Id generation.
+ *
+ * Content guids are 128 bit murmur3 hashes, so the same content always gets the same guid, on any JVM.  Parts are
+ * hashed as if concatenated, so generateGuid("ab", "c"), generateGuid("abc") and generateGuid of the UTF-8 bytes of
+ * "abc" are all equal.
+ *
+ * Time ordered ids are 64 bit values made of the milliseconds since {@link #EPOCH}, a node id and a per millisecond
+ * counter.  Counting from 2014 rather than 1970 keeps the 41 bit time positive until 2083.  They increase strictly
+ * within a JVM and sort roughly by creation time across nodes, which makes them suitable for
+ * {@link java.math.BigInteger} sequence ids.  The node id is taken from the streams.guid.node system property, or
+ * derived from the JVM name.
+ *
  * Created by sblackmon on 12/13/13.
  */
 public class GuidUtils {
 
     private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
+    private static final HashFunction GUID_HASH = Hashing.murmur3_128();
+
+    private static final BaseEncoding BASE64 = BaseEncoding.base64Url().omitPadding();
+
+    public static final String NODE_ID_PROPERTY = "streams.guid.node";
+
+    /**
+     * Start of time for time ordered ids, 2014-01-01T00:00:00Z in milliseconds.
+     */
+    public static final long EPOCH = 1388534400000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final long NODE_ID = resolveNodeId();
+
+    /**
+     * Last issued (time << SEQUENCE_BITS | sequence), used to keep time ordered ids increasing.
+     */
+    private static final AtomicLong LAST_TIME_SEQUENCE = new AtomicLong();
+
+    private GuidUtils() {}
+
+    /**
+     * Generates a guid from the content of one or more parts.
+     * @param parts non empty parts
+     * @return 32 character lower case hex guid
+     */
     public static String generateGuid(String... parts) {
+        return hash(parts).toString();
+    }
 
-        StringBuilder seed = new StringBuilder();
+    /**
+     * Generates a guid from the content of one or more parts.
+     * @param parts non empty parts
+     * @return 22 character url safe base64 guid
+     */
+    public static String generateBase64Guid(String... parts) {
+        return BASE64.encode(hash(parts).asBytes());
+    }
+
+    /**
+     * Generates a guid from serialized content, without converting it to a String first.
+     * @param bytes content
+     * @return 32 character lower case hex guid
+     */
+    public static String generateGuid(byte[] bytes) {
+        return hash(bytes, 0, bytes.length).toString();
+    }
+
+    /**
+     * Generates a guid from serialized content, without converting it to a String first.
+     * @param bytes content
+     * @return 22 character url safe base64 guid
+     */
+    public static String generateBase64Guid(byte[] bytes) {
+        return BASE64.encode(hash(bytes, 0, bytes.length).asBytes());
+    }
+
+    /**
+     * Hashes a range of serialized content.  Use the returned HashCode directly, ie. asLong() for partitioning, when
+     * the guid does not need to be rendered.
+     * @param bytes content
+     * @param offset start of the content
+     * @param length length of the content
+     * @return 128 bit hash
+     */
+    public static HashCode hash(byte[] bytes, int offset, int length) {
+        Preconditions.checkNotNull(bytes);
+        return GUID_HASH.hashBytes(bytes, offset, length);
+    }
+
+    /**
+     * Hashes one or more parts as if they were concatenated.
+     * @param parts non empty parts
+     * @return 128 bit hash
+     */
+    public static HashCode hash(String... parts) {
+        Hasher hasher = GUID_HASH.newHasher();
         for( String part : parts ) {
             Preconditions.checkNotNull(part);
             Preconditions.checkArgument(!Strings.isNullOrEmpty(part));
-            seed.append(part);
+            hasher.putString(part, UTF8_CHARSET);
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Generates an id that is greater than every id previously generated by this JVM.
+     * @return time ordered id
+     */
+    public static long generateTimeOrderedId() {
+        long next;
+        while(true) {
+            long last = LAST_TIME_SEQUENCE.get();
+            next = Math.max((System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS, last + 1);
+            if(LAST_TIME_SEQUENCE.compareAndSet(last, next)) {
+                break;
+            }
         }
+        long time = next >>> SEQUENCE_BITS;
+        return (time << (NODE_BITS + SEQUENCE_BITS)) | (NODE_ID << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+    }
 
-        String hash = Hashing.goodFastHash(24).hashString(seed, UTF8_CHARSET).asBytes().toString();
+    /**
+     * Generates a time ordered id for use as the sequenceid of a StreamsDatum.
+     * @return time ordered id
+     */
+    public static BigInteger generateSequenceId() {
+        return BigInteger.valueOf(generateTimeOrderedId());
+    }
 
-        return hash;
+    /**
+     * Extracts the creation time in milliseconds from a time ordered id.
+     * @param id time ordered id
+     * @return creation time
+     */
+    public static long getTimestamp(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
 
+    public static long getNodeId() {
+        return NODE_ID;
+    }
+
+    private static long resolveNodeId() {
+        String configured = System.getProperty(NODE_ID_PROPERTY);
+        if(!Strings.isNullOrEmpty(configured)) {
+            try {
+                return Long.parseLong(configured.trim()) & NODE_MASK;
+            } catch (NumberFormatException nfe) {
+                // fall back to the jvm name
+            }
+        }
+        String jvmName = ManagementFactory.getRuntimeMXBean().getName();
+        return GUID_HASH.hashString(jvmName, UTF8_CHARSET).asLong() & NODE_MASK;
     }
 }
@@ -19,36 +19,201 @@
 package org.apache.streams.util;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
+/**
+ * Regular expression helpers.
+ *
+ * Compiled patterns are kept in a bounded cache shared by all threads, and each thread reuses its own Matcher per
+ * pattern, so these methods are cheap enough to call per datum.  The matchers are reset to an empty input once a method
+ * is done with them, so the cache does not keep the last input of each thread alive.
+ */
 public class RegexUtils {
 
+    /**
+     * Maximum number of compiled patterns kept in the shared cache.
+     */
+    public static final int PATTERN_CACHE_SIZE = 1024;
+
+    /**
+     * Maximum number of reusable matchers kept by each thread.
+     */
+    public static final int THREAD_MATCHER_CACHE_SIZE = 64;
+
+    private static final LoadingCache<String, Pattern> PATTERNS = CacheBuilder.newBuilder()
+            .maximumSize(PATTERN_CACHE_SIZE)
+            .build(new CacheLoader<String, Pattern>() {
+                @Override
+                public Pattern load(String regEx) {
+                    return Pattern.compile(regEx);
+                }
+            });
+
+    private static final ThreadLocal<Map<String, Matcher>> MATCHERS = new ThreadLocal<Map<String, Matcher>>() {
+        @Override
+        protected Map<String, Matcher> initialValue() {
+            return new LinkedHashMap<String, Matcher>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Matcher> eldest) {
+                    return size() > THREAD_MATCHER_CACHE_SIZE;
+                }
+            };
+        }
+    };
+
+    /**
+     * Receives the bounds of each match found by {@link #scan(CharSequence, String, int, MatchHandler)}.  Handlers must
+     * not use RegexUtils with the expression being scanned, since that would reset the matcher in use.
+     */
+    public interface MatchHandler {
+
+        /**
+         * Called for each match.  No substring is created; use input.subSequence(start, end) if one is needed.
+         * @param input the sequence being scanned
+         * @param start start index of the matched group, inclusive
+         * @param end end index of the matched group, exclusive
+         * @return false to stop scanning
+         */
+        boolean onMatch(CharSequence input, int start, int end);
+    }
+
+    /**
+     * Returns the compiled pattern for a regular expression from the shared cache.
+     * @param regEx regular expression
+     * @return compiled pattern
+     */
+    public static Pattern getPattern(String regEx) {
+        return PATTERNS.getUnchecked(regEx);
+    }
+
+    /**
+     * Returns this thread's matcher for the regular expression, reset to the given input.  The matcher is reused by
+     * later calls on the same thread with the same expression, so it must not be kept or shared, and it holds on to the
+     * input until {@link #release(Matcher)} is called.
+     * @param regEx regular expression
+     * @param input sequence to match against
+     * @return a reset matcher
+     */
+    public static Matcher matcher(String regEx, CharSequence input) {
+        Map<String, Matcher> matchers = MATCHERS.get();
+        Matcher matcher = matchers.get(regEx);
+        if (matcher == null) {
+            matcher = getPattern(regEx).matcher(input);
+            matchers.put(regEx, matcher);
+            return matcher;
+        }
+        return matcher.reset(input);
+    }
+
+    /**
+     * Resets a matcher from {@link #matcher(String, CharSequence)} to an empty input, so it no longer refers to the
+     * input it was last used on.
+     * @param matcher
+     */
+    public static void release(Matcher matcher) {
+        matcher.reset("");
+    }
+
     public static boolean matches(String line, String regEx) {
 
         boolean regExpMatches = false;
 
         if (StringUtils.isNotBlank(line) && StringUtils.isNotBlank(regEx)) {
-            if (line.matches(regEx)) {
-                regExpMatches = true;
+            Matcher matcher = matcher(regEx, line);
+            try {
+                regExpMatches = matcher.matches();
+            } finally {
+                release(matcher);
             }
         }
         return regExpMatches;
     }
 
+    /**
+     * Whether the regular expression matches anywhere in the input.
+     * @param input sequence to search
+     * @param regEx regular expression
+     * @return true if there is at least one match
+     */
+    public static boolean find(CharSequence input, String regEx) {
+        Matcher matcher = matcher(regEx, input);
+        try {
+            return matcher.find();
+        } finally {
+            release(matcher);
+        }
+    }
+
+    /**
+     * Counts the matches of the regular expression in the input without creating any strings.
+     * @param input sequence to search
+     * @param regEx regular expression
+     * @return number of matches
+     */
+    public static int countMatches(CharSequence input, String regEx) {
+        Matcher matcher = matcher(regEx, input);
+        int count = 0;
+        try {
+            while (matcher.find()) {
+                ++count;
+            }
+        } finally {
+            release(matcher);
+        }
+        return count;
+    }
+
+    /**
+     * Reports the bounds of a group for each match of the regular expression in the input, without creating any
+     * substrings.
+     * @param input sequence to search
+     * @param regEx regular expression
+     * @param group group to report, 0 for the whole match
+     * @param handler receives the bounds of each match
+     * @return number of matches reported
+     */
+    public static int scan(CharSequence input, String regEx, int group, MatchHandler handler) {
+        Matcher matcher = matcher(regEx, input);
+        int count = 0;
+        try {
+            while (matcher.find()) {
+                int start = matcher.start(group);
+                if (start < 0) {
+                    continue;
+                }
+                ++count;
+                if (!handler.onMatch(input, start, matcher.end(group))) {
+                    break;
+                }
+            }
+        } finally {
+            release(matcher);
+        }
+        return count;
+    }
+
     public static List<String> getMatches(String line, String regEx, int group){
-        Pattern pattern = Pattern.compile(regEx);
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = matcher(regEx, line);
         List<String> matches = new ArrayList<String>();
 
-        while (matcher.find()) {
+        try {
+            while (matcher.find()) {
 
-            matches.add(matcher.group(group));
+                matches.add(matcher.group(group));
+            }
+        } finally {
+            release(matcher);
         }
 
         return matches;
@@ -68,24 +233,35 @@ public class RegexUtils {
     }
 
     public static Pair<String,String> getTwoMatchedGroups(String line, String regEx){
-        Pattern pattern = Pattern.compile(regEx);
-        Matcher matcher = pattern.matcher(line);
-        Pair<String,String> match = null;
+        Matcher matcher = matcher(regEx, line);
+        int start0 = -1, end0 = -1, start1 = -1, end1 = -1;
 
-        while (matcher.find()) {
-            Pair<String,String> pair = new ImmutablePair<String,String>(matcher.group(0), matcher.group(1));
-            match = pair;
+        try {
+            while (matcher.find()) {
+                start0 = matcher.start();
+                end0 = matcher.end();
+                start1 = matcher.start(1);
+                end1 = matcher.end(1);
+            }
+        } finally {
+            release(matcher);
         }
 
-        return match;
+        if (start0 < 0) {
+            return null;
+        }
+        return new ImmutablePair<String,String>(line.substring(start0, end0), start1 < 0 ? null : line.substring(start1, end1));
     }
 
     public static String getMatchedContent(String line, String regEx){
-        Pattern pattern = Pattern.compile(regEx);
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = matcher(regEx, line);
         String matchedContent = null;
-        if (matcher.find()) {
-            matchedContent = matcher.group();
+        try {
+            if (matcher.find()) {
+                matchedContent = matcher.group();
+            }
+        } finally {
+            release(matcher);
         }
 
         return matchedContent;
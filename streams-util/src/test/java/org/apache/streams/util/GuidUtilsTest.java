@@ -0,0 +1,48 @@
+package org.apache.streams.util;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class GuidUtilsTest {
+
+    @Test
+    public void testGuidsAreDeterministic() {
+        String guid = GuidUtils.generateGuid("{\"id\":1}");
+        assertEquals(32, guid.length());
+        assertTrue(guid.matches("[0-9a-f]{32}"));
+        assertEquals(guid, GuidUtils.generateGuid("{\"id\":1}"));
+        assertFalse(guid.equals(GuidUtils.generateGuid("{\"id\":2}")));
+    }
+
+    @Test
+    public void testPartsHashAsConcatenatedBytes() {
+        String guid = GuidUtils.generateGuid("abc");
+        assertEquals(guid, GuidUtils.generateGuid("ab", "c"));
+        assertEquals(guid, GuidUtils.generateGuid("abc".getBytes(Charset.forName("UTF-8"))));
+        assertEquals(22, GuidUtils.generateBase64Guid("abc").length());
+        assertEquals(GuidUtils.generateBase64Guid("abc"), GuidUtils.generateBase64Guid("abc".getBytes(Charset.forName("UTF-8"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPartRejected() {
+        GuidUtils.generateGuid("a", "");
+    }
+
+    @Test
+    public void testTimeOrderedIdsIncrease() {
+        long before = System.currentTimeMillis();
+        long last = GuidUtils.generateTimeOrderedId();
+        for(int i = 0; i < 100000; ++i) {
+            long id = GuidUtils.generateTimeOrderedId();
+            assertTrue(id > last);
+            last = id;
+        }
+        assertTrue(last > 0);
+        assertTrue(GuidUtils.getTimestamp(last) >= before);
+        assertTrue(GuidUtils.getTimestamp(last) <= System.currentTimeMillis() + 1000);
+        assertTrue(GuidUtils.generateSequenceId().longValue() > last);
+    }
+}
@@ -0,0 +1,75 @@
+package org.apache.streams.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the per call cost of matching with a freshly compiled pattern, as RegexUtils used to, against the cached
+ * patterns and reused matchers.  Not run as part of the build; run the main method directly.
+ */
+public class RegexUtilsBenchmark {
+
+    private static final String TEXT = "RT @someone: Check out #streams and #bigdata at http://t.co/abcdef #apache";
+    private static final String HASHTAG = "#(\\w+)";
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; ++round) {
+            run("compile per call getMatches", new Runnable() {
+                @Override
+                public void run() {
+                    uncachedGetMatches(TEXT, HASHTAG, 1);
+                }
+            });
+            run("cached getMatches", new Runnable() {
+                @Override
+                public void run() {
+                    RegexUtils.getMatches(TEXT, HASHTAG, 1);
+                }
+            });
+            run("String.matches", new Runnable() {
+                @Override
+                public void run() {
+                    TEXT.matches(".*#streams.*");
+                }
+            });
+            run("cached matches", new Runnable() {
+                @Override
+                public void run() {
+                    RegexUtils.matches(TEXT, ".*#streams.*");
+                }
+            });
+            run("cached countMatches", new Runnable() {
+                @Override
+                public void run() {
+                    RegexUtils.countMatches(TEXT, HASHTAG);
+                }
+            });
+        }
+    }
+
+    private static void run(String name, Runnable call) {
+        for (int i = 0; i < WARMUP; ++i) {
+            call.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            call.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-30s %8.1f ns/call", name, (double) elapsed / ITERATIONS));
+    }
+
+    private static List<String> uncachedGetMatches(String line, String regEx, int group) {
+        Pattern pattern = Pattern.compile(regEx);
+        Matcher matcher = pattern.matcher(line);
+        List<String> matches = new ArrayList<String>();
+        while (matcher.find()) {
+            matches.add(matcher.group(group));
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,62 @@
+package org.apache.streams.util;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegexUtilsTest {
+
+    private static final String HASHTAG = "#(\\w+)";
+
+    @Test
+    public void testPatternsAreCached() {
+        assertSame(RegexUtils.getPattern(HASHTAG), RegexUtils.getPattern(HASHTAG));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(RegexUtils.matches("abc123", "[a-z]+\\d+"));
+        assertFalse(RegexUtils.matches("abc123 ", "[a-z]+\\d+"));
+        assertFalse(RegexUtils.matches("", "[a-z]+\\d+"));
+    }
+
+    @Test
+    public void testGetMatches() {
+        String text = "#one two #three #four";
+        assertEquals(Arrays.asList("one", "three", "four"), RegexUtils.getMatches(text, HASHTAG, 1));
+        assertEquals(Arrays.asList("#one", "#three", "#four"), RegexUtils.getMatches(text, HASHTAG, 0));
+        assertEquals("#one", RegexUtils.getMatchedContent(text, HASHTAG));
+        assertNull(RegexUtils.getMatchedContent("none", HASHTAG));
+    }
+
+    @Test
+    public void testGetTwoMatchedGroups() {
+        Pair<String, String> pair = RegexUtils.getTwoMatchedGroups("#one two #three", HASHTAG);
+        assertEquals("#three", pair.getLeft());
+        assertEquals("three", pair.getRight());
+        assertNull(RegexUtils.getTwoMatchedGroups("none", HASHTAG));
+    }
+
+    @Test
+    public void testScanWithoutSubstrings() {
+        StringBuilder text = new StringBuilder("#one two #three #four");
+        final List<String> found = new ArrayList<String>();
+        int count = RegexUtils.scan(text, HASHTAG, 1, new RegexUtils.MatchHandler() {
+            @Override
+            public boolean onMatch(CharSequence input, int start, int end) {
+                found.add(input.subSequence(start, end).toString());
+                return found.size() < 2;
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(Arrays.asList("one", "three"), found);
+        assertEquals(3, RegexUtils.countMatches(text, HASHTAG));
+        assertTrue(RegexUtils.find(text, "two"));
+        assertFalse(RegexUtils.find(text, "five"));
+    }
+}